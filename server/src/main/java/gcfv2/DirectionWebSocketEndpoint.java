@@ -4,6 +4,7 @@ import com.google.gson.Gson;                   // [ADDED]
 import com.google.gson.JsonObject;             // [ADDED]
 import gcfv2.control.ControlManager;
 import gcfv2.ingest.IngestFirestoreService;
+import gcfv2.pubsub.TopicBroker;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
 
@@ -38,6 +39,7 @@ public class DirectionWebSocketEndpoint {
                     .getOrDefault("id", List.of("unknown"))
                     .get(0);
 
+            ingestService.setRobotId(TopicBroker.clientId(session)); // [ADDED] 저장 문서에 로봇 기록
             controlManager.registerClient(clientId, session);
             session.setIdleTimeout(Duration.ofMinutes(30));
 
@@ -94,11 +96,25 @@ public class DirectionWebSocketEndpoint {
         }
     }
 
+    // [ADDED] 바이너리 프레임 = CapStreamBegin 이후 스트리밍 업로드 중인 이미지 바이트
+    @OnWebSocketMessage
+    public void onBinary(Session session, byte[] payload, int offset, int len) throws IOException {
+        try {
+            ingestService.handleBinary(ByteBuffer.wrap(payload, offset, len));
+        } catch (Exception e) {
+            session.getRemote().sendString("처리 실패: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     @OnWebSocketClose
     public void onClose(Session session, int statusCode, String reason) {
         try {
+            ingestService.abortCapStream(); // [ADDED] 미완료 스트리밍 업로드 정리
             ScheduledFuture<?> f = KA_TASKS.remove(session);
             if (f != null) f.cancel(true);
+            controlManager.cancelSessionWork(session, "close " + statusCode); // [ADDED] 진행 중 AI/조회 작업 취소
+            TopicBroker.get().unsubscribeAll(session); // [ADDED] 토픽/변경 피드 구독 해제
 
             String clientId = session.getUpgradeRequest()
                     .getParameterMap()
@@ -118,8 +134,11 @@ public class DirectionWebSocketEndpoint {
     @OnWebSocketError
     public void onError(Session session, Throwable cause) {
         System.err.println("[ERROR] " + cause.getMessage());
+        ingestService.abortCapStream(); // [ADDED]
         ScheduledFuture<?> f = KA_TASKS.remove(session);
         if (f != null) f.cancel(true);
+        controlManager.cancelSessionWork(session, "error"); // [ADDED]
+        TopicBroker.get().unsubscribeAll(session); // [ADDED]
         cause.printStackTrace();
     }
 }
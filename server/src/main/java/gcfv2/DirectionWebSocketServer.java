@@ -1,5 +1,23 @@
 package gcfv2;
 
+import com.google.gson.Gson;
+import gcfv2.ai.AnswerCache;
+import gcfv2.ai.InferenceProviders;
+import gcfv2.ai.ModelRouter;
+import gcfv2.ai.OpenAIClient;
+import gcfv2.ai.RateLimiter;
+import gcfv2.control.BacklogAnalyzer;
+import gcfv2.control.ControlManager;
+import gcfv2.control.ConversationMemory;
+import gcfv2.control.Deadline;
+import gcfv2.limit.Bulkheads;
+import gcfv2.ingest.ChangeFeed;
+import gcfv2.ingest.IdempotencyTable;
+import gcfv2.ingest.WriteSpool;
+import gcfv2.pubsub.TopicBroker;
+import gcfv2.media.ImageProxyServlet;
+import gcfv2.media.InlineImages;
+import gcfv2.queue.DurableJobQueue;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -10,6 +28,8 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class DirectionWebSocketServer {
 
@@ -23,6 +43,7 @@ public class DirectionWebSocketServer {
         // Jetty WebSocket 등록
         JettyWebSocketServletContainerInitializer.configure(context, (servletContext, wsContainer) -> {
             wsContainer.setIdleTimeout(Duration.ofMinutes(30)); // [ADDED] 서버 컨테이너 레벨 유휴 타임아웃 30분
+            wsContainer.setMaxBinaryMessageSize(1024 * 1024);   // [ADDED] 스트리밍 업로드 프레임 최대 1MiB
             wsContainer.addMapping("/direction", (req, resp) -> new DirectionWebSocketEndpoint());
         });
 
@@ -35,9 +56,44 @@ public class DirectionWebSocketServer {
             }
         }), "/health");
 
+        // [ADDED] /img/{objectName} 이미지 프록시 (디스크 LRU 캐시, ETag/Range)
+        ImageProxyServlet imageProxy = new ImageProxyServlet();
+        context.addServlet(new ServletHolder(imageProxy), "/img/*");
+
+        // [ADDED] /stats 운영 지표 (격벽 한도/진행/거절, LLM 속도 제한, 캐시)
+        context.addServlet(new ServletHolder(new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("bulkheads", Bulkheads.stats());
+                m.put("llmRateLimit", RateLimiter.get().stats());
+                m.put("llm", OpenAIClient.stats());
+                m.put("router", ModelRouter.get().stats());
+                m.put("answerCache", AnswerCache.get().stats());
+                m.put("conversations", ConversationMemory.get().stats());
+                m.put("deadlines", Deadline.stats());
+                m.put("sessionCancel", ControlManager.cancelStats());
+                m.put("backlog", BacklogAnalyzer.get().status());
+                m.put("jobQueue", DurableJobQueue.get().stats());
+                m.put("firestoreSpool", WriteSpool.get().stats());
+                m.put("idempotency", IdempotencyTable.get().stats());
+                m.put("changeFeed", ChangeFeed.get().stats());
+                m.put("broker", TopicBroker.get().stats());
+                m.put("imageCache", imageProxy.cache().stats());
+                m.put("inlineImages", InlineImages.stats());
+                resp.setStatus(HttpServletResponse.SC_OK);
+                resp.setContentType("application/json;charset=UTF-8");
+                resp.getWriter().write(new Gson().toJson(m));
+            }
+        }), "/stats");
+
         server.setHandler(context);
 
         server.start();
+        ControlManager.registerJobHandlers();  // [ADDED] 내구성 작업 큐: 처리기 등록 후 로그 재생/재실행
+        DurableJobQueue.get().start();
+        ChangeFeed.get(); // [ADDED] robot/{id}/cap/new, ai/new 토픽 구독 감시 등록 (구독자가 생기면 리스너 시작)
+        InferenceProviders.get().warmUp(); // [MODIFIED] 추론 백엔드 선택 + 연결 미리 맺기 (비동기)
         System.out.println("WebSocket 서버 시작됨 (port: " + port + ")");
         server.join();
     }
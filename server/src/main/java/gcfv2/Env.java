@@ -0,0 +1,35 @@
+package gcfv2;
+
+/**
+ * [ADDED] 환경변수 설정값 읽기 (없거나 형식이 잘못되면 기본값)
+ */
+public final class Env {
+
+    private Env() {}
+
+    public static int getInt(String key, int def) {
+        try { return Integer.parseInt(System.getenv().getOrDefault(key, String.valueOf(def)).trim()); }
+        catch (Exception e) { return def; }
+    }
+
+    public static double getDouble(String key, double def) {
+        try { return Double.parseDouble(System.getenv().getOrDefault(key, String.valueOf(def)).trim()); }
+        catch (Exception e) { return def; }
+    }
+
+    /** [ADDED] on/off 스위치: on|true|1 → true, off|false|0 → false, 그 외/미설정 → 기본값 */
+    public static boolean getFlag(String key, boolean def) {
+        String v = System.getenv(key);
+        if (v == null) return def;
+        switch (v.trim().toLowerCase()) {
+            case "on": case "true": case "1": return true;
+            case "off": case "false": case "0": return false;
+            default: return def;
+        }
+    }
+
+    public static float getFloat(String key, float def) {
+        try { return Float.parseFloat(System.getenv().getOrDefault(key, String.valueOf(def)).trim()); }
+        catch (Exception e) { return def; }
+    }
+}
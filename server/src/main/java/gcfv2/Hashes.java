@@ -0,0 +1,31 @@
+package gcfv2;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * [ADDED] 해시/hex 공용 유틸 (캐시 키, 문서 ID, 내용 해시)
+ */
+public final class Hashes {
+
+    private Hashes() {}
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /** UTF-8 문자열의 SHA-256 (hex) */
+    public static String sha256Hex(String s) {
+        return toHex(sha256().digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static MessageDigest sha256() {
+        try { return MessageDigest.getInstance("SHA-256"); }
+        catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+}
@@ -0,0 +1,37 @@
+package gcfv2;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * [ADDED] 운영자 연결 판별 (일괄 분석 제어, 로봇 범위 밖 토픽 구독 등)
+ * - WS 접속 요청 헤더 X-Operator-Token 이 OPERATOR_TOKEN 과 같으면 운영자
+ * - OPERATOR_TOKEN 미설정이면 운영자 없음 (운영자 기능 전부 거절)
+ */
+public final class Operators {
+
+    public static final String HEADER = "X-Operator-Token";
+    private static final byte[] TOKEN = token();
+
+    private Operators() {}
+
+    public static boolean isOperator(Session s) {
+        return s != null && matches(s.getUpgradeRequest().getHeader(HEADER));
+    }
+
+    static boolean matches(String presented) {
+        if (TOKEN == null || presented == null) return false;
+        return MessageDigest.isEqual(TOKEN, presented.trim().getBytes(StandardCharsets.UTF_8)); // 시간 일정 비교
+    }
+
+    private static byte[] token() {
+        String t = System.getenv("OPERATOR_TOKEN");
+        if (t == null || t.isBlank()) {
+            System.out.println("[AUTH] OPERATOR_TOKEN 없음 → 운영자 기능 비활성");
+            return null;
+        }
+        return t.trim().getBytes(StandardCharsets.UTF_8);
+    }
+}
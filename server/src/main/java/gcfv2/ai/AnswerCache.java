@@ -0,0 +1,155 @@
+package gcfv2.ai;
+
+import gcfv2.Env;
+import gcfv2.Hashes;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 음성 질문 답변 캐시 + single-flight
+ * - [MODIFIED] 키: 정규화한 질문 + 대화 요약(롤링 요약 본문) 다이제스트
+ *   (최근 발화 전체를 넣으면 같은 질문도 거의 히트하지 않음 → 요약이 같으면 같은 답으로 간주, hitRate로 효과 확인)
+ * - TTL(ANSWER_CACHE_TTL_SEC, 300) / 최대 항목(ANSWER_CACHE_SIZE, 500), LRU 제거
+ * - 같은 키로 동시에 들어온 질문은 진행 중인 1건의 결과를 공유 (업스트림 호출 1회)
+ * - 실패한 호출은 캐시하지 않음
+ * - [ADDED] 반환된 future를 취소하면 대기자에서 빠지고, 마지막 대기자까지 빠지면 진행 중 호출(loader)도 취소
+ */
+public final class AnswerCache {
+
+    /** 답변 + 캐시에서 왔는지 여부(히트 또는 진행 중 호출 합류) */
+    public static final class Answer {
+        public final String text;
+        public final boolean cached;
+        public Answer(String text, boolean cached) { this.text = text; this.cached = cached; }
+    }
+
+    private static final AnswerCache INSTANCE = new AnswerCache(
+            Env.getInt("ANSWER_CACHE_SIZE", 500), Env.getInt("ANSWER_CACHE_TTL_SEC", 300) * 1000L);
+    public static AnswerCache get() { return INSTANCE; }
+
+    private static final class Entry {
+        final String text;
+        final long expiresAt;
+        Entry(String text, long expiresAt) { this.text = text; this.expiresAt = expiresAt; }
+    }
+
+    private final long ttlMs;
+    private final LinkedHashMap<String, Entry> lru;
+    /** 진행 중 호출 1건 + 기다리는 쪽 수 (0이 되면 호출 취소) */
+    private static final class Flight {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        volatile CompletableFuture<String> call;
+        private int waiters = 1;
+        private boolean abandoned = false;
+
+        synchronized boolean join() {
+            if (abandoned) return false;
+            waiters++;
+            return true;
+        }
+
+        /** 대기자 1명 이탈, 마지막이면 true */
+        synchronized boolean leave() {
+            if (--waiters > 0 || result.isDone()) return false;
+            abandoned = true;
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Flight> inflight = new ConcurrentHashMap<>();
+    private long hits = 0, joins = 0, misses = 0, abandoned = 0;
+
+    private AnswerCache(int capacity, long ttlMs) {
+        this.ttlMs = ttlMs;
+        this.lru = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** [MODIFIED] 캐시 키 (질문 정규화 + 대화 요약의 SHA-256, 요약이 없으면 빈 문자열) */
+    public static String key(String question, String summary) {
+        return normalize(question) + "|" + Hashes.sha256Hex(summary == null ? "" : summary);
+    }
+
+    /** 소문자, 공백 정리, 끝의 문장부호 제거 ("앞에 뭐가 있어?" == "앞에  뭐가 있어") */
+    static String normalize(String q) {
+        String s = q.toLowerCase(Locale.ROOT).trim().replaceAll("\\s+", " ");
+        return s.replaceAll("[\\s?!.,~。？！]+$", "");
+    }
+
+    /** 캐시 히트면 즉시, 진행 중이면 합류, 아니면 loader 1회 호출 */
+    public CompletableFuture<Answer> getOrLoad(String key, Supplier<CompletableFuture<String>> loader) {
+        synchronized (this) {
+            Entry e = lru.get(key);
+            if (e != null) {
+                if (e.expiresAt > System.currentTimeMillis()) {
+                    hits++;
+                    return CompletableFuture.completedFuture(new Answer(e.text, true));
+                }
+                lru.remove(key);
+            }
+        }
+
+        Flight mine = new Flight();
+        for (;;) {
+            Flight running = inflight.putIfAbsent(key, mine);
+            if (running == null) break;
+            if (running.join()) {
+                synchronized (this) { joins++; }
+                return watch(key, running, running.result.thenApply(t -> new Answer(t, true)));
+            }
+            inflight.remove(key, running); // 취소 중인 호출 → 새로 시작
+        }
+        synchronized (this) { misses++; }
+
+        CompletableFuture<String> call;
+        try {
+            call = loader.get();
+        } catch (RuntimeException ex) {
+            call = CompletableFuture.failedFuture(ex);
+        }
+        mine.call = call;
+        call.whenComplete((text, err) -> {
+            if (err == null && text != null && !text.isBlank()) {
+                synchronized (this) { lru.put(key, new Entry(text, System.currentTimeMillis() + ttlMs)); }
+            }
+            inflight.remove(key, mine);
+            if (err != null) mine.result.completeExceptionally(err);
+            else mine.result.complete(text);
+        });
+        return watch(key, mine, mine.result.thenApply(t -> new Answer(t, false)));
+    }
+
+    /** 대기자가 자기 future를 취소하면 이탈 처리, 마지막 대기자면 호출 취소 */
+    private CompletableFuture<Answer> watch(String key, Flight f, CompletableFuture<Answer> mine) {
+        mine.whenComplete((a, err) -> {
+            if (!mine.isCancelled() || !f.leave()) return;
+            inflight.remove(key, f);
+            synchronized (this) { abandoned++; }
+            CompletableFuture<String> c = f.call;
+            if (c != null) c.cancel(true);
+        });
+        return mine;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("entries", lru.size());
+        m.put("inflight", inflight.size());
+        m.put("hits", hits);
+        m.put("joins", joins);
+        m.put("misses", misses);
+        m.put("abandoned", abandoned);
+        long lookups = hits + joins + misses;
+        m.put("hitRate", lookups == 0 ? 0.0 : Math.round((hits + joins) * 1000.0 / lookups) / 1000.0); // [ADDED]
+        return m;
+    }
+}
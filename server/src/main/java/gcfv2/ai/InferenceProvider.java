@@ -0,0 +1,39 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 추론 백엔드 SPI (채팅/비전 호출)
+ * - 요청/응답 형식은 OpenAI Chat Completions JSON을 공통 형식으로 사용
+ *   (본문은 OpenAIClient.chatBody()로 조립, 응답은 OpenAIClient.contentOf()로 추출)
+ * - 구현 선택: AI_PROVIDER=openai(기본) | stub | 구현 클래스 FQCN (InferenceProviders 참고)
+ */
+public interface InferenceProvider {
+
+    /** 로그/통계용 이름 */
+    String name();
+
+    /** 텍스트(음성 질문) 응답 모델 */
+    String textModel();
+
+    /** 이미지 분석 모델 */
+    String visionModel();
+
+    /** 복잡한 질문용 상위 모델 (ModelRouter가 선택, 기본은 textModel과 동일 = 라우팅 없음) */
+    default String strongTextModel() { return textModel(); }
+
+    /** 복잡한 장면용 상위 비전 모델 */
+    default String strongVisionModel() { return visionModel(); }
+
+    /** 일반 호출 (deadline: System.nanoTime 기준, 대기열/재시도 포함 마감) */
+    CompletableFuture<JsonObject> chat(String bodyJson, long deadline);
+
+    /** 스트리밍 호출, 델타마다 onDelta, 완료 시 일반 호출과 같은 형태의 합본 */
+    CompletableFuture<JsonObject> chatStream(String bodyJson, Consumer<String> onDelta, long deadline);
+
+    /** 서버 시작 시 1회 (연결 미리 맺기 등), 기본은 아무것도 안 함 */
+    default void warmUp() {}
+}
@@ -0,0 +1,45 @@
+package gcfv2.ai;
+
+/**
+ * 설정(AI_PROVIDER)으로 추론 백엔드 선택 (JVM 전역 1개, 첫 사용 시 생성)
+ * - openai (기본): OpenAI 또는 OpenAI 호환 서버 (AI_BASE_URL, OPENAI_API_KEY, AI_MODEL, AI_VISION_MODEL)
+ * - stub: 내장 HTTP 스텁 서버를 띄우고 그쪽으로 호출 (네트워크 없이 용량 테스트)
+ * - 그 외 값: InferenceProvider 구현 클래스 FQCN (public 무인자 생성자)
+ */
+public final class InferenceProviders {
+
+    private static volatile InferenceProvider current;
+
+    private InferenceProviders() {}
+
+    public static InferenceProvider get() {
+        InferenceProvider p = current;
+        if (p == null) {
+            synchronized (InferenceProviders.class) {
+                p = current;
+                if (p == null) {
+                    p = create(System.getenv().getOrDefault("AI_PROVIDER", "openai").trim());
+                    System.out.println("[AI] provider=" + p.name()
+                            + " text=" + p.textModel() + " vision=" + p.visionModel());
+                    current = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    private static InferenceProvider create(String kind) {
+        switch (kind.toLowerCase()) {
+            case "openai":
+                return new OpenAIProvider();
+            case "stub":
+                return new StubInferenceProvider();
+            default:
+                try {
+                    return (InferenceProvider) Class.forName(kind).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalStateException("AI_PROVIDER 구현을 만들 수 없습니다: " + kind, e);
+                }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonObject;
+import gcfv2.Env;
+import gcfv2.limit.LatencyWindow;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * 요청 특성 + 모델별 실시간 지연/오류로 fast/strong 모델 선택
+ * - 텍스트: 질문 길이(AI_ROUTER_TEXT_COMPLEX_CHARS, 80) 또는 판단형 키워드가 있으면 strong
+ * - 비전: 축소 JPEG의 픽셀당 바이트(AI_ROUTER_SCENE_BPP, 0.25)가 크면(복잡한 장면) strong
+ * - 모델 상태: 지연/오류 EWMA, 오류율 AI_ROUTER_MAX_ERROR(0.3) 또는 지연 AI_ROUTER_{TEXT,VISION}_MAX_MS 초과면 저하
+ *   → 저하된 모델 대신 다른 모델 사용, AI_ROUTER_PROBE_SEC(30)마다 1건은 원래 모델로 보내 회복 확인
+ * - 호출 실패 시 다른 모델로 1회 대체 (스트리밍은 델타를 아직 안 보냈을 때만)
+ * - [ADDED] 반환된 future를 취소하면 진행 중인 시도(OpenAIClient 요청)까지 취소, 대체 호출도 하지 않음
+ * - 경로(text/fast 등)별 건수/오류/대체/지연/토큰/비용 집계 (AI_PRICES: 모델=입력/출력 USD per 1M tokens)
+ */
+public final class ModelRouter {
+
+    public enum Kind { TEXT, VISION }
+
+    /** 라우팅된 호출 결과 */
+    public static final class Routed {
+        public final JsonObject root;
+        public final String model;
+        public final String route;
+        public final boolean fallback;
+        Routed(JsonObject root, String model, String route, boolean fallback) {
+            this.root = root; this.model = model; this.route = route; this.fallback = fallback;
+        }
+    }
+
+    private static final int TEXT_COMPLEX_CHARS = Env.getInt("AI_ROUTER_TEXT_COMPLEX_CHARS", 80);
+    private static final double SCENE_BPP = Env.getDouble("AI_ROUTER_SCENE_BPP", 0.25);
+    private static final double MAX_ERROR = Env.getDouble("AI_ROUTER_MAX_ERROR", 0.3);
+    private static final long TEXT_MAX_MS = Env.getInt("AI_ROUTER_TEXT_MAX_MS", 8_000);
+    private static final long VISION_MAX_MS = Env.getInt("AI_ROUTER_VISION_MAX_MS", 15_000);
+    private static final long PROBE_NANOS = TimeUnit.SECONDS.toNanos(Env.getInt("AI_ROUTER_PROBE_SEC", 30));
+    private static final Pattern COMPLEX_WORDS = Pattern.compile("왜|원인|이유|비교|계획|분석|판단|순서|단계|어떻게 해야|대안");
+
+    private static final ModelRouter INSTANCE = new ModelRouter();
+    public static ModelRouter get() { return INSTANCE; }
+
+    /** 모델 1개의 상태 (텍스트/비전 공용) */
+    private static final class Health {
+        double ewmaMs = -1, ewmaErr = 0;
+        long samples = 0;
+        long lastUsed = System.nanoTime();
+
+        synchronized void record(long ms, boolean ok) {
+            if (ok) ewmaMs = ewmaMs < 0 ? ms : ewmaMs * 0.8 + ms * 0.2;
+            ewmaErr = ewmaErr * 0.8 + (ok ? 0 : 0.2);
+            samples++;
+        }
+
+        synchronized boolean degraded(long maxMs) {
+            return samples >= 5 && (ewmaErr > MAX_ERROR || ewmaMs > maxMs);
+        }
+
+        /** 저하 상태라도 오래 안 썼으면 시험 삼아 1건 허용 */
+        synchronized boolean dueForProbe() {
+            long now = System.nanoTime();
+            if (now - lastUsed < PROBE_NANOS) return false;
+            lastUsed = now;
+            return true;
+        }
+
+        synchronized void touch() { lastUsed = System.nanoTime(); }
+    }
+
+    /** 경로(kind/tier)별 집계 */
+    private static final class RouteStats {
+        long calls, errors, fallbacks, promptTokens, completionTokens;
+        double costUsd;
+        final LatencyWindow latency = new LatencyWindow(256);
+    }
+
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+    private final Map<String, RouteStats> routes = new ConcurrentHashMap<>();
+    private final Map<String, double[]> prices = parsePrices(System.getenv().getOrDefault("AI_PRICES",
+            "gpt-4o-mini=0.15/0.6,gpt-4o=2.5/10"));
+
+    private ModelRouter() {}
+
+    // ===== 요청 특성 =====
+
+    /** 긴 질문 또는 판단/계획형 질문이면 복잡 */
+    public static boolean complexText(String question) {
+        return question.length() > TEXT_COMPLEX_CHARS || COMPLEX_WORDS.matcher(question).find();
+    }
+
+    /** JPEG은 복잡한 장면일수록 덜 압축됨 → 픽셀당 바이트로 장면 복잡도 추정 */
+    public static boolean complexScene(int jpegBytes, int width, int height) {
+        if (width <= 0 || height <= 0) return false;
+        return (double) jpegBytes / ((long) width * height) > SCENE_BPP;
+    }
+
+    // ===== 호출 =====
+
+    /**
+     * 모델 선택 후 호출 (본문은 모델별로 조립), 실패 시 다른 모델로 1회 대체
+     * @param onDelta null이면 일반 호출, 아니면 스트리밍
+     */
+    public CompletableFuture<Routed> call(Kind kind, boolean complex, List<String> messages, double temperature,
+                                          Consumer<String> onDelta, long deadline) {
+        InferenceProvider ai = InferenceProviders.get();
+        String fast = kind == Kind.TEXT ? ai.textModel() : ai.visionModel();
+        String strong = kind == Kind.TEXT ? ai.strongTextModel() : ai.strongVisionModel();
+        long maxMs = kind == Kind.TEXT ? TEXT_MAX_MS : VISION_MAX_MS;
+
+        String preferred = complex ? strong : fast;
+        String alternate = complex ? fast : strong;
+        String model = preferred;
+        if (!preferred.equals(alternate) && health(preferred).degraded(maxMs)
+                && !health(alternate).degraded(maxMs) && !health(preferred).dueForProbe()) {
+            model = alternate;
+        }
+        String first = model;
+        String second = first.equals(preferred) ? alternate : preferred;
+
+        AtomicBoolean streamed = new AtomicBoolean(false);
+        Consumer<String> sink = onDelta == null ? null : d -> {
+            streamed.set(true);
+            onDelta.accept(d);
+        };
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        AtomicReference<CompletableFuture<?>> current = new AtomicReference<>();
+        CompletableFuture<Routed> out = attempt(ai, kind, first, fast, messages, temperature, sink, deadline, false, current)
+                .handle((r, err) -> {
+                    if (err == null) return CompletableFuture.completedFuture(r);
+                    Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                    boolean canFallback = !second.equals(first) && !streamed.get() && !cancelled.get()
+                            && !(cause instanceof CancellationException) && System.nanoTime() - deadline < 0;
+                    if (!canFallback) return CompletableFuture.<Routed>failedFuture(cause);
+                    System.err.println("[ROUTER] " + first + " failed (" + cause.getMessage() + "), fallback to " + second);
+                    return attempt(ai, kind, second, fast, messages, temperature, sink, deadline, true, current);
+                })
+                .thenCompose(f -> f);
+        out.whenComplete((r, err) -> {
+            if (!out.isCancelled()) return;
+            cancelled.set(true);
+            CompletableFuture<?> c = current.get();
+            if (c != null) c.cancel(true);
+        });
+        return out;
+    }
+
+    /** [ADDED] thenApply 등으로 이어 붙인 단계(out)가 취소되면 원 호출(upstream)도 취소 */
+    public static <T> CompletableFuture<T> cancelUpstream(CompletableFuture<T> out, CompletableFuture<?> upstream) {
+        out.whenComplete((r, err) -> {
+            if (out.isCancelled()) upstream.cancel(true);
+        });
+        return out;
+    }
+
+    private CompletableFuture<Routed> attempt(InferenceProvider ai, Kind kind, String model, String fastModel,
+                                              List<String> messages, double temperature, Consumer<String> onDelta,
+                                              long deadline, boolean fallback,
+                                              AtomicReference<CompletableFuture<?>> current) {
+        String route = kind.name().toLowerCase() + "/" + (model.equals(fastModel) ? "fast" : "strong");
+        RouteStats rs = routes.computeIfAbsent(route, k -> new RouteStats());
+        Health h = health(model);
+        h.touch();
+        synchronized (rs) {
+            rs.calls++;
+            if (fallback) rs.fallbacks++;
+        }
+        String body = OpenAIClient.chatBody(model, temperature, messages, onDelta != null);
+        long t0 = System.nanoTime();
+        CompletableFuture<JsonObject> call;
+        try {
+            call = onDelta != null ? ai.chatStream(body, onDelta, deadline) : ai.chat(body, deadline);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        current.set(call);
+        return call.handle((root, err) -> {
+            long ms = (System.nanoTime() - t0) / 1_000_000;
+            h.record(ms, err == null);
+            synchronized (rs) {
+                if (err != null) {
+                    rs.errors++;
+                } else {
+                    rs.latency.record(ms);
+                    addUsage(rs, model, root);
+                }
+            }
+            if (err != null) throw err instanceof CompletionException ? (CompletionException) err : new CompletionException(err);
+            return new Routed(root, model, route, fallback);
+        });
+    }
+
+    private Health health(String model) {
+        return health.computeIfAbsent(model, k -> new Health());
+    }
+
+    private void addUsage(RouteStats rs, String model, JsonObject root) {
+        if (root == null || !root.has("usage") || !root.get("usage").isJsonObject()) return;
+        JsonObject u = root.getAsJsonObject("usage");
+        long p = u.has("prompt_tokens") ? u.get("prompt_tokens").getAsLong() : 0;
+        long c = u.has("completion_tokens") ? u.get("completion_tokens").getAsLong() : 0;
+        rs.promptTokens += p;
+        rs.completionTokens += c;
+        double[] price = prices.get(model);
+        if (price != null) rs.costUsd += (p * price[0] + c * price[1]) / 1_000_000.0;
+    }
+
+    /** "model=in/out,model2=in/out" → {model: [in, out]} (USD per 1M tokens) */
+    private static Map<String, double[]> parsePrices(String spec) {
+        Map<String, double[]> m = new HashMap<>();
+        for (String item : spec.split(",")) {
+            String[] kv = item.trim().split("=");
+            if (kv.length != 2) continue;
+            String[] io = kv[1].split("/");
+            try {
+                m.put(kv[0].trim(), new double[]{ Double.parseDouble(io[0]), Double.parseDouble(io[1]) });
+            } catch (RuntimeException e) {
+                System.err.println("[ROUTER] bad price entry: " + item);
+            }
+        }
+        return m;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        Map<String, Object> r = new LinkedHashMap<>();
+        routes.forEach((k, rs) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            synchronized (rs) {
+                m.put("calls", rs.calls);
+                m.put("errors", rs.errors);
+                m.put("fallbacks", rs.fallbacks);
+                m.put("promptTokens", rs.promptTokens);
+                m.put("completionTokens", rs.completionTokens);
+                m.put("costUsd", Math.round(rs.costUsd * 10_000) / 10_000.0);
+            }
+            m.put("p50Ms", rs.latency.percentile(50));
+            m.put("p95Ms", rs.latency.percentile(95));
+            r.put(k, m);
+        });
+        Map<String, Object> hm = new LinkedHashMap<>();
+        health.forEach((k, h) -> {
+            synchronized (h) {
+                hm.put(k, Map.of("ewmaMs", Math.round(h.ewmaMs), "errorRate", Math.round(h.ewmaErr * 100) / 100.0));
+            }
+        });
+        out.put("routes", r);
+        out.put("models", hm);
+        return out;
+    }
+}
@@ -0,0 +1,600 @@
+package gcfv2.ai;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import gcfv2.Env;
+import gcfv2.limit.Bulkheads;
+import gcfv2.limit.CircuitBreaker;
+import gcfv2.limit.LatencyWindow;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * OpenAI Chat Completions (호환) 공용 비동기 클라이언트
+ * - JVM 전체에서 HttpClient 1개 공유 (HTTP/2 멀티플렉싱, 커넥션/TLS 재사용)
+ * - sendAsync 기반: 응답 대기 중 스레드를 점유하지 않고 CompletableFuture 반환
+ * - 고정 프롬프트(system 메시지 등)는 호출측에서 message()로 한 번만 직렬화해 두고 재사용
+ * - 연결/요청 타임아웃: AI_CONNECT_TIMEOUT_SEC(5), AI_REQUEST_TIMEOUT_SEC(60)
+ * - [ADDED] stream=true(SSE) 호출: 토큰 델타를 콜백으로 넘기고 최종 합본은 일반 응답과 같은 형태로 반환
+ * - [ADDED] 모든 호출은 RateLimiter(요청/토큰 버킷) 통과 후 전송, 429/5xx/연결 오류는
+ *   Retry-After를 존중하는 지터 백오프로 재시도 (AI_MAX_RETRIES, 마감 시각 안에서만)
+ * - [MODIFIED] 재시도/헤지/브레이커 설정은 Tuning(기본값은 환경변수), 테스트는 tune()으로 엔드포인트별 교체
+ * - [ADDED] 엔드포인트(chat / vision)별 서킷 브레이커: 5xx/연결 오류가 몰리면 일정 시간 즉시 실패 (AI_CB_*)
+ * - [ADDED] 헤지 요청(AI_HEDGE=on, 비스트리밍만): 최근 p95 지연이 지나도 응답이 없으면 같은 요청을 한 번 더 보내
+ *   먼저 온 2xx 응답을 쓰고 나머지는 취소 (AI_HEDGE_DELAY_MS / _PERCENTILE / _MIN_MS / _MIN_SAMPLES / _MAX_PERCENT)
+ * - [MODIFIED] 접속 대상(base URL, API 키)은 InferenceProvider가 시작 시 configure()로 지정
+ * - [ADDED] 마감(deadline)이 지난 요청은 전송하지 않고, 전송 시 HTTP 타임아웃도 남은 시간 이내로 제한
+ * - [MODIFIED] HttpRequest.timeout은 응답 헤더까지만 제한하므로, 본문(스트리밍 포함)까지 끝나지 않으면
+ *   마감 시각에 HttpTimeoutException으로 실패시키고 HTTP 교환을 취소 (재시도 없음, deadlineAborts)
+ * - [ADDED] 반환된 future를 cancel()하면 진행 중 sendAsync(헤지 포함)도 취소 → HTTP 교환 중단, 재시도 안 함
+ */
+public final class OpenAIClient {
+
+    private static final Gson GSON = new com.google.gson.GsonBuilder()
+        .disableHtmlEscaping()
+        .create();
+
+    // [MODIFIED] 기본 대상은 OpenAI, configure()로 교체 (OpenAI 호환 서버/로컬 스텁)
+    private static volatile URI chatUri = URI.create("https://api.openai.com/v1/chat/completions");
+    private static volatile URI modelsUri = URI.create("https://api.openai.com/v1/models");
+    private static volatile String apiKey = System.getenv("OPENAI_API_KEY");
+
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(Env.getInt("AI_REQUEST_TIMEOUT_SEC", 60));
+
+    // [ADDED] 재시도/대기 설정
+    private static final long BACKOFF_BASE_MS = Env.getInt("AI_BACKOFF_BASE_MS", 500);
+    private static final long BACKOFF_MAX_MS = Env.getInt("AI_BACKOFF_MAX_MS", 20_000);
+    private static final long QUEUE_DEADLINE_MS = Env.getInt("AI_QUEUE_DEADLINE_SEC", 60) * 1000L;
+    private static final int EST_OUTPUT_TOKENS = Env.getInt("AI_EST_OUTPUT_TOKENS", 400);
+    private static final AtomicLong RETRIES = new AtomicLong();
+    private static final AtomicLong CANCELLED = new AtomicLong();
+    private static final AtomicLong STREAM_ABORTS = new AtomicLong();
+    private static final AtomicLong DEADLINE_ABORTS = new AtomicLong();
+
+    /**
+     * [ADDED] 엔드포인트 설정 (기본값은 환경변수)
+     * - 재시도 AI_MAX_RETRIES / 헤지 AI_HEDGE(on|off), AI_HEDGE_DELAY_MS(> 0 이면 p95 대신 고정 지연),
+     *   _PERCENTILE, _MIN_MS, _MIN_SAMPLES, _MAX_PERCENT / 서킷 브레이커 AI_CB_*
+     */
+    static final class Tuning {
+        int maxRetries = Env.getInt("AI_MAX_RETRIES", 3);
+        boolean hedge = "on".equalsIgnoreCase(System.getenv().getOrDefault("AI_HEDGE", "off"));
+        long hedgeDelayMs = Env.getInt("AI_HEDGE_DELAY_MS", 0);
+        double hedgePercentile = Env.getInt("AI_HEDGE_PERCENTILE", 95);
+        long hedgeMinMs = Env.getInt("AI_HEDGE_MIN_MS", 200);
+        int hedgeMinSamples = Env.getInt("AI_HEDGE_MIN_SAMPLES", 20);
+        double hedgeMaxRatio = Env.getInt("AI_HEDGE_MAX_PERCENT", 10) / 100.0;
+        int cbWindow = Env.getInt("AI_CB_WINDOW", 20);
+        int cbMinCalls = Env.getInt("AI_CB_MIN_CALLS", 10);
+        double cbFailureRate = Env.getDouble("AI_CB_FAILURE_RATE", 0.5);
+        long cbOpenMs = Env.getInt("AI_CB_OPEN_MS", 30_000);
+        int cbProbes = Env.getInt("AI_CB_PROBES", 2);
+    }
+
+    private static volatile Endpoint chatEp = new Endpoint("chat", new Tuning());
+    private static volatile Endpoint visionEp = new Endpoint("vision", new Tuning());
+
+    /** [ADDED] 엔드포인트별 상태: 서킷 브레이커 + 성공 응답 지연 표본 + 헤지 집계 */
+    private static final class Endpoint {
+        final String name;
+        final Tuning tuning;
+        final CircuitBreaker breaker;
+        final LatencyWindow latency = new LatencyWindow(256);
+        final AtomicLong calls = new AtomicLong(), hedges = new AtomicLong(), hedgeWins = new AtomicLong(),
+                loserCancels = new AtomicLong();
+
+        Endpoint(String name, Tuning t) {
+            this.name = name;
+            this.tuning = t;
+            this.breaker = new CircuitBreaker("llm-" + name, t.cbWindow, t.cbMinCalls, t.cbFailureRate,
+                    t.cbOpenMs, t.cbProbes);
+        }
+
+        /** 헤지 지연(ms), 헤지하지 않을 경우 -1 */
+        long hedgeDelayMs() {
+            if (!tuning.hedge || breaker.state() != CircuitBreaker.State.CLOSED) return -1;
+            if (tuning.hedgeDelayMs > 0) return tuning.hedgeDelayMs;
+            if (latency.count() < tuning.hedgeMinSamples) return -1;
+            return Math.max(tuning.hedgeMinMs, latency.percentile(tuning.hedgePercentile));
+        }
+
+        /** 헤지 예산: 전체 호출의 hedgeMaxRatio 이내 */
+        boolean hedgeAllowed() {
+            return hedges.get() < Math.max(1, (long) (calls.get() * tuning.hedgeMaxRatio));
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("breaker", breaker.stats());
+            m.put("calls", calls.get());
+            m.put("hedges", hedges.get());
+            m.put("hedgeWins", hedgeWins.get());
+            m.put("hedgeLoserCancels", loserCancels.get()); // 승자가 나온 뒤 진행 중이던 상대 요청 취소
+            m.put("hedgeDelayMs", hedgeDelayMs());
+            m.put("p50Ms", latency.percentile(50));
+            m.put("p95Ms", latency.percentile(95));
+            return m;
+        }
+    }
+
+    /** [ADDED] 엔드포인트 설정 교체 (브레이커/지연 표본/집계도 새로 시작) - 테스트용 */
+    static void tune(Tuning chat, Tuning vision) {
+        chatEp = new Endpoint("chat", chat);
+        visionEp = new Endpoint("vision", vision);
+    }
+
+    private static Endpoint endpointOf(String bodyJson) {
+        return bodyJson.contains("\"image_url\"") ? visionEp : chatEp;
+    }
+
+    private static final HttpClient HTTP = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(Env.getInt("AI_CONNECT_TIMEOUT_SEC", 5)))
+            .build();
+
+    private OpenAIClient() {}
+
+    /** [ADDED] 접속 대상 지정 (baseUrl 예: https://api.openai.com/v1, http://127.0.0.1:18089/v1) */
+    public static void configure(String baseUrl, String key) {
+        String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        chatUri = URI.create(base + "/chat/completions");
+        modelsUri = URI.create(base + "/models");
+        apiKey = key;
+    }
+
+    /** 메시지 1개를 JSON으로 직렬화 (고정 프롬프트는 static 필드에 보관해 재사용) */
+    public static String message(String role, Object content) {
+        return GSON.toJson(Map.of("role", role, "content", content));
+    }
+
+    /** 직렬화된 메시지 조각들로 요청 본문 조립 (문자열 연결만 수행) */
+    public static String chatBody(String model, double temperature, List<String> messageJsons) {
+        return chatBody(model, temperature, messageJsons, false);
+    }
+
+    /** stream=true 이면 SSE 응답 + 마지막 이벤트에 usage 포함 요청 */
+    public static String chatBody(String model, double temperature, List<String> messageJsons, boolean stream) {
+        StringBuilder sb = new StringBuilder(256 + messageJsons.stream().mapToInt(String::length).sum());
+        sb.append("{\"model\":").append(GSON.toJson(model))
+          .append(",\"temperature\":").append(temperature);
+        if (stream) sb.append(",\"stream\":true,\"stream_options\":{\"include_usage\":true}");
+        sb.append(",\"messages\":[");
+        for (int i = 0; i < messageJsons.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(messageJsons.get(i));
+        }
+        return sb.append("]}").toString();
+    }
+
+    /** Chat Completions 호출 → 응답 루트 JSON */
+    public static CompletableFuture<JsonObject> chat(String bodyJson) {
+        return chat(bodyJson, defaultDeadline());
+    }
+
+    /** deadline(System.nanoTime 기준)까지 대기열/재시도 허용 */
+    public static CompletableFuture<JsonObject> chat(String bodyJson, long deadline) {
+        HttpRequest req;
+        try {
+            req = HttpRequest.newBuilder(chatUri)
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Authorization", "Bearer " + apiKey())
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
+                    .build();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        int est = RateLimiter.estimateTokens(bodyJson, EST_OUTPUT_TOKENS);
+        Endpoint ep = endpointOf(bodyJson);
+        ep.calls.incrementAndGet();
+        Attempt primary = new Attempt(true), hedge = new Attempt(true);
+        return cancelWith(hedged(ep, req, est, deadline, primary, hedge)
+                .thenApply(res -> {
+                    if (res.statusCode() / 100 != 2) {
+                        throw new RuntimeException("OpenAI 호출 실패: " + res.statusCode() + " " + res.body());
+                    }
+                    JsonObject root = GSON.fromJson(res.body(), JsonObject.class);
+                    RateLimiter.get().reconcile(est, totalTokens(root));
+                    return root;
+                }), primary, hedge);
+    }
+
+    /**
+     * [ADDED] 스트리밍 호출 (본문은 chatBody(..., true)로 만든 것)
+     * - 델타 텍스트마다 onDelta 호출 (HttpClient 스레드에서 실행되므로 가볍게 처리할 것)
+     * - 완료 시 {choices:[{message:{content:전체}}], usage:{...}} 형태로 반환 → contentOf() 그대로 사용
+     */
+    public static CompletableFuture<JsonObject> chatStream(String bodyJson, Consumer<String> onDelta) {
+        return chatStream(bodyJson, onDelta, defaultDeadline());
+    }
+
+    public static CompletableFuture<JsonObject> chatStream(String bodyJson, Consumer<String> onDelta, long deadline) {
+        HttpRequest req;
+        try {
+            req = HttpRequest.newBuilder(chatUri)
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Authorization", "Bearer " + apiKey())
+                    .header("Content-Type", "application/json")
+                    .header("Accept", "text/event-stream")
+                    .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
+                    .build();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // 재시도마다 새 파서, [MODIFIED] 델타를 하나라도 넘긴 뒤(본문 도중 연결 끊김 등)에는 재시도하지 않음
+        // (재시도하면 처음부터 다시 받아 같은 델타가 중복 전달됨)
+        int est = RateLimiter.estimateTokens(bodyJson, EST_OUTPUT_TOKENS);
+        Attempt a = new Attempt(false);
+        Supplier<HttpResponse.BodyHandler<SseSubscriber>> handler =
+                () -> HttpResponse.BodyHandlers.fromLineSubscriber(new SseSubscriber(onDelta, a), s -> s, null);
+        Endpoint ep = endpointOf(bodyJson);
+        ep.calls.incrementAndGet();
+        return cancelWith(send(ep, req, handler, est, deadline, 0, a)
+                .thenApply(res -> {
+                    if (res.statusCode() / 100 != 2) {
+                        throw new RuntimeException("OpenAI 호출 실패: " + res.statusCode() + " " + res.body().nonEventLines);
+                    }
+                    JsonObject root = res.body().result();
+                    RateLimiter.get().reconcile(est, totalTokens(root));
+                    return root;
+                }), a);
+    }
+
+    /** [ADDED] 호출측이 결과 future를 취소하면 진행 중 시도도 취소 (세션 종료 등) */
+    private static <T> CompletableFuture<T> cancelWith(CompletableFuture<T> out, Attempt... attempts) {
+        out.whenComplete((r, err) -> {
+            if (!out.isCancelled()) return;
+            CANCELLED.incrementAndGet();
+            for (Attempt a : attempts) a.cancel();
+        });
+        return out;
+    }
+
+    /**
+     * [ADDED] 헤지 요청: 첫 요청이 헤지 지연 안에 끝나지 않으면 두 번째 요청 발사
+     * - 먼저 도착한 2xx가 승자, 나머지는 sendAsync 취소(연결 스트림 중단)
+     * - 둘 다 실패하면 나중에 끝난 쪽의 응답/오류 반환
+     */
+    private static CompletableFuture<HttpResponse<String>> hedged(Endpoint ep, HttpRequest req, int est, long deadline,
+                                                                  Attempt primary, Attempt hedge) {
+        long delayMs = ep.hedgeDelayMs();
+        CompletableFuture<HttpResponse<String>> first =
+                send(ep, req, HttpResponse.BodyHandlers::ofString, est, deadline, 0, primary);
+        if (delayMs < 0) return first;
+
+        Race<String> race = new Race<>(primary, hedge);
+        first.whenComplete((r, e) -> race.settle(0, r, e, ep));
+        CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS).execute(() -> {
+            if (race.out.isDone() || !ep.hedgeAllowed() || !race.startHedge()) return;
+            ep.hedges.incrementAndGet();
+            System.out.println("[AI] hedge " + ep.name + " after " + delayMs + "ms");
+            send(ep, req, HttpResponse.BodyHandlers::ofString, est, deadline, 0, race.attempts[1])
+                    .whenComplete((r, e) -> race.settle(1, r, e, ep));
+        });
+        return race.out;
+    }
+
+    /** [ADDED] 요청 1건(재시도 포함)의 현재 sendAsync 핸들 - 헤지 패자/호출측 취소용 */
+    private static final class Attempt {
+        final boolean timed; // 성공 지연을 헤지 기준 표본으로 기록할지 (스트리밍 제외)
+        volatile boolean cancelled;
+        volatile boolean emitted; // [ADDED] 스트리밍 델타를 호출측에 넘김 (이후 재시도 금지)
+        volatile long startedAt;
+        private volatile CompletableFuture<?> inflight;
+
+        Attempt(boolean timed) { this.timed = timed; }
+
+        <R> CompletableFuture<R> start(Supplier<CompletableFuture<R>> call) {
+            if (cancelled) return CompletableFuture.failedFuture(new CancellationException("attempt cancelled"));
+            startedAt = System.nanoTime();
+            CompletableFuture<R> f = call.get();
+            inflight = f;
+            if (cancelled) f.cancel(true);
+            return f;
+        }
+
+        /** @return 진행 중이던 전송을 실제로 취소했는지 */
+        boolean cancel() {
+            cancelled = true;
+            CompletableFuture<?> f = inflight;
+            return f != null && f.cancel(true); // JDK 16+: 진행 중 HTTP 교환 중단
+        }
+    }
+
+    /** [ADDED] 원 요청 vs 헤지 요청 경주 */
+    private static final class Race<T> {
+        final CompletableFuture<HttpResponse<T>> out = new CompletableFuture<>();
+        final Attempt[] attempts;
+        private int running = 1;
+        private boolean settled;
+
+        Race(Attempt primary, Attempt hedge) { this.attempts = new Attempt[]{ primary, hedge }; }
+
+        synchronized boolean startHedge() {
+            if (out.isDone()) return false;
+            running++;
+            return true;
+        }
+
+        void settle(int idx, HttpResponse<T> res, Throwable err, Endpoint ep) {
+            boolean win = err == null && res.statusCode() / 100 == 2;
+            synchronized (this) {
+                running--;
+                if (settled || out.isDone() || (!win && running > 0)) return; // 상대가 아직 진행 중이면 기다림
+                settled = true;
+            }
+            if (win) {
+                // 집계를 먼저 반영한 뒤 완료 (호출측이 결과를 받은 시점에 stats가 일치하도록)
+                if (attempts[1 - idx].cancel()) ep.loserCancels.incrementAndGet();
+                if (idx == 1) ep.hedgeWins.incrementAndGet();
+                out.complete(res);
+            } else if (err != null) {
+                out.completeExceptionally(err);
+            } else {
+                out.complete(res);
+            }
+        }
+    }
+
+    /**
+     * [ADDED] 속도 제한 통과 → 전송 → 429/5xx/연결 오류면 백오프 후 재시도
+     * - 429는 전역 일시 정지(RateLimiter.pause)도 걸어 다른 요청도 함께 쉼
+     * - 다음 시도가 마감 시각을 넘기면 마지막 응답/오류를 그대로 반환
+     * - 서킷이 열려 있으면 보내지 않고 즉시 RejectedExecutionException
+     */
+    private static <T> CompletableFuture<HttpResponse<T>> send(Endpoint ep, HttpRequest req, Supplier<HttpResponse.BodyHandler<T>> handler,
+                                                               int estTokens, long deadline, int attempt, Attempt a) {
+        if (!ep.breaker.allow()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("LLM circuit open: " + ep.name));
+        }
+        AtomicBoolean dispatched = new AtomicBoolean();
+        return RateLimiter.get().acquire(estTokens, deadline)
+                .thenCompose(v -> refundUnsent(System.nanoTime() - deadline >= 0
+                        ? CompletableFuture.<HttpResponse<T>>failedFuture(new TimeoutException("LLM 요청 마감 초과(전송 전)"))
+                        : Bulkheads.LLM.callAsync(() -> a.start(() -> dispatch(req, handler.get(), deadline, dispatched)),
+                                r -> r.statusCode() == 429 || r.statusCode() >= 500), // [ADDED] LLM 격벽 (동시 실행 한도)
+                        estTokens, dispatched))
+                .handle((res, err) -> {
+                    Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                    if (a.cancelled) {
+                        ep.breaker.release();
+                        return CompletableFuture.<HttpResponse<T>>failedFuture(new CancellationException("attempt cancelled"));
+                    }
+                    recordOutcome(ep, a, res, cause);
+                    boolean retryable = (err != null)
+                            ? cause instanceof IOException && !(cause instanceof HttpTimeoutException)
+                            : res.statusCode() == 429 || res.statusCode() >= 500;
+                    if (retryable && a.emitted) STREAM_ABORTS.incrementAndGet(); // [ADDED] 이미 델타 전달 → 재시도 불가
+                    if (retryable && !a.emitted && attempt < ep.tuning.maxRetries) {
+                        long delayMs = backoffMs(attempt, res == null ? -1 : retryAfterMs(res));
+                        if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs) - deadline < 0) {
+                            if (res != null && res.statusCode() == 429) RateLimiter.get().pause(delayMs);
+                            RETRIES.incrementAndGet();
+                            System.err.println("[AI] retry #" + (attempt + 1) + " in " + delayMs + "ms ("
+                                    + (res != null ? "status=" + res.statusCode() : cause) + ")");
+                            return CompletableFuture
+                                    .runAsync(() -> {}, CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS))
+                                    .thenCompose(x -> send(ep, req, handler, estTokens, deadline, attempt + 1, a));
+                        }
+                    }
+                    return err != null
+                            ? CompletableFuture.<HttpResponse<T>>failedFuture(cause)
+                            : CompletableFuture.completedFuture(res);
+                })
+                .thenCompose(f -> f);
+    }
+
+    /** [ADDED] 속도 제한은 통과했지만 전송 전에 끝난 경우(격벽 거절/마감/취소) 버킷 몫 반환 */
+    private static <T> CompletableFuture<T> refundUnsent(CompletableFuture<T> f, int estTokens, AtomicBoolean dispatched) {
+        return f.whenComplete((r, err) -> {
+            if (err != null && !dispatched.get()) RateLimiter.get().refund(estTokens);
+        });
+    }
+
+    /**
+     * [ADDED] 남은 마감 시간으로 HTTP 타임아웃을 줄여 전송 (마감 지났으면 전송 안 함)
+     * [MODIFIED] 본문 수신까지 마감 적용: 남은 시간이 지나면 결과를 HttpTimeoutException으로 끝내고 sendAsync 취소,
+     * 결과 future를 취소해도 sendAsync 취소 (Attempt.cancel 경로)
+     */
+    private static <T> CompletableFuture<HttpResponse<T>> dispatch(HttpRequest req, HttpResponse.BodyHandler<T> handler,
+                                                                   long deadline, AtomicBoolean dispatched) {
+        long remain = deadline - System.nanoTime();
+        if (remain <= 0) return CompletableFuture.failedFuture(new TimeoutException("LLM 요청 마감 초과(전송 전)"));
+        dispatched.set(true);
+        HttpRequest bounded = remain >= REQUEST_TIMEOUT.toNanos() ? req
+                : HttpRequest.newBuilder(req, (name, value) -> true).timeout(Duration.ofNanos(remain)).build();
+        CompletableFuture<HttpResponse<T>> http = HTTP.sendAsync(bounded, handler);
+        CompletableFuture<HttpResponse<T>> out = new CompletableFuture<>();
+        http.whenComplete((res, err) -> {
+            if (err != null) out.completeExceptionally(err);
+            else out.complete(res);
+        });
+        CompletableFuture.delayedExecutor(remain, TimeUnit.NANOSECONDS).execute(() -> {
+            if (out.completeExceptionally(new HttpTimeoutException("LLM 응답 마감 초과(본문 수신 중)"))) {
+                DEADLINE_ABORTS.incrementAndGet();
+                http.cancel(true);
+            }
+        });
+        out.whenComplete((res, err) -> {
+            if (out.isCancelled()) http.cancel(true);
+        });
+        return out;
+    }
+
+    /** 서킷 브레이커 판정(5xx/연결·타임아웃 오류만 실패) + 성공 지연 표본 */
+    private static void recordOutcome(Endpoint ep, Attempt a, HttpResponse<?> res, Throwable cause) {
+        if (res != null) {
+            ep.breaker.record(res.statusCode() < 500);
+            if (a.timed && res.statusCode() / 100 == 2) {
+                ep.latency.record((System.nanoTime() - a.startedAt) / 1_000_000);
+            }
+        } else if (cause instanceof IOException) {
+            ep.breaker.record(false);
+        } else {
+            ep.breaker.release(); // 대기열 만료/격벽 거절 등은 업스트림 상태와 무관
+        }
+    }
+
+    /** 지터 포함 지수 백오프, 서버가 준 Retry-After가 더 길면 그 값 */
+    private static long backoffMs(int attempt, long retryAfterMs) {
+        long cap = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt, 16));
+        long jittered = cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+        return Math.max(jittered, retryAfterMs);
+    }
+
+    /** retry-after-ms / Retry-After(초) 헤더 → ms (없으면 -1) */
+    private static long retryAfterMs(HttpResponse<?> res) {
+        try {
+            var ms = res.headers().firstValue("retry-after-ms");
+            if (ms.isPresent()) return (long) Double.parseDouble(ms.get());
+            var sec = res.headers().firstValue("retry-after");
+            if (sec.isPresent()) return (long) (Double.parseDouble(sec.get()) * 1000);
+        } catch (NumberFormatException ignore) {
+            // HTTP-date 형식은 무시하고 지수 백오프 사용
+        }
+        return -1;
+    }
+
+    private static int totalTokens(JsonObject root) {
+        try {
+            return root.getAsJsonObject("usage").get("total_tokens").getAsInt();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static long defaultDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUEUE_DEADLINE_MS);
+    }
+
+    public static long retries() { return RETRIES.get(); }
+
+    /** [ADDED] /stats 용: 재시도 수 + 엔드포인트별 브레이커/헤지/지연 */
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("retries", RETRIES.get());
+        m.put("cancelled", CANCELLED.get());
+        m.put("streamAborts", STREAM_ABORTS.get()); // [ADDED] 델타 전달 후 끊겨 재시도하지 않은 스트림
+        m.put("deadlineAborts", DEADLINE_ABORTS.get()); // [ADDED] 본문 수신 중 마감 초과로 끊은 교환
+        Endpoint chat = chatEp, vision = visionEp;
+        m.put("hedging", chat.tuning.hedge || vision.tuning.hedge);
+        m.put(chat.name, chat.stats());
+        m.put(vision.name, vision.stats());
+        return m;
+    }
+
+    /** SSE 라인 파서: "data: {...}" 의 choices[0].delta.content 를 누적 */
+    private static final class SseSubscriber implements Flow.Subscriber<String> {
+        private final Consumer<String> onDelta;
+        private final Attempt attempt;
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder nonEventLines = new StringBuilder(); // 오류 응답 본문 등
+        private JsonObject usage;
+
+        SseSubscriber(Consumer<String> onDelta, Attempt attempt) {
+            this.onDelta = onDelta;
+            this.attempt = attempt;
+        }
+
+        @Override public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+        @Override public void onError(Throwable t) {}
+        @Override public void onComplete() {}
+
+        @Override
+        public void onNext(String line) {
+            if (!line.startsWith("data:")) {
+                if (!line.isBlank() && nonEventLines.length() < 4096) nonEventLines.append(line);
+                return;
+            }
+            String data = line.substring(5).trim();
+            if (data.isEmpty() || "[DONE]".equals(data)) return;
+            try {
+                JsonObject ev = GSON.fromJson(data, JsonObject.class);
+                if (ev.has("usage") && ev.get("usage").isJsonObject()) usage = ev.getAsJsonObject("usage");
+                JsonArray choices = ev.has("choices") ? ev.getAsJsonArray("choices") : null;
+                if (choices == null || choices.size() == 0) return;
+                JsonObject delta = choices.get(0).getAsJsonObject().getAsJsonObject("delta");
+                if (delta == null || !delta.has("content") || delta.get("content").isJsonNull()) return;
+                String piece = delta.get("content").getAsString();
+                if (piece.isEmpty()) return;
+                text.append(piece);
+                attempt.emitted = true;
+                try { onDelta.accept(piece); } catch (Exception e) { System.err.println("[AI] delta sink failed: " + e.getMessage()); }
+            } catch (Exception e) {
+                System.err.println("[AI] bad SSE event: " + e.getMessage());
+            }
+        }
+
+        JsonObject result() {
+            JsonObject message = new JsonObject();
+            message.addProperty("role", "assistant");
+            message.addProperty("content", text.toString());
+            JsonObject choice = new JsonObject();
+            choice.add("message", message);
+            JsonArray choices = new JsonArray();
+            choices.add(choice);
+            JsonObject root = new JsonObject();
+            root.add("choices", choices);
+            if (usage != null) root.add("usage", usage);
+            return root;
+        }
+    }
+
+    /** choices[0].message.content 추출 */
+    public static String contentOf(JsonObject root) {
+        try {
+            return root.getAsJsonArray("choices")
+                    .get(0).getAsJsonObject()
+                    .getAsJsonObject("message")
+                    .get("content").getAsString();
+        } catch (Exception e) {
+            throw new RuntimeException("OpenAI 응답 파싱 실패: " + e.getMessage() + " / body=" + root);
+        }
+    }
+
+    /** 서버 시작 시 1회: TLS/HTTP2 연결을 미리 맺어 첫 질문의 핸드셰이크 지연 제거 */
+    public static void warmUp() {
+        String key = apiKey;
+        if (key == null || key.isBlank()) return;
+        HttpRequest req = HttpRequest.newBuilder(modelsUri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Authorization", "Bearer " + key)
+                .GET()
+                .build();
+        long t0 = System.nanoTime();
+        HTTP.sendAsync(req, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((res, err) -> System.out.println("[AI] warm-up "
+                        + (err == null ? "status=" + res.statusCode() + " " + res.version() : "failed: " + err.getMessage())
+                        + " in " + (System.nanoTime() - t0) / 1_000_000 + "ms"));
+    }
+
+    private static String apiKey() {
+        String key = apiKey;
+        if (key == null || key.isBlank()) {
+            throw new IllegalStateException("OPENAI_API_KEY 환경변수가 필요합니다.");
+        }
+        return key;
+    }
+}
@@ -0,0 +1,54 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * OpenAI (또는 OpenAI 호환 서버) 백엔드
+ * - AI_BASE_URL (기본 https://api.openai.com/v1), 키는 OPENAI_API_KEY
+ * - AI_MODEL (기본 gpt-4o-mini), AI_VISION_MODEL (기본 AI_MODEL)
+ * - 상위 모델(opt-in): AI_STRONG_MODEL (기본 AI_MODEL), AI_STRONG_VISION_MODEL (기본 AI_STRONG_MODEL, 없으면 AI_VISION_MODEL)
+ *   [MODIFIED] 지정하지 않으면 strong = fast 와 같은 모델 → 라우팅해도 비싼 모델로 가지 않음
+ */
+public class OpenAIProvider implements InferenceProvider {
+
+    private final String textModel;
+    private final String visionModel;
+    private final String strongTextModel;
+    private final String strongVisionModel;
+
+    public OpenAIProvider() {
+        OpenAIClient.configure(
+                System.getenv().getOrDefault("AI_BASE_URL", "https://api.openai.com/v1"),
+                System.getenv("OPENAI_API_KEY"));
+        this.textModel = System.getenv().getOrDefault("AI_MODEL", "gpt-4o-mini");
+        this.visionModel = System.getenv().getOrDefault("AI_VISION_MODEL", textModel);
+        String strong = System.getenv("AI_STRONG_MODEL");
+        this.strongTextModel = strong != null && !strong.isBlank() ? strong : textModel;
+        this.strongVisionModel = System.getenv().getOrDefault("AI_STRONG_VISION_MODEL",
+                strong != null && !strong.isBlank() ? strong : visionModel);
+    }
+
+    @Override public String name() { return "openai"; }
+    @Override public String textModel() { return textModel; }
+    @Override public String visionModel() { return visionModel; }
+    @Override public String strongTextModel() { return strongTextModel; }
+    @Override public String strongVisionModel() { return strongVisionModel; }
+
+    @Override
+    public CompletableFuture<JsonObject> chat(String bodyJson, long deadline) {
+        return OpenAIClient.chat(bodyJson, deadline);
+    }
+
+    @Override
+    public CompletableFuture<JsonObject> chatStream(String bodyJson, Consumer<String> onDelta, long deadline) {
+        return OpenAIClient.chatStream(bodyJson, onDelta, deadline);
+    }
+
+    @Override
+    public void warmUp() {
+        OpenAIClient.warmUp();
+    }
+}
@@ -0,0 +1,215 @@
+package gcfv2.ai;
+
+import gcfv2.Env;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * LLM 호출 전역 속도 제한 (요청 수 + 토큰 수 토큰버킷 2개)
+ * - 한도: AI_RPM(분당 요청, 500) / AI_TPM(분당 토큰, 200000), 버킷 용량 = 분당 한도
+ * - 한도 초과 요청은 실패시키지 않고 FIFO 대기열에 넣고, 버킷이 차는 시점에 순서대로 통과
+ * - 대기열 항목마다 마감 시각이 있어 넘기면 TimeoutException으로 실패
+ * - 429 응답 시 pause()로 전체 통과를 잠시 멈춤 (Retry-After 존중)
+ * - 토큰은 요청 전 추정치로 차감하고, 응답 usage로 차액 보정(reconcile)
+ * - [ADDED] 통과 후 실제로 보내지 못한 요청(격벽 거절, 마감 초과, 취소)은 refund()로 몫 반환
+ */
+public final class RateLimiter {
+
+    private static final RateLimiter INSTANCE = new RateLimiter(
+            Env.getInt("AI_RPM", 500),
+            Env.getInt("AI_TPM", 200000));
+    public static RateLimiter get() { return INSTANCE; }
+
+    /** 분당 한도 기반 토큰버킷 (음수 = 보정으로 생긴 빚) */
+    private static final class Bucket {
+        final double capacity;
+        final double perNano;
+        double level;
+        long last = System.nanoTime();
+
+        Bucket(double perMinute) {
+            this.capacity = perMinute;
+            this.perNano = perMinute / TimeUnit.MINUTES.toNanos(1);
+            this.level = perMinute;
+        }
+        void refill(long now) {
+            level = Math.min(capacity, level + (now - last) * perNano);
+            last = now;
+        }
+        long nanosUntil(double n) {
+            return level >= n ? 0 : (long) Math.ceil((n - level) / perNano);
+        }
+    }
+
+    private static final class Pending {
+        final int tokens;
+        final long deadline;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        Pending(int tokens, long deadline) { this.tokens = tokens; this.deadline = deadline; }
+    }
+
+    private final Bucket requests;
+    private final Bucket tokens;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ai-rate-limiter");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpAt = Long.MAX_VALUE;
+    private long pausedUntil = 0;
+    private long admitted = 0, queuedTotal = 0, expired = 0, pauses = 0, refunds = 0;
+
+    private RateLimiter(int rpm, int tpm) {
+        this.requests = new Bucket(rpm);
+        this.tokens = new Bucket(tpm);
+    }
+
+    /** 추정 토큰만큼 통과 허가 요청 (deadline: System.nanoTime() 기준) */
+    public CompletableFuture<Void> acquire(int estTokens, long deadline) {
+        int n = (int) Math.min(Math.max(1, estTokens), tokens.capacity);
+        List<Pending> ready;
+        Pending p = new Pending(n, deadline);
+        synchronized (this) {
+            queue.addLast(p);
+            if (queue.size() > 1) queuedTotal++;
+            ready = drainLocked();
+        }
+        complete(ready);
+        return p.future;
+    }
+
+    /** [ADDED] acquire()로 통과했지만 전송하지 않은 요청의 요청 1개 + 추정 토큰 반환 (대기열도 다시 확인) */
+    public void refund(int estTokens) {
+        int n = (int) Math.min(Math.max(1, estTokens), tokens.capacity);
+        List<Pending> ready;
+        synchronized (this) {
+            long now = System.nanoTime();
+            requests.refill(now);
+            tokens.refill(now);
+            requests.level = Math.min(requests.capacity, requests.level + 1);
+            tokens.level = Math.min(tokens.capacity, tokens.level + n);
+            refunds++;
+            ready = drainLocked();
+        }
+        complete(ready);
+    }
+
+    /** 실제 사용량으로 토큰 버킷 보정 */
+    public synchronized void reconcile(int estimated, int actual) {
+        if (actual <= 0) return;
+        tokens.refill(System.nanoTime());
+        tokens.level -= (actual - Math.min(estimated, (int) tokens.capacity));
+    }
+
+    /** 429 수신 시 전체 통과 일시 정지 */
+    public void pause(long millis) {
+        synchronized (this) {
+            pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+            pauses++;
+            schedule(pausedUntil);
+        }
+    }
+
+    private List<Pending> drainLocked() {
+        List<Pending> out = new ArrayList<>();
+        long now = System.nanoTime();
+        requests.refill(now);
+        tokens.refill(now);
+        queue.removeIf(p -> {
+            if (p.deadline - now > 0) return false;
+            expired++;
+            p.future.completeExceptionally(new TimeoutException("LLM 요청 대기 시간 초과(rate limit)"));
+            return true;
+        });
+        while (!queue.isEmpty()) {
+            Pending head = queue.peekFirst();
+            if (pausedUntil - now > 0) {
+                schedule(pausedUntil);
+                break;
+            }
+            long wait = Math.max(requests.nanosUntil(1), tokens.nanosUntil(head.tokens));
+            if (wait > 0) {
+                schedule(Math.min(now + wait, earliestDeadline()));
+                break;
+            }
+            requests.level -= 1;
+            tokens.level -= head.tokens;
+            queue.pollFirst();
+            admitted++;
+            out.add(head);
+        }
+        return out;
+    }
+
+    private long earliestDeadline() {
+        long min = Long.MAX_VALUE;
+        for (Pending p : queue) min = Math.min(min, p.deadline);
+        return min;
+    }
+
+    private void schedule(long at) {
+        if (wakeUp != null && !wakeUp.isDone() && wakeUpAt <= at) return;
+        if (wakeUp != null) wakeUp.cancel(false);
+        wakeUpAt = at;
+        wakeUp = timer.schedule(this::onWakeUp, Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void onWakeUp() {
+        List<Pending> ready;
+        synchronized (this) {
+            wakeUp = null;
+            wakeUpAt = Long.MAX_VALUE;
+            ready = drainLocked();
+        }
+        complete(ready);
+    }
+
+    private static void complete(List<Pending> ready) {
+        for (Pending p : ready) p.future.complete(null);
+    }
+
+    /** 요청 본문 기준 대략적 토큰 추정: ASCII 4자당 1, 그 외(한글 등) 1자당 1, 이미지 1장당 고정치 + 응답 여유분 */
+    public static int estimateTokens(String bodyJson, int expectedOutput) {
+        int ascii = 0, other = 0, images = 0;
+        int i = 0, len = bodyJson.length();
+        while (i < len) {
+            if (bodyJson.startsWith("data:image/", i)) { // base64 본문은 이미지 고정치로 대체
+                int end = bodyJson.indexOf('"', i);
+                i = end < 0 ? len : end;
+                continue;
+            }
+            if (bodyJson.startsWith("\"image_url\":", i)) images++;
+            char c = bodyJson.charAt(i++);
+            if (c < 128) ascii++; else other++;
+        }
+        return ascii / 4 + other + images * 800 + expectedOutput;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        requests.refill(now);
+        tokens.refill(now);
+        m.put("queued", queue.size());
+        m.put("requestTokens", (long) requests.level);
+        m.put("tokenTokens", (long) tokens.level);
+        m.put("admitted", admitted);
+        m.put("queuedTotal", queuedTotal);
+        m.put("expired", expired);
+        m.put("pauses", pauses);
+        m.put("refunds", refunds);
+        return m;
+    }
+}
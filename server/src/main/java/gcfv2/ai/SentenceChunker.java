@@ -0,0 +1,50 @@
+package gcfv2.ai;
+
+import java.util.function.Consumer;
+
+/**
+ * 스트리밍 델타를 문장 단위로 묶어 내보내기 (TTS가 문장 단위로 바로 읽을 수 있게)
+ * - 종결 부호(. ? ! 。 줄바꿈) 뒤에서 끊음, 숫자 사이 마침표(3.5)는 끊지 않음
+ * - flush()로 남은 꼬리 문장 배출
+ * - 한 스트림 안에서 순차 호출 전제 (스레드 안전하지 않음)
+ */
+public final class SentenceChunker implements Consumer<String> {
+
+    private final Consumer<String> sink;
+    private final StringBuilder buf = new StringBuilder();
+
+    public SentenceChunker(Consumer<String> sink) { this.sink = sink; }
+
+    @Override
+    public void accept(String piece) {
+        buf.append(piece);
+        int cut = lastBoundary();
+        if (cut > 0) {
+            emit(buf.substring(0, cut));
+            buf.delete(0, cut);
+        }
+    }
+
+    public void flush() {
+        if (buf.length() > 0) emit(buf.toString());
+        buf.setLength(0);
+    }
+
+    /** 마지막 문장 경계 다음 위치 (없으면 0). 경계 뒤 글자가 아직 안 왔으면 판단 보류 */
+    private int lastBoundary() {
+        int cut = 0;
+        for (int i = 0; i < buf.length() - 1; i++) {
+            char c = buf.charAt(i);
+            char next = buf.charAt(i + 1);
+            boolean end = c == '\n' || c == '?' || c == '!' || c == '。'
+                    || (c == '.' && !Character.isDigit(next));
+            if (end && (c == '\n' || Character.isWhitespace(next))) cut = i + 1;
+        }
+        return cut;
+    }
+
+    private void emit(String s) {
+        String t = s.trim();
+        if (!t.isEmpty()) sink.accept(t);
+    }
+}
@@ -0,0 +1,42 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 로컬 스텁 백엔드 (AI_PROVIDER=stub)
+ * - 프로세스 안에 StubInferenceServer를 띄우고 OpenAIClient를 그쪽으로 연결
+ * - 속도 제한/격벽/재시도/헤지 등 실제 호출 경로를 그대로 거치므로 용량 테스트에 사용
+ */
+public class StubInferenceProvider implements InferenceProvider {
+
+    private final StubInferenceServer server;
+
+    public StubInferenceProvider() {
+        try {
+            this.server = StubInferenceServer.start(
+                    Integer.parseInt(System.getenv().getOrDefault("AI_STUB_PORT", "0")));
+        } catch (Exception e) {
+            throw new IllegalStateException("스텁 추론 서버 시작 실패: " + e.getMessage(), e);
+        }
+        OpenAIClient.configure(server.baseUrl(), "stub-key");
+    }
+
+    @Override public String name() { return "stub"; }
+    @Override public String textModel() { return "stub-text"; }
+    @Override public String visionModel() { return "stub-vision"; }
+    @Override public String strongTextModel() { return "stub-text-strong"; }
+    @Override public String strongVisionModel() { return "stub-vision-strong"; }
+
+    @Override
+    public CompletableFuture<JsonObject> chat(String bodyJson, long deadline) {
+        return OpenAIClient.chat(bodyJson, deadline);
+    }
+
+    @Override
+    public CompletableFuture<JsonObject> chatStream(String bodyJson, Consumer<String> onDelta, long deadline) {
+        return OpenAIClient.chatStream(bodyJson, onDelta, deadline);
+    }
+}
@@ -0,0 +1,331 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * OpenAI 호환 로컬 스텁 서버 (com.sun.net.httpserver, 127.0.0.1)
+ * - POST /v1/chat/completions: 지연 분포에 따라 기다린 뒤 고정 답변 (stream=true면 SSE로 단어 단위 전송)
+ * - GET /v1/models: warm-up용 빈 목록
+ * - 지연: AI_STUB_LATENCY(텍스트, 기본 lognormal:400:0.5) / AI_STUB_VISION_LATENCY(기본 lognormal:1200:0.5)
+ *   형식 fixed:ms | uniform:min:max | exp:mean | lognormal:median:sigma
+ *   | [ADDED] cycle:ms1:ms2:... (도착 순서대로 돌아가며 사용, 헤지 등 결정적 시나리오용)
+ * - 모델명에 "strong"이 들어가면 지연 × AI_STUB_STRONG_FACTOR(2.0) (라우팅 테스트용)
+ * - 스트리밍 토큰 간격 AI_STUB_TOKEN_MS(15), 오류 주입 AI_STUB_ERROR_RATE(500) / AI_STUB_429_RATE(429)
+ * - 결정적: 난수는 AI_STUB_SEED(42)에서 도착 순서대로 분기, 답변은 요청 본문 해시로 선택
+ * - 답변 목록 AI_STUB_ANSWERS_FILE (한 줄에 하나, "vision:" 접두어는 이미지 분석용)
+ * - [ADDED] 이미지가 여러 장인 요청(백로그 묶음 분석)은 [{"index":n,"result":...}] JSON 배열로 답변
+ * - 단독 실행: java gcfv2.ai.StubInferenceServer (AI_STUB_PORT, 기본 18089)
+ * - [ADDED] 테스트는 inject()로 실행 중 지연 분포/오류율 교체, dropStreams()로 스트리밍 도중 연결 끊기
+ */
+public final class StubInferenceServer {
+
+    private static final Pattern MODEL = Pattern.compile("\"model\":\"([^\"]*)\"");
+    private static final Pattern IMAGE_PART = Pattern.compile("\"type\":\"image_url\"");
+
+    /** 지연 분포 (ms) */
+    static final class Latency {
+        final String kind;
+        final double a, b;
+        final long[] cycle;
+        private final AtomicLong next = new AtomicLong();
+
+        Latency(String kind, double a, double b) { this(kind, a, b, null); }
+
+        Latency(String kind, double a, double b, long[] cycle) {
+            this.kind = kind; this.a = a; this.b = b; this.cycle = cycle;
+        }
+
+        static Latency parse(String spec) {
+            String[] p = spec.trim().split(":");
+            try {
+                switch (p[0]) {
+                    case "fixed":     return new Latency("fixed", Double.parseDouble(p[1]), 0);
+                    case "uniform":   return new Latency("uniform", Double.parseDouble(p[1]), Double.parseDouble(p[2]));
+                    case "exp":       return new Latency("exp", Double.parseDouble(p[1]), 0);
+                    case "lognormal": return new Latency("lognormal", Double.parseDouble(p[1]), Double.parseDouble(p[2]));
+                    case "cycle": {
+                        if (p.length < 2) break;
+                        long[] ms = new long[p.length - 1];
+                        for (int i = 1; i < p.length; i++) ms[i - 1] = Long.parseLong(p[i]);
+                        return new Latency("cycle", 0, 0, ms);
+                    }
+                    default: break;
+                }
+            } catch (RuntimeException ignore) {
+                // 아래 예외로 통일
+            }
+            throw new IllegalArgumentException("잘못된 지연 분포: " + spec);
+        }
+
+        long sample(SplittableRandom r) {
+            double ms;
+            switch (kind) {
+                case "uniform":   ms = a + r.nextDouble() * (b - a); break;
+                case "exp":       ms = -a * Math.log(1 - r.nextDouble()); break;
+                case "lognormal": ms = a * Math.exp(b * gaussian(r)); break;
+                case "cycle":     ms = cycle[(int) Math.floorMod(next.getAndIncrement(), (long) cycle.length)]; break;
+                default:          ms = a;
+            }
+            return Math.max(0, Math.round(ms));
+        }
+
+        private static double gaussian(SplittableRandom r) {
+            double u = 1 - r.nextDouble(), v = r.nextDouble();
+            return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+        }
+    }
+
+    private final HttpServer http;
+    private final ExecutorService pool;
+    private final SplittableRandom seedRandom;
+    private volatile Latency textLatency, visionLatency;
+    private final long tokenMs;
+    private final double strongFactor;
+    private volatile double errorRate;
+    private final double throttleRate;
+    private final List<String> textAnswers = new ArrayList<>();
+    private final List<String> visionAnswers = new ArrayList<>();
+    private final AtomicLong requests = new AtomicLong(), injected = new AtomicLong();
+    private final AtomicInteger dropStreams = new AtomicInteger();
+    private volatile int dropAfterTokens;
+
+    private StubInferenceServer(int port) throws IOException {
+        this.seedRandom = new SplittableRandom(Long.parseLong(System.getenv().getOrDefault("AI_STUB_SEED", "42")));
+        this.textLatency = Latency.parse(System.getenv().getOrDefault("AI_STUB_LATENCY", "lognormal:400:0.5"));
+        this.visionLatency = Latency.parse(System.getenv().getOrDefault("AI_STUB_VISION_LATENCY", "lognormal:1200:0.5"));
+        this.tokenMs = Long.parseLong(System.getenv().getOrDefault("AI_STUB_TOKEN_MS", "15"));
+        this.strongFactor = Double.parseDouble(System.getenv().getOrDefault("AI_STUB_STRONG_FACTOR", "2.0"));
+        this.errorRate = Double.parseDouble(System.getenv().getOrDefault("AI_STUB_ERROR_RATE", "0"));
+        this.throttleRate = Double.parseDouble(System.getenv().getOrDefault("AI_STUB_429_RATE", "0"));
+        loadAnswers(System.getenv("AI_STUB_ANSWERS_FILE"));
+
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ai-stub");
+            t.setDaemon(true);
+            return t;
+        });
+        this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.setExecutor(pool);
+        http.createContext("/v1/chat/completions", this::handleChat);
+        http.createContext("/v1/models", ex -> respond(ex, 200, "application/json", "{\"object\":\"list\",\"data\":[]}"));
+    }
+
+    public static StubInferenceServer start(int port) throws IOException {
+        StubInferenceServer s = new StubInferenceServer(port);
+        s.http.start();
+        System.out.println("[AI-STUB] listening on " + s.baseUrl()
+                + " text=" + s.textLatency.kind + " vision=" + s.visionLatency.kind);
+        return s;
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + http.getAddress().getPort() + "/v1";
+    }
+
+    /** [ADDED] 실행 중 지연 분포(null이면 유지)/500 오류율 교체 (테스트용) */
+    void inject(String textLatencySpec, String visionLatencySpec, double errorRate) {
+        if (textLatencySpec != null) this.textLatency = Latency.parse(textLatencySpec);
+        if (visionLatencySpec != null) this.visionLatency = Latency.parse(visionLatencySpec);
+        this.errorRate = errorRate;
+    }
+
+    /** [ADDED] 다음 count건의 스트리밍 응답은 델타 afterTokens개를 보낸 뒤 본문 도중 연결을 끊음 (테스트용) */
+    void dropStreams(int count, int afterTokens) {
+        this.dropAfterTokens = afterTokens;
+        this.dropStreams.set(count);
+    }
+
+    public void stop() {
+        http.stop(0);
+        pool.shutdownNow();
+    }
+
+    private void loadAnswers(String file) {
+        if (file != null && !file.isBlank()) {
+            try {
+                for (String line : Files.readAllLines(Path.of(file), StandardCharsets.UTF_8)) {
+                    if (line.isBlank()) continue;
+                    if (line.startsWith("vision:")) visionAnswers.add(line.substring(7).trim());
+                    else textAnswers.add(line.trim());
+                }
+            } catch (IOException e) {
+                System.err.println("[AI-STUB] answers file read failed: " + e.getMessage());
+            }
+        }
+        if (textAnswers.isEmpty()) {
+            textAnswers.add("전방 배수로에 이물질이 보입니다. 전선이나 날카로운 물체가 없는지 먼저 확인하고 저속으로 접근해 분사부터 진행하세요.");
+        }
+        if (visionAnswers.isEmpty()) {
+            visionAnswers.add("사진 중앙에 낙엽과 비닐이 쌓여 있고 물 고임이 있습니다. 감전 위험 요소는 보이지 않습니다. 분사로 먼저 정리한 뒤 파쇄를 진행하고 미끄럼에 주의해 저속 주행하세요.");
+        }
+    }
+
+    private void handleChat(HttpExchange ex) throws IOException {
+        try {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                respond(ex, 405, "application/json", "{\"error\":{\"message\":\"method not allowed\"}}");
+                return;
+            }
+            String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            requests.incrementAndGet();
+            boolean vision = body.contains("\"image_url\"");
+            boolean stream = body.contains("\"stream\":true");
+
+            SplittableRandom rnd;
+            synchronized (seedRandom) { rnd = seedRandom.split(); }
+            Matcher m = MODEL.matcher(body);
+            String model = m.find() ? m.group(1) : "stub";
+            long delay = (vision ? visionLatency : textLatency).sample(rnd);
+            if (model.contains("strong")) delay = Math.round(delay * strongFactor);
+            double roll = rnd.nextDouble();
+            sleep(delay);
+
+            if (roll < throttleRate) {
+                injected.incrementAndGet();
+                ex.getResponseHeaders().add("retry-after-ms", "200");
+                respond(ex, 429, "application/json", "{\"error\":{\"message\":\"stub rate limit\",\"type\":\"rate_limit\"}}");
+                return;
+            }
+            if (roll < throttleRate + errorRate) {
+                injected.incrementAndGet();
+                respond(ex, 500, "application/json", "{\"error\":{\"message\":\"stub injected error\"}}");
+                return;
+            }
+
+            List<String> answers = vision ? visionAnswers : textAnswers;
+            String answer = answers.get(Math.floorMod(body.hashCode(), answers.size()));
+            int images = vision ? countImages(body) : 0;
+            if (images > 1) answer = batchAnswer(answers, body.hashCode(), images);
+            JsonObject usage = new JsonObject();
+            int prompt = body.length() / 4, completion = answer.length();
+            usage.addProperty("prompt_tokens", prompt);
+            usage.addProperty("completion_tokens", completion);
+            usage.addProperty("total_tokens", prompt + completion);
+
+            if (stream) streamAnswer(ex, model, answer, usage);
+            else respond(ex, 200, "application/json", completion(model, answer, usage).toString());
+        } catch (IOException e) {
+            // 클라이언트가 취소(헤지 패자 등)하면 쓰기 실패 → 무시
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void streamAnswer(HttpExchange ex, String model, String answer, JsonObject usage) throws IOException {
+        ex.getResponseHeaders().add("Content-Type", "text/event-stream");
+        String[] words = answer.split("(?<= )");
+        int drop = dropStreams.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? Math.min(dropAfterTokens, words.length - 1) : -1;
+        // 끊기: Content-Length를 크게 잡고 덜 쓴 채 exchange를 닫으면 연결이 끊김 (클라이언트는 본문 도중 IOException)
+        ex.sendResponseHeaders(200, drop >= 0 ? Integer.MAX_VALUE : 0);
+        try (OutputStream out = ex.getResponseBody()) {
+            int sent = 0;
+            for (String w : words) {
+                if (sent++ == drop) {
+                    injected.incrementAndGet();
+                    ex.close(); // 본문 길이 미달로 닫힘 → 연결 종료
+                    return;
+                }
+                JsonObject delta = new JsonObject();
+                delta.addProperty("content", w);
+                JsonObject choice = new JsonObject();
+                choice.addProperty("index", 0);
+                choice.add("delta", delta);
+                JsonArray choices = new JsonArray();
+                choices.add(choice);
+                JsonObject ev = new JsonObject();
+                ev.addProperty("model", model);
+                ev.add("choices", choices);
+                out.write(("data: " + ev + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sleep(tokenMs);
+            }
+            JsonObject last = new JsonObject();
+            last.add("choices", new JsonArray());
+            last.add("usage", usage);
+            out.write(("data: " + last + "\n\ndata: [DONE]\n\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int countImages(String body) {
+        Matcher m = IMAGE_PART.matcher(body);
+        int n = 0;
+        while (m.find()) n++;
+        return n;
+    }
+
+    /** 다중 이미지 요청 답변: 사진마다 하나씩 JSON 배열 */
+    private static String batchAnswer(List<String> answers, int seed, int images) {
+        JsonArray arr = new JsonArray();
+        for (int i = 0; i < images; i++) {
+            JsonObject one = new JsonObject();
+            one.addProperty("index", i + 1);
+            one.addProperty("result", answers.get(Math.floorMod(seed + i, answers.size())));
+            arr.add(one);
+        }
+        return arr.toString();
+    }
+
+    private static JsonObject completion(String model, String answer, JsonObject usage) {
+        JsonObject message = new JsonObject();
+        message.addProperty("role", "assistant");
+        message.addProperty("content", answer);
+        JsonObject choice = new JsonObject();
+        choice.addProperty("index", 0);
+        choice.add("message", message);
+        choice.addProperty("finish_reason", "stop");
+        JsonArray choices = new JsonArray();
+        choices.add(choice);
+        JsonObject root = new JsonObject();
+        root.addProperty("object", "chat.completion");
+        root.addProperty("model", model);
+        root.add("choices", choices);
+        root.add("usage", usage);
+        return root;
+    }
+
+    private static void respond(HttpExchange ex, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", contentType);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long requests() { return requests.get(); }
+    public long injected() { return injected.get(); }
+
+    public static void main(String[] args) throws Exception {
+        start(Integer.parseInt(System.getenv().getOrDefault("AI_STUB_PORT", "18089")));
+        Thread.currentThread().join();
+    }
+}
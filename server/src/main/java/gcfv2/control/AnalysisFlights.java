@@ -0,0 +1,143 @@
+package gcfv2.control;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Cap 분석 중복 제거 (single-flight) + 최근 결과 메모
+ * - 키: cap:{capId}, hash:{내용 MD5} (둘 중 하나라도 진행 중이면 합류)
+ * - 합류한 세션들은 waiters에 쌓였다가 완료 시 한 번에 결과 수신
+ * - 완료된 결과는 메모(LRU)에 남겨 직후 재요청도 OpenAI 없이 응답
+ * - 연결마다 ControlManager가 따로 생기므로 JVM 전역 싱글턴
+ * - [ADDED] 세션 종료 시 abandon(): 살아 있는 대기자가 없는 분석은 취소 표시 + LLM 호출 취소
+ * - [ADDED] 세션 없는 대기자(작업 큐 재실행, 일괄 분석)는 서버 작업이므로 항상 살아 있는 것으로 봄
+ */
+final class AnalysisFlights {
+
+    /** 결과를 받을 요청 1건 */
+    static final class Waiter {
+        final Session session;
+        final String capId;
+        final String datetime;
+        final String robot; // [ADDED] Cap을 올린 로봇 id (Ai 문서 robotId → ChangeFeed 구독 범위), 모르면 null
+        Waiter(Session session, String capId, String datetime, String robot) {
+            this.session = session;
+            this.capId = capId;
+            this.datetime = datetime;
+            this.robot = robot;
+        }
+    }
+
+    /** 진행 중 분석 1건 */
+    static final class Flight {
+        final String capKey;
+        final String hashKey;
+        final List<Waiter> waiters = new ArrayList<>();
+        volatile boolean cancelled;             // [ADDED] 모든 대기자 세션이 닫힘
+        volatile CompletableFuture<?> call;     // [ADDED] 진행 중 LLM 호출 (취소 대상)
+        boolean finished;                        // [ADDED] finish() 처리됨 (AnalysisFlights 락 안에서만)
+        Flight(String capKey, String hashKey) { this.capKey = capKey; this.hashKey = hashKey; }
+
+        /** [ADDED] 리더가 LLM 호출을 시작하면 등록, 이미 취소됐으면 바로 취소 */
+        void attach(CompletableFuture<?> c) {
+            call = c;
+            if (cancelled) c.cancel(true);
+        }
+    }
+
+    private static final AnalysisFlights INSTANCE = new AnalysisFlights(
+            Integer.parseInt(System.getenv().getOrDefault("AI_RESULT_MEMO_SIZE", "1000")));
+    static AnalysisFlights get() { return INSTANCE; }
+
+    private final Map<String, Flight> inflight = new LinkedHashMap<>();
+    private final LinkedHashMap<String, String> memo;
+
+    private AnalysisFlights(int memoSize) {
+        this.memo = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > memoSize;
+            }
+        };
+    }
+
+    /** 진행 중이면 합류 후 null, 아니면 새 Flight(호출측이 리더) 반환 */
+    synchronized Flight join(String capId, String contentHash, Waiter w) {
+        String capKey = "cap:" + capId;
+        String hashKey = contentHash == null ? null : "hash:" + contentHash;
+        Flight f = inflight.get(capKey);
+        if (f == null && hashKey != null) f = inflight.get(hashKey);
+        if (f != null) {
+            f.waiters.add(w);
+            return null;
+        }
+        f = new Flight(capKey, hashKey);
+        f.waiters.add(w);
+        inflight.put(capKey, f);
+        if (hashKey != null) inflight.put(hashKey, f);
+        return f;
+    }
+
+    /**
+     * [ADDED] 세션 종료: 그 세션이 기다리던 분석 중 다른 열린 대기자가 없는 것은 취소
+     * - 키를 바로 해제해 이후 같은 Cap 요청은 새로 분석
+     * - 닫힌 세션의 대기자는 목록에 남김 (완료된 결과 저장 여부는 호출측 설정)
+     * @return 취소한 분석 수
+     */
+    int abandon(Session session) {
+        List<Flight> toCancel = new ArrayList<>();
+        synchronized (this) {
+            Set<Flight> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Flight f : inflight.values()) {
+                if (!seen.add(f) || f.cancelled) continue;
+                boolean mine = false, othersOpen = false;
+                for (Waiter w : f.waiters) {
+                    if (w.session == session) mine = true;
+                    else if (w.session == null || w.session.isOpen()) othersOpen = true;
+                }
+                if (mine && !othersOpen) toCancel.add(f);
+            }
+            for (Flight f : toCancel) {
+                f.cancelled = true;
+                inflight.remove(f.capKey, f);
+                if (f.hashKey != null) inflight.remove(f.hashKey, f);
+            }
+        }
+        for (Flight f : toCancel) {
+            CompletableFuture<?> c = f.call;
+            if (c != null) c.cancel(true);
+        }
+        return toCancel.size();
+    }
+
+    /** 최근 결과 (capId 또는 내용 해시 기준) */
+    synchronized String recent(String capId, String contentHash) {
+        String r = memo.get("cap:" + capId);
+        if (r == null && contentHash != null) r = memo.get("hash:" + contentHash);
+        return r;
+    }
+
+    /**
+     * 완료 처리: 키 해제 + (성공 시) 메모 기록, 대기자 목록 반환
+     * [ADDED] 한 번만 처리, 두 번째 호출(결과 팬아웃 중 예외 → 실패 처리 등)은 빈 목록
+     */
+    synchronized List<Waiter> finish(Flight f, String result) {
+        if (f.finished) return List.of();
+        f.finished = true;
+        inflight.remove(f.capKey, f);
+        if (f.hashKey != null) inflight.remove(f.hashKey, f);
+        if (result != null) {
+            for (Waiter w : f.waiters) memo.put("cap:" + w.capId, result);
+            if (f.hashKey != null) memo.put(f.hashKey, result);
+        }
+        return new ArrayList<>(f.waiters);
+    }
+}
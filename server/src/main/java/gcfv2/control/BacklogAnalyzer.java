@@ -0,0 +1,490 @@
+package gcfv2.control;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import gcfv2.Env;
+import gcfv2.ai.ModelRouter;
+import gcfv2.ai.OpenAIClient;
+import gcfv2.fs.FirestoreClient;
+import gcfv2.gcs.GcsUrlUtil;
+import gcfv2.ingest.IngestFirestoreService;
+import gcfv2.limit.Bulkheads;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * [ADDED] 분석(Ai_) 없는 Cap 일괄 분석 - 현장 작업 후 밀린 캡처 처리용
+ * - Cap을 datetime 순으로 BACKLOG_PAGE(200)건씩 조회, 페이지의 Ai_{capId}/Ai_{dupOf}는 getAll 1회로 확인
+ * - 원본(dupOf)에 결과가 있으면 LLM 없이 복사 저장
+ * - 나머지는 BACKLOG_GROUP(4)장씩 한 요청(다중 이미지, JSON 배열 응답)으로 분석,
+ *   응답에서 빠진 사진은 1장씩 기존 분석 프롬프트로 재시도
+ * - 동시에 BACKLOG_PARALLEL(2)묶음까지 요청 (그 아래 LLM 격벽/속도 제한은 그대로 적용)
+ * - 이미지는 중간 해상도 렌디션이 있으면 그것을, 해상도 BACKLOG_IMAGE_DETAIL(low)로 전달
+ * - 페이지가 끝날 때마다 Backlog/Run_{from}_{to}에 커서 저장 → 중단/재시작 후 같은 범위 요청 시 이어서 진행
+ * - JVM 전체에서 1건만 실행, WS 메시지 AnalyzeBacklog(Action=start|stop|status, From, To, Limit)로 제어
+ * - [MODIFIED] 운영자 연결(Operators)만 제어 가능 (ControlManager에서 확인)
+ * - [MODIFIED] Cap마다 AnalysisFlights에 합류/등록: 실시간 분석이 진행 중인 Cap은 건너뛰고(Joined),
+ *   일괄 분석 중 같은 Cap을 요청한 세션은 이쪽 결과를 함께 받음
+ * - [MODIFIED] 실행은 비동기 체인: Firestore 조회/체크포인트는 backlog-analyzer 스레드 1개,
+ *   묶음 분석은 PARALLEL개 레인이 앞 묶음이 끝나면 다음 묶음을 이어 받음 (스레드를 잡고 기다리지 않음)
+ */
+public final class BacklogAnalyzer {
+
+    private static final int PAGE = Math.max(1, Env.getInt("BACKLOG_PAGE", 200));
+    private static final int GROUP = Math.max(1, Env.getInt("BACKLOG_GROUP", 4));
+    private static final int PARALLEL = Math.max(1, Env.getInt("BACKLOG_PARALLEL", 2));
+    private static final long GROUP_TIMEOUT_MS = Env.getInt("BACKLOG_GROUP_TIMEOUT_SEC", 120) * 1000L;
+    private static final String DETAIL = System.getenv().getOrDefault("BACKLOG_IMAGE_DETAIL", "low");
+    private static final String COLLECTION = "Backlog";
+
+    private static final ZoneId ZONE_SEOUL = ZoneId.of("Asia/Seoul");
+    private static final DateTimeFormatter FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final String SYSTEM_BATCH_MSG = OpenAIClient.message("system",
+            "배수로 및 하수구 청소 로봇이 찍은 사진 여러 장이다. 사진마다 따로 "
+            + "객체, 위험요소(감전/흡입/전선/날카로움/미끄럼), 주행 가능성, 청소 우선순위(분사/파쇄/우회)를 "
+            + "간결하게 특수문자나 이모티콘 없이 한국어 스크립트로 정리해라. "
+            + "반드시 JSON 배열만 출력해라: [{\"index\":1,\"result\":\"...\"},{\"index\":2,\"result\":\"...\"}]");
+
+    private static final BacklogAnalyzer INSTANCE = new BacklogAnalyzer();
+    public static BacklogAnalyzer get() { return INSTANCE; }
+
+    private static final ExecutorService EXEC = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "backlog-analyzer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** 분석 대상 Cap 1건 */
+    private static final class Item {
+        final String capId, datetime, gcsUri, imageUri;
+        String robot; // [ADDED] Cap 문서의 robotId
+        String url;
+        AnalysisFlights.Flight flight; // [ADDED] 이 Cap의 분석 등록 (결과/실패 시 finish)
+        Item(String capId, String datetime, String gcsUri, String imageUri) {
+            this.capId = capId; this.datetime = datetime; this.gcsUri = gcsUri; this.imageUri = imageUri;
+        }
+    }
+
+    /** 실행 1건 (범위 + 진행 상황) */
+    private static final class Run {
+        final String from, to, key;
+        final int limit;
+        final long startedAt = System.currentTimeMillis();
+        final AtomicLong scanned = new AtomicLong(), analyzed = new AtomicLong(), reused = new AtomicLong(),
+                failed = new AtomicLong(), requests = new AtomicLong(), joined = new AtomicLong();
+        volatile boolean stopped;
+        volatile String state = "running";
+        volatile Timestamp cursorTs;
+        volatile String cursorId;
+
+        Run(String from, String to, int limit) {
+            this.from = from; this.to = to; this.limit = limit;
+            this.key = "Run_" + from.replaceAll("\\D", "") + "_" + to.replaceAll("\\D", "");
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("From", from);
+            m.put("To", to);
+            m.put("State", state);
+            m.put("Cursor", cursorId);
+            m.put("Scanned", scanned.get());
+            m.put("Analyzed", analyzed.get());
+            m.put("Reused", reused.get());
+            m.put("Failed", failed.get());
+            m.put("Requests", requests.get());
+            m.put("Joined", joined.get());
+            m.put("ElapsedSec", (System.currentTimeMillis() - startedAt) / 1000);
+            return m;
+        }
+    }
+
+    private final IngestFirestoreService ingest = new IngestFirestoreService();
+    private final AtomicReference<Run> current = new AtomicReference<>();
+
+    private BacklogAnalyzer() {}
+
+    /** WS 메시지 AnalyzeBacklog 처리 → 응답 맵 */
+    public Map<String, Object> control(JsonObject msg) {
+        String action = msg.has("Action") ? msg.get("Action").getAsString() : "start";
+        Map<String, Object> resp = new LinkedHashMap<>();
+        resp.put("Type", "AnalyzeBacklogResult");
+        resp.put("Action", action);
+        switch (action) {
+            case "start": {
+                if (!msg.has("From") || !msg.has("To")) throw new IllegalArgumentException("From/To가 필요합니다.");
+                int limit = msg.has("Limit") ? msg.get("Limit").getAsInt() : 0;
+                resp.putAll(start(msg.get("From").getAsString(), msg.get("To").getAsString(), limit));
+                break;
+            }
+            case "stop": {
+                Run r = current.get();
+                if (r != null) r.stopped = true;
+                resp.putAll(status());
+                break;
+            }
+            case "status":
+                resp.putAll(status());
+                break;
+            default:
+                throw new IllegalArgumentException("Action은 start|stop|status 중 하나여야 합니다.");
+        }
+        return resp;
+    }
+
+    public synchronized Map<String, Object> start(String from, String to, int limit) {
+        Run r = current.get();
+        if (r != null && "running".equals(r.state)) {
+            Map<String, Object> m = r.toMap();
+            m.put("Message", "이미 실행 중");
+            return m;
+        }
+        Run run = new Run(from, to, limit);
+        current.set(run);
+        execute(run);
+        return run.toMap();
+    }
+
+    public Map<String, Object> status() {
+        Run r = current.get();
+        if (r == null) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("State", "idle");
+            return m;
+        }
+        return r.toMap();
+    }
+
+    // ===== 실행 =====
+
+    /** [MODIFIED] 체크포인트 로드 → 페이지 반복(비동기) → 최종 상태 저장 */
+    private void execute(Run run) {
+        System.out.println("[BACKLOG] start " + run.from + " ~ " + run.to
+                + " group=" + GROUP + " parallel=" + PARALLEL);
+        CompletableFuture.runAsync(() -> loadCheckpoint(run), EXEC)
+                .thenCompose(v -> nextRound(run))
+                .whenCompleteAsync((v, err) -> {
+                    if (err != null) {
+                        run.state = "failed";
+                        System.err.println("[BACKLOG] failed: " + rootMessage(err));
+                    } else {
+                        run.state = run.stopped ? "stopped" : "done";
+                    }
+                    saveCheckpoint(run);
+                    System.out.println("[BACKLOG] " + run.state + " " + run.toMap());
+                }, EXEC);
+    }
+
+    /** 페이지 1개: 조회/추림(EXEC) → 묶음 분석(비동기) → 커서 저장 → 남았으면 다음 페이지 */
+    private CompletableFuture<Void> nextRound(Run run) {
+        if (run.stopped) return CompletableFuture.completedFuture(null);
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        List<QueryDocumentSnapshot> page = nextPage(run);
+                        return new Page(page, page.isEmpty() ? List.of() : pending(run, page));
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, EXEC)
+                .thenCompose(p -> {
+                    if (p.docs().isEmpty()) return CompletableFuture.completedFuture(false);
+                    List<List<Item>> groups = new ArrayList<>();
+                    for (int i = 0; i < p.todo().size(); i += GROUP) {
+                        groups.add(p.todo().subList(i, Math.min(i + GROUP, p.todo().size())));
+                    }
+                    return analyzeAll(run, groups).thenApplyAsync(v -> {
+                        if (run.stopped) return false; // 중단된 페이지는 커서를 넘기지 않음 (다음 실행에서 다시 확인)
+                        QueryDocumentSnapshot last = p.docs().get(p.docs().size() - 1);
+                        run.cursorTs = last.getTimestamp("datetime");
+                        run.cursorId = last.getId();
+                        saveCheckpoint(run);
+                        return p.docs().size() >= PAGE && (run.limit <= 0 || run.scanned.get() < run.limit);
+                    }, EXEC);
+                })
+                .thenCompose(more -> more ? nextRound(run) : CompletableFuture.completedFuture(null));
+    }
+
+    /** [ADDED] 조회한 페이지 + 그중 분석할 Cap */
+    private record Page(List<QueryDocumentSnapshot> docs, List<Item> todo) {}
+
+    /** [ADDED] 묶음들을 최대 PARALLEL개 레인으로 (레인은 앞 묶음 완료 시 다음 묶음 시작) */
+    private CompletableFuture<Void> analyzeAll(Run run, List<List<Item>> groups) {
+        AtomicInteger next = new AtomicInteger();
+        List<CompletableFuture<Void>> lanes = new ArrayList<>();
+        for (int i = 0; i < Math.min(PARALLEL, groups.size()); i++) lanes.add(lane(run, groups, next));
+        return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> lane(Run run, List<List<Item>> groups, AtomicInteger next) {
+        int i = next.getAndIncrement();
+        if (i >= groups.size() || run.stopped) return CompletableFuture.completedFuture(null);
+        return analyzeGroup(run, groups.get(i))
+                .handle((v, err) -> {
+                    if (err != null) System.err.println("[BACKLOG] group error: " + rootMessage(err));
+                    return null;
+                })
+                .thenCompose(v -> lane(run, groups, next));
+    }
+
+    private List<QueryDocumentSnapshot> nextPage(Run run) throws Exception {
+        int size = run.limit > 0 ? (int) Math.min(PAGE, run.limit - run.scanned.get()) : PAGE;
+        if (size <= 0) return List.of();
+        Query q = FirestoreClient.get().collection("Cap")
+                .whereGreaterThanOrEqualTo("datetime", toTimestamp(run.from))
+                .whereLessThanOrEqualTo("datetime", toTimestamp(run.to))
+                .orderBy("datetime", Query.Direction.ASCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING)
+                .limit(size);
+        if (run.cursorTs != null && run.cursorId != null) q = q.startAfter(run.cursorTs, run.cursorId);
+        Query fq = q;
+        return Bulkheads.FIRESTORE.call(() -> fq.get().get().getDocuments());
+    }
+
+    /** 페이지에서 분석할 Cap만 추림 (Ai 문서 존재 여부는 getAll 1회) */
+    private List<Item> pending(Run run, List<QueryDocumentSnapshot> page) throws Exception {
+        Firestore db = FirestoreClient.get();
+        List<DocumentReference> refs = new ArrayList<>();
+        for (QueryDocumentSnapshot d : page) {
+            refs.add(db.collection("Ai").document("Ai_" + d.getId()));
+            String dupOf = d.getString("dupOf");
+            if (dupOf != null) refs.add(db.collection("Ai").document("Ai_" + dupOf));
+        }
+        List<DocumentSnapshot> snaps = Bulkheads.FIRESTORE.call(
+                () -> db.getAll(refs.toArray(new DocumentReference[0])).get());
+        Map<String, String> results = new HashMap<>();
+        for (DocumentSnapshot s : snaps) {
+            if (!s.exists()) continue;
+            String r = s.getString("result");
+            if (r != null && !r.isBlank()) results.put(s.getId(), r);
+        }
+
+        List<Item> todo = new ArrayList<>();
+        for (QueryDocumentSnapshot d : page) {
+            run.scanned.incrementAndGet();
+            if (results.containsKey("Ai_" + d.getId())) continue;
+            String gcsUri = d.getString("gcsUri");
+            if (gcsUri == null || gcsUri.isBlank()) continue;
+            String medium = d.getString("mediumUri");
+            Item it = new Item(d.getId(), formatTimestamp(d.getTimestamp("datetime")), gcsUri,
+                    medium != null && !medium.isBlank() ? medium : gcsUri);
+            it.robot = d.getString("robotId");
+
+            String dupOf = d.getString("dupOf");
+            String copied = dupOf == null ? null : results.get("Ai_" + dupOf);
+            if (copied != null) {
+                save(it, copied);
+                run.reused.incrementAndGet();
+                continue;
+            }
+            todo.add(it);
+        }
+        return todo;
+    }
+
+    /** 묶음 1건: 다중 이미지 요청 → 누락분은 1장씩 */
+    private CompletableFuture<Void> analyzeGroup(Run run, List<Item> group) {
+        List<Item> items = new ArrayList<>();
+        for (Item it : group) {
+            // [ADDED] 실시간 분석과 중복 방지: 진행 중이면 건너뜀(그쪽이 저장), 방금 끝났으면 이미 저장됨
+            if (AnalysisFlights.get().recent(it.capId, null) != null) {
+                run.joined.incrementAndGet();
+                continue;
+            }
+            it.flight = AnalysisFlights.get().join(it.capId, null, new AnalysisFlights.Waiter(null, it.capId, it.datetime, it.robot));
+            if (it.flight == null) {
+                run.joined.incrementAndGet();
+                continue;
+            }
+            try {
+                String[] bo = GcsUrlUtil.splitGsUri(it.imageUri);
+                it.url = GcsUrlUtil.createDownloadUrl(bo[0], bo[1], Duration.ofMinutes(30)).toExternalForm();
+                items.add(it);
+            } catch (Exception e) {
+                run.failed.incrementAndGet();
+                finish(it, null, e.getMessage());
+                System.err.println("[BACKLOG] sign failed capId=" + it.capId + ": " + e.getMessage());
+            }
+        }
+        if (items.isEmpty()) return CompletableFuture.completedFuture(null);
+        if (items.size() == 1) return analyzeSingle(run, items.get(0));
+
+        List<Object> parts = new ArrayList<>();
+        parts.add(Map.of("type", "text", "text", "사진 " + items.size() + "장, 순서대로 1번부터 " + items.size() + "번이다."));
+        for (Item it : items) {
+            parts.add(Map.of("type", "image_url", "image_url", Map.of("url", it.url, "detail", DETAIL)));
+        }
+        List<String> messages = List.of(SYSTEM_BATCH_MSG, OpenAIClient.message("user", parts));
+        run.requests.incrementAndGet();
+        return ModelRouter.get()
+                .call(ModelRouter.Kind.VISION, false, messages, 0.2, null, deadline())
+                .handle((r, err) -> {
+                    Map<Integer, String> byIndex = err == null ? parseResults(OpenAIClient.contentOf(r.root)) : Map.of();
+                    if (err != null) System.err.println("[BACKLOG] group failed, retry singly: " + err.getMessage());
+                    List<CompletableFuture<Void>> rest = new ArrayList<>();
+                    for (int i = 0; i < items.size(); i++) {
+                        String text = byIndex.get(i + 1);
+                        if (text != null) {
+                            save(items.get(i), text);
+                            finish(items.get(i), text, null);
+                            run.analyzed.incrementAndGet();
+                        } else {
+                            rest.add(analyzeSingle(run, items.get(i)));
+                        }
+                    }
+                    return CompletableFuture.allOf(rest.toArray(new CompletableFuture<?>[0]));
+                })
+                .thenCompose(f -> f);
+    }
+
+    private CompletableFuture<Void> analyzeSingle(Run run, Item it) {
+        Map<String, Object> imagePart = Map.of("type", "image_url", "image_url", Map.of("url", it.url, "detail", DETAIL));
+        List<String> messages = List.of(ControlManager.SYSTEM_ANALYZE_MSG,
+                OpenAIClient.message("user", List.of(ControlManager.ANALYZE_TEXT_PART, imagePart)));
+        run.requests.incrementAndGet();
+        return ModelRouter.get()
+                .call(ModelRouter.Kind.VISION, false, messages, 0.2, null, deadline())
+                .handle((r, err) -> {
+                    if (err != null) {
+                        run.failed.incrementAndGet();
+                        finish(it, null, err.getMessage());
+                        System.err.println("[BACKLOG] analyze failed capId=" + it.capId + ": " + err.getMessage());
+                    } else {
+                        String text = OpenAIClient.contentOf(r.root);
+                        save(it, text);
+                        finish(it, text, null);
+                        run.analyzed.incrementAndGet();
+                    }
+                    return null;
+                });
+    }
+
+    /** [ADDED] Flight 완료 + 그사이 합류한 세션에 결과/실패 회신 (Ai 문서는 save()가 이미 저장) */
+    private static void finish(Item it, String resultText, String error) {
+        if (it.flight == null) return;
+        for (AnalysisFlights.Waiter w : AnalysisFlights.get().finish(it.flight, resultText)) {
+            if (w.session == null) continue; // 일괄 분석 자신
+            ControlManager.deliverAnalysis(w, it.url != null ? it.url : it.gcsUri,
+                    resultText != null ? resultText : "분석 실패: " + error);
+        }
+    }
+
+    /** [{"index":1,"result":"..."}] → {1: "..."} (코드 블록 감싸기 허용, 형식이 다르면 빈 맵) */
+    static Map<Integer, String> parseResults(String content) {
+        Map<Integer, String> m = new HashMap<>();
+        if (content == null) return m;
+        int s = content.indexOf('['), e = content.lastIndexOf(']');
+        if (s < 0 || e <= s) return m;
+        try {
+            JsonArray arr = JsonParser.parseString(content.substring(s, e + 1)).getAsJsonArray();
+            for (JsonElement el : arr) {
+                JsonObject o = el.getAsJsonObject();
+                if (!o.has("index") || !o.has("result")) continue;
+                String text = o.get("result").getAsString();
+                if (!text.isBlank()) m.put(o.get("index").getAsInt(), text);
+            }
+        } catch (RuntimeException ex) {
+            System.err.println("[BACKLOG] batch response not parsable: " + ex.getMessage());
+        }
+        return m;
+    }
+
+    private void save(Item it, String resultText) {
+        JsonObject ai = new JsonObject();
+        ai.addProperty("Type", "Ai");
+        ai.addProperty("Datetime", it.datetime);
+        ai.addProperty("CapId", it.capId);
+        ai.addProperty("GcsUri", it.gcsUri);
+        if (it.url != null) ai.addProperty("Url", it.url);
+        if (it.robot != null) ai.addProperty("RobotId", it.robot);
+        ai.addProperty("Result", resultText);
+        try {
+            ingest.handleGenerated(ai.toString());
+        } catch (Exception e) {
+            System.err.println("[BACKLOG] save failed capId=" + it.capId + ": " + e.getMessage());
+        }
+    }
+
+    // ===== 체크포인트 =====
+
+    private void loadCheckpoint(Run run) {
+        try {
+            DocumentSnapshot d = Bulkheads.FIRESTORE.call(() ->
+                    FirestoreClient.get().collection(COLLECTION).document(run.key).get().get());
+            if (!d.exists() || "done".equals(d.getString("state"))) return;
+            run.cursorTs = d.getTimestamp("cursorTs");
+            run.cursorId = d.getString("cursorId");
+            if (run.cursorId != null) System.out.println("[BACKLOG] resume after " + run.cursorId);
+        } catch (Exception e) {
+            System.err.println("[BACKLOG] checkpoint load failed: " + e.getMessage());
+        }
+    }
+
+    private void saveCheckpoint(Run run) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("from", run.from);
+        doc.put("to", run.to);
+        doc.put("state", run.state);
+        doc.put("cursorTs", run.cursorTs);
+        doc.put("cursorId", run.cursorId);
+        doc.put("scanned", run.scanned.get());
+        doc.put("analyzed", run.analyzed.get());
+        doc.put("reused", run.reused.get());
+        doc.put("failed", run.failed.get());
+        doc.put("updatedAt", Timestamp.now());
+        try {
+            Bulkheads.FIRESTORE.call(() ->
+                    FirestoreClient.get().collection(COLLECTION).document(run.key).set(doc).get());
+        } catch (Exception e) {
+            System.err.println("[BACKLOG] checkpoint save failed: " + e.getMessage());
+        }
+    }
+
+    // ===== 유틸 =====
+
+    private static String rootMessage(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return String.valueOf(t.getMessage());
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GROUP_TIMEOUT_MS);
+    }
+
+    private static Timestamp toTimestamp(String datetime) {
+        Instant i = LocalDateTime.parse(datetime.trim(), FMT).atZone(ZONE_SEOUL).toInstant();
+        return Timestamp.ofTimeSecondsAndNanos(i.getEpochSecond(), i.getNano());
+    }
+
+    private static String formatTimestamp(Timestamp ts) {
+        if (ts == null) return LocalDateTime.now(ZONE_SEOUL).format(FMT);
+        return Instant.ofEpochSecond(ts.getSeconds(), ts.getNanos()).atZone(ZONE_SEOUL).format(FMT);
+    }
+}
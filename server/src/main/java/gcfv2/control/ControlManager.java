@@ -1,22 +1,32 @@
 package gcfv2.control;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import gcfv2.Operators;
+import gcfv2.ai.AnswerCache;
+import gcfv2.ai.ModelRouter;
+import gcfv2.ai.OpenAIClient;
+import gcfv2.ai.SentenceChunker;
 import gcfv2.gcs.GcsUrlUtil;
+import gcfv2.media.InlineImages;
+import gcfv2.pubsub.TopicBroker;
+import gcfv2.queue.DurableJobQueue;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import gcfv2.ingest.ChangeFeed;
 import gcfv2.ingest.IngestFirestoreService;
 
 import java.io.IOException;
-import java.net.URL;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,6 +35,26 @@ import java.util.regex.Pattern;
  * - (유지) CapRequest 포워딩, Cap 분석 후 결과 회신/저장
  * - [ADDED] STT(Text) → OpenAI → 결과 회신(SttResult) + 합본 저장
  * - [ADDED] 세션별 대화 기억(chatMemory) 유지 (최근 6턴)
+ * - [MODIFIED] 대화 기억은 clientId 기준 ConversationMemory(토큰 예산, 재접속/재시작 후에도 유지)
+ * - [ADDED] Cap 분석 이미지 전달 방식: url(서명 URL, 기본) | inline(서버에서 축소한 base64)
+ * - [MODIFIED] OpenAI 호출은 공용 비동기 클라이언트(OpenAIClient) 사용, 응답 대기 중 스레드 점유 없음
+ * - [ADDED] STT 응답 스트리밍: Stream=token|sentence 이면 SttResultDelta 프레임을 먼저 보내고
+ *   마지막에 SttResult(Streamed=true) 1건 전송/저장 (기본값 STT_STREAM, 미설정 시 off)
+ * - [ADDED] 같은 질문+같은 대화 요약은 AnswerCache로 재사용(동시 질문은 1회 호출 공유), SttResult에 Cached=true
+ * - [ADDED] Cap 분석은 capId/내용 해시 기준 single-flight, 기존 결과(메모/Ai 문서) 있으면 재사용
+ * - [MODIFIED] 추론 백엔드/모델은 InferenceProvider(AI_PROVIDER, AI_MODEL 등)에서 선택
+ * - [ADDED] ModelRouter가 질문/장면 복잡도와 모델 상태로 fast/strong 모델 선택 (실패 시 대체 모델)
+ * - [ADDED] Stt/Cap 작업마다 Datetime+Type 기준 마감(Deadline): 지난 작업은 LLM 호출 전에 버리고 Expired=true 통지,
+ *   진행 중 호출의 대기열/재시도/HTTP 타임아웃도 마감 이내로 제한
+ * - [ADDED] Cap 분석(리더)은 DurableJobQueue에 기록, 실패하거나 인스턴스가 바뀌면 큐가 세션 없이 재실행해 Ai 문서 저장
+ * - [ADDED] AnalyzeBacklog 메시지로 분석 누락 Cap 일괄 분석(BacklogAnalyzer) 시작/중단/조회
+ *   [MODIFIED] 운영자 연결(X-Operator-Token = OPERATOR_TOKEN)만 허용
+ * - [ADDED] 세션 종료(onClose/onError) 시 그 세션 작업 취소: LLM 호출(HTTP 교환까지), 서명/조회 단계는 다음 단계 전에 중단,
+ *   다른 세션도 기다리는 분석은 계속 진행. 이미 나온 결과의 저장 여부는 SESSION_CANCEL_PERSIST(on|off, 기본 on)
+ * - [ADDED] Batch 저장 응답(BatchAck)의 Cap 항목들은 작업 큐에 넣어 분석 (마감은 항목별로 큐에서 꺼낸 시점부터)
+ * - [ADDED] Watch/Unwatch 메시지로 CapAdded/AiAdded 푸시 구독 (ChangeFeed)
+ * - [ADDED] Subscribe/Unsubscribe/Publish 메시지는 TopicBroker, CapAnalysis/SttResult는 요청 세션 외에
+ *   robot/{clientId}/ai, robot/{clientId}/stt 토픽으로도 발행 (같은 로봇을 보는 다른 컨트롤러용)
  */
 public class ControlManager {
 
@@ -35,33 +65,54 @@ public class ControlManager {
     private final Map<String, Session> active = new ConcurrentHashMap<>();
     private final ExecutorService exec = Executors.newFixedThreadPool(3);
 
+    // [ADDED] 이 연결에서 시작한 작업 (ControlManager는 연결마다 생성되므로 곧 세션 범위)
+    private final Set<CompletableFuture<?>> sessionCalls = ConcurrentHashMap.newKeySet(); // 세션 종료 시 취소할 LLM 호출
+    private final Set<CompletableFuture<?>> pipelines = ConcurrentHashMap.newKeySet();    // 끝나면 exec 종료
+    private volatile boolean closed = false;
+    private static final boolean PERSIST_AFTER_CLOSE =
+            !"off".equalsIgnoreCase(System.getenv().getOrDefault("SESSION_CANCEL_PERSIST", "on"));
+    private static final AtomicLongArray CANCEL_STATS = new AtomicLongArray(4); // 세션, 호출, 분석, 저장 생략
+
     private static final ZoneId ZONE_SEOUL = ZoneId.of("Asia/Seoul");
     private static final DateTimeFormatter OUT_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    // [ADDED] 비전 분석 이미지 전달 방식/해상도 (AI_IMAGE_MODE=url|inline, AI_IMAGE_DETAIL=auto|low|high)
+    private static final boolean IMAGE_INLINE = "inline".equalsIgnoreCase(System.getenv("AI_IMAGE_MODE"));
+    private static final String IMAGE_DETAIL = System.getenv().getOrDefault("AI_IMAGE_DETAIL", "auto");
+
+    // [ADDED] STT 응답 스트리밍 기본 모드 (off | token | sentence), 메시지의 Stream 필드가 우선
+    private static final String STT_STREAM_DEFAULT = System.getenv().getOrDefault("STT_STREAM", "off");
+
     private IngestFirestoreService ingestService;
     public void setIngestService(IngestFirestoreService s) { this.ingestService = s; }
 
     // [ADDED] 세션별 대화 메모리 (최근 12 메시지 = 6턴)
-    private static final int MAX_MEMORY_MSGS = 12;
-    private final Map<Session, List<Map<String, String>>> chatMemory = new ConcurrentHashMap<>();
-
-    private List<Map<String,String>> history(Session s) {
-        return chatMemory.computeIfAbsent(s, k -> Collections.synchronizedList(new ArrayList<>()));
+    // [MODIFIED] 접속 URL의 id 파라미터(clientId) 기준, 없으면 세션 단위
+    // [MODIFIED] 세션 단위 키는 연결(ControlManager)마다 임의 UUID (identityHashCode는 충돌 가능), 종료 시 제거
+    private final String sessionKey = ConversationMemory.SESSION_PREFIX + UUID.randomUUID();
+    private String memoryKey(Session s) {
+        String id = s == null ? null : s.getUpgradeRequest()
+                .getParameterMap()
+                .getOrDefault("id", List.of("unknown"))
+                .get(0);
+        if (id == null || id.isBlank() || "unknown".equals(id)) {
+            return sessionKey;
+        }
+        return id;
     }
     private void pushHistory(Session s, String role, String content) {
-        List<Map<String,String>> h = history(s);
-        h.add(Map.of("role", role, "content", content));
-        while (h.size() > MAX_MEMORY_MSGS) h.remove(0);
+        ConversationMemory.get().append(memoryKey(s), role, content);
     }
 
     // ===== 세션 등록/해제 =====
     public void registerClient(String clientId, Session session) {
         active.put(clientId, session);
+        ConversationMemory.get().prefetch(memoryKey(session)); // [ADDED] 저장된 대화 복원을 미리 (비동기)
         System.out.println("[CONNECT] " + clientId + " / active=" + active.keySet());
     }
     public void unregisterClient(String clientId) {
-        Session s = active.remove(clientId);             // [MODIFIED] 세션 객체 회수
-        if (s != null) chatMemory.remove(s);            // [ADDED] 메모리 정리
+        active.remove(clientId);                         // [MODIFIED] 대화 기억은 유지 (재접속 시 이어감, 유휴 시 제거)
+        ConversationMemory.get().drop(sessionKey);       // [ADDED] id 없는 접속의 세션 대화만 바로 제거
         System.out.println("[DISCONNECT] " + clientId + " / active=" + active.keySet());
     }
 
@@ -74,6 +125,80 @@ public class ControlManager {
     }
     private void sendToRc(String msg) { sendTo(getRc(), msg); }
 
+    /** [ADDED] 비동기 전송 (HttpClient 스레드 등 막으면 안 되는 곳, 프레임 순서는 세션 전송 큐가 유지) */
+    private static void sendAsync(Session s, String msg) {
+        if (s == null || !s.isOpen()) return;
+        s.getRemote().sendString(msg, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                System.err.println("[WS] async send failed: " + x.getMessage());
+            }
+        });
+    }
+
+    /** [ADDED] 세션 clientId의 robot/{id}/{kind} 토픽으로 발행 (clientId 없으면 생략) */
+    private static void publishFor(Session s, String kind, String json) {
+        String id = TopicBroker.clientId(s);
+        if (id != null) TopicBroker.get().publish("robot/" + id + "/" + kind, json);
+    }
+
+    // ===== [ADDED] 세션 범위 취소 =====
+    private <T> CompletableFuture<T> trackCall(CompletableFuture<T> f) {
+        sessionCalls.add(f);
+        f.whenComplete((r, e) -> sessionCalls.remove(f));
+        if (closed) f.cancel(true);
+        return f;
+    }
+    private void trackPipeline(CompletableFuture<?> f) {
+        pipelines.add(f);
+        f.whenComplete((r, e) -> pipelines.remove(f));
+    }
+
+    /**
+     * [ADDED] 세션이 닫히거나 오류로 끊기면 호출
+     * - 이 세션만 기다리는 LLM 호출 취소 (AnswerCache/ModelRouter/OpenAIClient를 거쳐 sendAsync까지)
+     * - 이 세션만 기다리는 Cap 분석 취소 (다른 열린 세션이 합류해 있으면 계속)
+     * - 남은 처리 체인이 끝나면 exec 종료
+     */
+    public void cancelSessionWork(Session session, String why) {
+        if (closed) return;
+        closed = true;
+        JOB_OWNERS.remove(jobOwner); // [ADDED] 남은 Batch 분석 작업은 세션 없이 실행
+        int calls = 0;
+        for (CompletableFuture<?> f : sessionCalls) {
+            if (f.cancel(true)) calls++;
+        }
+        int analyses = AnalysisFlights.get().abandon(session);
+        CANCEL_STATS.incrementAndGet(0);
+        CANCEL_STATS.addAndGet(1, calls);
+        CANCEL_STATS.addAndGet(2, analyses);
+        if (calls + analyses > 0) {
+            System.out.println("[CANCEL] " + why + ": llm=" + calls + " analyses=" + analyses);
+        }
+        CompletableFuture.allOf(pipelines.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((v, e) -> exec.shutdown());
+    }
+
+    private boolean persistable() {
+        if (!closed || PERSIST_AFTER_CLOSE) return true;
+        CANCEL_STATS.incrementAndGet(3);
+        return false;
+    }
+
+    private static void checkCancelled(AnalysisFlights.Flight flight) {
+        if (flight.cancelled) throw new CancellationException("session closed");
+    }
+
+    public static Map<String, Object> cancelStats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("persistAfterClose", PERSIST_AFTER_CLOSE);
+        m.put("sessions", CANCEL_STATS.get(0));
+        m.put("llmCalls", CANCEL_STATS.get(1));
+        m.put("analyses", CANCEL_STATS.get(2));
+        m.put("skippedPersist", CANCEL_STATS.get(3));
+        return m;
+    }
+
     // ===== 메시지 처리 (캡처 제어만) =====
     public String handle(Session session, String rawJson) {
         JsonObject obj = GSON.fromJson(rawJson, JsonObject.class);
@@ -83,7 +208,21 @@ public class ControlManager {
             sendToRc(rawJson);
             return "[CapRequest] forwarded to RC";
         }
-        return null;
+        if ("AnalyzeBacklog".equals(type)) { // [ADDED] 분석 누락 Cap 일괄 처리 (start|stop|status)
+            if (!Operators.isOperator(session)) { // [ADDED] 운영자 연결만
+                System.err.println("[BACKLOG] rejected non-operator session " + session.getRemoteAddress());
+                return "{\"Type\":\"AnalyzeBacklogResult\",\"Error\":\"operator only\"}";
+            }
+            return GSON.toJson(BacklogAnalyzer.get().control(obj));
+        }
+        if ("Watch".equals(type)) { // [ADDED] Cap/Ai 실시간 변경 피드 구독
+            return ChangeFeed.get().watch(session, obj);
+        }
+        if ("Unwatch".equals(type)) {
+            ChangeFeed.get().unwatch(session);
+            return "{\"Type\":\"UnwatchAck\"}";
+        }
+        return TopicBroker.get().handle(session, obj); // [ADDED] Subscribe/Unsubscribe/Publish, 그 외 null
     }
 
     // ===========================================================
@@ -93,7 +232,7 @@ public class ControlManager {
         try {
             JsonObject in = GSON.fromJson(originalJson, JsonObject.class);
             String type = in.has("Type") ? in.get("Type").getAsString() : "";
-            if (!"Stt".equals(type)) return;
+            if (!"Stt".equals(type) || closed) return;
 
             // [MODIFIED] Text만 사용 (Voice 제거)
             String userText = in.has("Text") ? in.get("Text").getAsString() : null;
@@ -102,25 +241,64 @@ public class ControlManager {
                 return;
             }
 
+            // [ADDED] 마감이 이미 지났으면 (밀린 질문) 답변하지 않고 통지
+            Deadline deadline = Deadline.of(in);
+            if (deadline.expired()) {
+                deadline.countExpired();
+                System.out.println("[STT] drop expired question (" + -deadline.remainingMillis() + "ms late)");
+                sendTo(replyTo, expiredSttResult(nowString()).toString());
+                return;
+            }
+
             final String resultDatetime = nowString();
 
-            exec.submit(() -> {
-                try {
-                    // 1) OpenAI 호출 (세션 메모리 포함)
-                    String answer = callOpenAIText(replyTo, userText);
+            // [ADDED] 스트리밍 모드: 델타(또는 문장)를 SttResultDelta로 즉시 전달
+            String streamMode = in.has("Stream") ? in.get("Stream").getAsString() : STT_STREAM_DEFAULT;
+            boolean streaming = "token".equalsIgnoreCase(streamMode) || "sentence".equalsIgnoreCase(streamMode);
+            int[] seq = {0};
+            long t0 = System.nanoTime();
+            Consumer<String> deltaOut = piece -> {
+                if (seq[0] == 0) {
+                    System.out.println("[STT] first delta in " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+                }
+                JsonObject d = new JsonObject();
+                d.addProperty("Type", "SttResultDelta");
+                d.addProperty("Datetime", resultDatetime);
+                d.addProperty("Seq", seq[0]++);
+                d.addProperty("Text", piece);
+                sendAsync(replyTo, d.toString()); // [MODIFIED] HttpClient 스레드에서 호출되므로 비동기 전송
+            };
+            SentenceChunker chunker = "sentence".equalsIgnoreCase(streamMode) ? new SentenceChunker(deltaOut) : null;
+            Consumer<String> onDelta = !streaming ? null : (chunker != null ? chunker : deltaOut);
+
+            // 1) OpenAI 호출 (세션 메모리 포함) - [MODIFIED] 비동기, 응답 후 처리는 exec에서
+            CompletableFuture<Void> pipeline = trackCall(callOpenAIText(replyTo, userText, onDelta, deadline.nanos()))
+                .thenAcceptAsync(reply -> {
+                    String answer = reply.text;
+                    if (chunker != null) chunker.flush();
 
                     // 2) 클라이언트로 즉시 전달 (아웃바운드)
                     JsonObject outbound = new JsonObject();
                     outbound.addProperty("Type", "SttResult");
                     outbound.addProperty("Datetime", resultDatetime);
                     outbound.addProperty("Text", answer); // 응답은 answer만 보냄
+                    if (streaming && !reply.cached) outbound.addProperty("Streamed", true); // 델타로 이미 전달됨 표시
+                    if (reply.cached) outbound.addProperty("Cached", true);                   // 캐시 재사용 표시
+                    String outboundJson = outbound.toString();
                     if (replyTo != null && replyTo.isOpen()) {
-                        sendTo(replyTo, outbound.toString());
+                        sendTo(replyTo, outboundJson);
                     }
+                    publishFor(replyTo, "stt", outboundJson); // [ADDED]
 
                     // 3) 합본 문자열 구성 (요구사항)
                     String combined = "질문: " + userText + "\n답변: " + answer;
 
+                    // [ADDED] 세션이 이미 닫혔으면 설정에 따라 저장/기억 생략
+                    if (!persistable()) {
+                        System.out.println("[STT] session closed; result not stored");
+                        return;
+                    }
+
                     // 4) Firestore 저장은 합본 1건만 (raw에 in/out 모두 보관)
                     if (ingestService != null) {
                         JsonObject wrapper = new JsonObject();
@@ -129,8 +307,9 @@ public class ControlManager {
                         wrapper.addProperty("Text", combined);           // 합본 문자열
                         wrapper.add("raw_inbound",  in);                 // 인바운드 원문
                         wrapper.add("raw_outbound", outbound);           // 아웃바운드 원문
+                        if (reply.cached) wrapper.addProperty("Cached", true);
                         try {
-                            String saved = ingestService.handle(wrapper.toString());
+                            String saved = ingestService.handleGenerated(wrapper.toString()); // [MODIFIED] 멱등 테이블 제외
                             System.out.println("[STT] stored combined: " + saved);
                         } catch (Exception e) {
                             System.err.println("[STT] store failed: " + e.getMessage());
@@ -140,8 +319,19 @@ public class ControlManager {
                     // 5) 메모리에 user/assistant 축적 (세션 기억)
                     pushHistory(replyTo, "user", userText);
                     pushHistory(replyTo, "assistant", answer);
-
-                } catch (Exception e) {
+                }, exec)
+                .exceptionally(err -> {
+                    Throwable e = rootCause(err);
+                    if (e instanceof CancellationException && closed) { // [ADDED] 세션 종료로 취소
+                        System.out.println("[STT] cancelled: session closed");
+                        return null;
+                    }
+                    if (deadline.expired()) { // [ADDED] 대기/호출 중 마감 초과
+                        deadline.countExpired();
+                        System.out.println("[STT] expired while waiting: " + e);
+                        sendTo(replyTo, expiredSttResult(resultDatetime).toString());
+                        return null;
+                    }
                     e.printStackTrace();
                     // 실패 시에도 간단 응답
                     JsonObject fail = new JsonObject();
@@ -149,76 +339,120 @@ public class ControlManager {
                     fail.addProperty("Datetime", resultDatetime);
                     fail.addProperty("Text", "분석 실패: " + e.getMessage());
                     if (replyTo != null && replyTo.isOpen()) sendTo(replyTo, fail.toString());
-                }
-            });
+                    return null;
+                });
+            trackPipeline(pipeline);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // ===== 고정 프롬프트 (한 번만 직렬화해 두고 매 요청 재사용) =====
+    private static final String SYSTEM_TEXT_MSG = OpenAIClient.message("system",
+            "너는 하수구/배수로 청소 로봇의 보조관제 AI다. "
+            + "사용자가 설명한 상황을 바탕으로 위험요소(감전/흡입/전선/날카로움/미끄럼), "
+            + "주행 가능성, 청소 우선순위(분사/파쇄/우회)와 즉시 실행할 행동을 "
+            + "간결하고 실용적으로 한국어로 제안해라. 이모지나 특수문자 없이.");
+
+    static final String SYSTEM_ANALYZE_MSG = OpenAIClient.message("system",
+            "현재 배수로 및 하수구 청소 로봇이 찍은 사진이다. "
+            + "이미지를 보고 객체를 분석하여 알려주고 위험요소(감전/흡입/전선/날카로움/미끄럼), 주행 가능성, "
+            + "청소 우선순위(분사/파쇄/우회)등 을 고려하여 분석한 결과를 간결하게 특수문자나 이모티콘없이"
+            + "한국어 스크립트로 제안해라. 사용자에게 말하듯이 잘 정리해서");
+
+    static final Map<String, Object> ANALYZE_TEXT_PART = Map.of(
+            "type", "text",
+            "text", "현재 상황 요약 + 위험요소 + 즉시 수행 액션(우선순위) 중심으로 말해줘.");
+
     // ===== OpenAI 호출 (텍스트 with 세션 메모리) =====
-    private String callOpenAIText(Session session, String userText) throws Exception {
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey == null || apiKey.isBlank()) {
-            throw new IllegalStateException("OPENAI_API_KEY 환경변수가 필요합니다.");
+    private CompletableFuture<AnswerCache.Answer> callOpenAIText(Session session, String userText,
+                                                                 Consumer<String> onDelta, long deadline) {
+        // [MODIFIED] clientId 대화 기억(토큰 예산 이내) → messages 에 주입
+        List<String> messages = new ArrayList<>();
+        messages.add(SYSTEM_TEXT_MSG);
+        for (Map<String,String> m : ConversationMemory.get().context(memoryKey(session))) {
+            messages.add(OpenAIClient.message(m.get("role"), m.get("content")));
         }
+        // [MODIFIED] 캐시 키 = 질문 + 대화 요약 (최근 발화까지 넣으면 거의 히트하지 않음)
+        String cacheKey = AnswerCache.key(userText, ConversationMemory.get().summary(memoryKey(session)));
+        messages.add(OpenAIClient.message("user", userText));
+
+        return AnswerCache.get().getOrLoad(cacheKey, () -> {
+            long t0 = System.nanoTime();
+            CompletableFuture<ModelRouter.Routed> routed = ModelRouter.get()
+                    .call(ModelRouter.Kind.TEXT, ModelRouter.complexText(userText), messages, 0.2,
+                            onDelta, deadline);
+            return ModelRouter.cancelUpstream(routed.thenApply(r -> {
+                        logUsage("text " + (onDelta != null ? "stream " : "") + "route=" + r.route + " model=" + r.model
+                                + (r.fallback ? " (fallback)" : "")
+                                + " llm=" + (System.nanoTime() - t0) / 1_000_000 + "ms", r.root);
+                        return OpenAIClient.contentOf(r.root);
+                    }), routed);
+        });
+    }
 
-        String system = "너는 하수구/배수로 청소 로봇의 보조관제 AI다. "
-                + "사용자가 설명한 상황을 바탕으로 위험요소(감전/흡입/전선/날카로움/미끄럼), "
-                + "주행 가능성, 청소 우선순위(분사/파쇄/우회)와 즉시 실행할 행동을 "
-                + "간결하고 실용적으로 한국어로 제안해라. 이모지나 특수문자 없이.";
-
-        // [ADDED] 세션 메모리 → messages 에 주입
-        List<Map<String,String>> mem = history(session);
-        List<Object> messages = new ArrayList<>();
-        messages.add(Map.of("role","system","content", system));
-        synchronized (mem) {
-            for (Map<String,String> m : mem) {
-                messages.add(Map.of("role", m.get("role"), "content", m.get("content")));
+    // ===== 기존 Cap 분석 로직/유틸 (생략 없이 유지) =====
+    public void CapAnalyze(Session replyTo, String originalJson, String dbResult) {
+        if (originalJson.contains("\"Batch\"")) { // [ADDED] 일괄 저장 응답이면 Cap 항목들 일괄 예약
+            JsonObject obj = GSON.fromJson(originalJson, JsonObject.class);
+            if (obj.has("Type") && "Batch".equals(obj.get("Type").getAsString())) {
+                analyzeBatch(replyTo, obj, dbResult);
+                return;
             }
         }
-        messages.add(Map.of("role","user","content", userText));
-
-        Map<String, Object> body = Map.of(
-                "model", "gpt-4o-mini",
-                "messages", messages,
-                "temperature", 0.2
-        );
-
-        String json = GSON.toJson(body);
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(java.net.URI.create("https://api.openai.com/v1/chat/completions"))
-                .header("Authorization", "Bearer " + apiKey)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(json))
-                .build();
-
-        HttpClient http = HttpClient.newHttpClient();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() / 100 != 2) {
-            throw new RuntimeException("OpenAI 호출 실패: " + res.statusCode() + " " + res.body());
-        }
+        analyzeCap(replyTo, TopicBroker.clientId(replyTo), originalJson, dbResult, null, false);
+    }
 
-        JsonObject root = GSON.fromJson(res.body(), JsonObject.class);
+    /**
+     * [ADDED] Batch로 저장된 Cap들의 분석을 한 번에 예약
+     * - 저장/접수/중복(재전송) 항목 모두 대상 (중복은 저장된 결과 재사용 또는 진행 중 분석에 합류)
+     * - [MODIFIED] 항목마다 작업 큐에 넣고 큐 작업자(QUEUE_CONCURRENCY)가 꺼낼 때 분석 시작
+     *   → 마감은 항목별로 꺼낸 시점부터 (최대 BATCH_MAX_ITEMS건이 마감 하나를 나눠 쓰다 뒤쪽이 만료되지 않음)
+     * - 이 세션이 열려 있으면 결과 회신, 닫혔거나 재시작 후면 세션 없이 실행해 Ai 문서로 저장
+     */
+    private void analyzeBatch(Session replyTo, JsonObject batch, String dbResult) {
         try {
-            return root.getAsJsonArray("choices")
-                    .get(0).getAsJsonObject()
-                    .getAsJsonObject("message")
-                    .get("content").getAsString();
+            JsonArray items = batch.getAsJsonArray("Items");
+            JsonObject ack = GSON.fromJson(dbResult, JsonObject.class);
+            if (replyTo != null) JOB_OWNERS.put(jobOwner, new JobOwner(this, replyTo));
+            int scheduled = 0;
+            for (JsonElement el : ack.getAsJsonArray("Items")) {
+                JsonObject r = el.getAsJsonObject();
+                if (!r.has("Type") || !"Cap".equals(r.get("Type").getAsString()) || !r.has("Ack")) continue;
+                String item = items.get(r.get("Index").getAsInt()).toString();
+                JsonObject p = GSON.fromJson(jobPayload(item, r.get("Ack").getAsString(), TopicBroker.clientId(replyTo)),
+                        JsonObject.class);
+                p.addProperty("owner", jobOwner);
+                DurableJobQueue.get().enqueue(JOB_CAP_ANALYZE_BATCH, p.toString());
+                scheduled++;
+            }
+            System.out.println("[AI] batch analyze scheduled caps=" + scheduled + " / items=" + items.size());
         } catch (Exception e) {
-            throw new RuntimeException("OpenAI 응답 파싱 실패: " + e.getMessage() + " / body=" + res.body());
+            System.err.println("[AI] batch analyze skipped: " + e.getMessage());
         }
     }
 
-    // ===== 기존 Cap 분석 로직/유틸 (생략 없이 유지) =====
-    public void CapAnalyze(Session replyTo, String originalJson, String dbResult) {
+    /**
+     * [MODIFIED] Cap 분석 본체
+     * @param robot Cap을 올린 로봇 id (Ai 문서 robotId, 모르면 null)
+     * @param fixedDeadline 분석 마감 (null이면 재실행은 지금부터, 그 외는 메시지 Datetime 기준)
+     * @param replay 작업 큐 실행 (결과는 Ai 문서로 저장, 마감은 지금부터, replyTo가 있으면 회신도)
+     * @return 분석+저장 완료 future (실패/마감 초과는 예외 완료, 분석 대상이 아니거나 합류한 경우는 즉시 완료)
+     */
+    private CompletableFuture<Void> analyzeCap(Session replyTo, String robot, String originalJson, String dbResult,
+                                               Deadline fixedDeadline, boolean replay) {
         try {
             JsonObject obj = GSON.fromJson(originalJson, JsonObject.class);
             String type = obj.has("Type") ? obj.get("Type").getAsString() : "";
-            if (!"Cap".equals(type)) return;
+            if (!"Cap".equals(type) && !"CapStreamEnd".equals(type)) return DONE; // [MODIFIED] 스트리밍 업로드 확정도 분석
+            if (closed) { // [ADDED] 종료된 세션의 늦은 메시지 (큐 작업은 실패시켜 세션 없이 재실행)
+                return replay ? CompletableFuture.failedFuture(new CancellationException("session closed")) : DONE;
+            }
 
             String datetime = obj.has("Datetime") ? obj.get("Datetime").getAsString() : nowString();
+            Deadline deadline = fixedDeadline != null ? fixedDeadline
+                    : replay ? Deadline.fromNow(type) : Deadline.of(obj); // [ADDED]
 
             String capId = tryExtractCapId(dbResult);
             String gcsUri = tryExtractGcsUri(dbResult);
@@ -227,126 +461,313 @@ public class ControlManager {
             }
             if (capId == null || gcsUri == null) {
                 System.err.println("[AI] skip analyze: cannot parse id/gcs from dbResult=" + dbResult);
-                return;
+                return DONE;
             }
 
-            final String finalDatetime = datetime;
+            // [ADDED] 같은 capId/같은 내용 분석이 진행 중이면 합류 (완료 시 함께 결과 수신)
+            String contentHash = tryExtract(dbResult, HASH_PATTERN);
+            String dupOf = tryExtract(dbResult, DUP_PATTERN);
+            AnalysisFlights.Flight flight = AnalysisFlights.get()
+                    .join(capId, contentHash, new AnalysisFlights.Waiter(replyTo, capId, datetime, robot));
+            if (flight == null) {
+                System.out.println("[AI] joined in-flight analysis capId=" + capId);
+                return DONE;
+            }
+
+            // [ADDED] 리더 분석은 내구성 작업 큐에 기록 → 인스턴스 교체/재시작 후에도 재실행
+            long job = replay ? -1 : DurableJobQueue.get().enqueueClaimed(JOB_CAP_ANALYZE, jobPayload(originalJson, dbResult, robot));
+
             final String finalId = capId;
             final String finalGcsUri = gcsUri;
 
-            exec.submit(() -> {
-                try {
-                    String[] bo = splitGsUri(finalGcsUri);
-                    URL signed = GcsUrlUtil.createDownloadUrl(bo[0], bo[1], Duration.ofMinutes(30));
-                    String signedUrl = signed.toExternalForm();
+            // [MODIFIED] 서명/이미지 준비는 exec, OpenAI 대기는 비동기, 저장/회신은 다시 exec
+            CompletableFuture<Void> done = CompletableFuture
+                .supplyAsync(() -> {
+                    checkCancelled(flight); // [ADDED] 단계마다 세션 종료 확인
+                    String[] bo = GcsUrlUtil.splitGsUri(finalGcsUri);
+                    String signedUrl = GcsUrlUtil.createDownloadUrl(bo[0], bo[1], Duration.ofMinutes(30)).toExternalForm();
+
+                    // [ADDED] 최근/저장된 결과가 있으면 OpenAI 호출 없이 재사용
+                    checkCancelled(flight);
+                    String[] known = findKnownAnalysis(finalId, contentHash, dupOf);
+                    if (known != null) {
+                        boolean storedOwn = "stored".equals(known[1]) || "memo".equals(known[1]);
+                        return new Prepared(signedUrl, null, known[0], storedOwn);
+                    }
 
-                    String resultText = callOpenAIAnalyze(signedUrl);
+                    // [ADDED] 재사용할 결과가 없는데 마감이 지났으면 LLM 호출 전에 중단
+                    if (deadline.expired()) {
+                        throw new CompletionException(new TimeoutException("분석 마감 초과(대기열)"));
+                    }
 
-                    if (ingestService != null) {
-                        JsonObject ai = new JsonObject();
-                        ai.addProperty("Type", "Ai");
-                        ai.addProperty("Datetime", finalDatetime);
-                        ai.addProperty("CapId", finalId);
-                        ai.addProperty("GcsUri", finalGcsUri);
-                        ai.addProperty("Url", signedUrl);
-                        ai.addProperty("Result", resultText);
+                    // [ADDED] inline 모드: 서버에서 한 번 읽어 축소 후 data URL로 전달 (실패 시 서명 URL)
+                    checkCancelled(flight);
+                    if (IMAGE_INLINE) {
                         try {
-                            String saved = ingestService.handle(ai.toString());
-                            System.out.println("[AI] saved: " + saved);
+                            InlineImages.Inline inl = InlineImages.toDataUrl(finalGcsUri).get();
+                            System.out.println("[AI] inline image capId=" + finalId
+                                    + " " + inl.width + "x" + inl.height + " bytes=" + inl.bytes
+                                    + " fetch=" + inl.fetchMs + "ms encode=" + inl.encodeMs + "ms");
+                            boolean complex = ModelRouter.complexScene(inl.bytes, inl.width, inl.height);
+                            return new Prepared(signedUrl, new ImageRef(inl.dataUrl, "inline", complex), null, false);
                         } catch (Exception e) {
-                            System.err.println("[AI] save failed: " + e.getMessage());
+                            System.err.println("[AI] inline failed, fallback to url: " + rootCause(e).getMessage());
                         }
                     }
-
-                    JsonObject resp = new JsonObject();
-                    resp.addProperty("Type", "CapAnalysis");
-                    resp.addProperty("Datetime", finalDatetime);
-                    resp.addProperty("ID", finalId);
-                    resp.addProperty("gcsurl", signedUrl);
-                    resp.addProperty("result", resultText);
-
-                    if (replyTo != null && replyTo.isOpen()) {
-                        sendTo(replyTo, resp.toString());
+                    // url 모드는 크기를 모르므로 fast
+                    return new Prepared(signedUrl, new ImageRef(signedUrl, "url", false), null, false);
+                }, exec)
+                .thenCompose(p -> (p.reused() != null
+                        ? CompletableFuture.completedFuture(p.reused())
+                        : attach(flight, callOpenAIAnalyze(p.image().url(), p.image().source(), p.image().complex(),
+                                deadline.nanos())))
+                    .thenAcceptAsync(resultText -> {
+                        // [MODIFIED] 합류한 모든 요청에 결과 팬아웃 (capId별 Ai 문서는 한 번씩만 저장)
+                        List<AnalysisFlights.Waiter> waiters = AnalysisFlights.get().finish(flight, resultText);
+                        Set<String> stored = new HashSet<>();
+                        for (AnalysisFlights.Waiter w : waiters) {
+                            boolean open = w.session != null && w.session.isOpen();
+                            if ((open || PERSIST_AFTER_CLOSE || replay) // [ADDED] 닫힌 세션 결과는 설정에 따라 저장
+                                    && stored.add(w.capId) && !(p.storedOwn() && w.capId.equals(finalId))) {
+                                saveAiResult(w.capId, w.robot, w.datetime, finalGcsUri, p.signedUrl(), resultText);
+                            }
+
+                            JsonObject resp = new JsonObject();
+                            resp.addProperty("Type", "CapAnalysis");
+                            resp.addProperty("Datetime", w.datetime);
+                            resp.addProperty("ID", w.capId);
+                            resp.addProperty("gcsurl", p.signedUrl());
+                            resp.addProperty("result", resultText);
+
+                            String respJson = resp.toString();
+                            publishFor(w.session, "ai", respJson); // [ADDED] 같은 로봇 구독자에게도
+                            if (w.session != null && w.session.isOpen()) {
+                                sendTo(w.session, respJson);
+                            } else {
+                                System.out.println("[AI] replyTo session closed or null; result not delivered. capId=" + w.capId);
+                            }
+                        }
+                    }, exec));
+            CompletableFuture<Void> pipeline = done
+                .exceptionally(err -> {
+                    Throwable e = rootCause(err);
+                    if (flight.cancelled) { // [ADDED] 기다리는 세션이 모두 닫혀 취소됨
+                        System.out.println("[AI] analysis cancelled capId=" + finalId + ": sessions closed");
+                        AnalysisFlights.get().finish(flight, null);
+                        return null;
+                    }
+                    boolean expired = deadline.expired(); // [ADDED] 마감 초과는 Expired로 통지
+                    if (expired) {
+                        deadline.countExpired();
+                        System.out.println("[AI] analysis expired capId=" + finalId + ": " + e);
                     } else {
-                        System.out.println("[AI] replyTo session closed or null; result not delivered. capId=" + finalId);
+                        e.printStackTrace();
                     }
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    JsonObject fail = new JsonObject();
-                    fail.addProperty("Type", "CapAnalysis");
-                    fail.addProperty("Datetime", finalDatetime);
-                    fail.addProperty("ID", finalId);
-                    fail.addProperty("gcsurl", finalGcsUri);
-                    fail.addProperty("result", "분석 실패: " + e.getMessage());
-                    if (replyTo != null && replyTo.isOpen()) {
-                        sendTo(replyTo, fail.toString());
+                    for (AnalysisFlights.Waiter w : AnalysisFlights.get().finish(flight, null)) {
+                        JsonObject fail = new JsonObject();
+                        fail.addProperty("Type", "CapAnalysis");
+                        fail.addProperty("Datetime", w.datetime);
+                        fail.addProperty("ID", w.capId);
+                        fail.addProperty("gcsurl", finalGcsUri);
+                        if (expired) {
+                            fail.addProperty("result", "요청 시간이 지나 분석하지 않았습니다.");
+                            fail.addProperty("Expired", true);
+                        } else {
+                            fail.addProperty("result", "분석 실패: " + e.getMessage());
+                        }
+                        publishFor(w.session, "ai", fail.toString()); // [ADDED]
+                        if (w.session != null && w.session.isOpen()) {
+                            sendTo(w.session, fail.toString());
+                        }
                     }
-                }
-            });
+                    return null;
+                });
+            trackPipeline(pipeline);
+            if (job >= 0) {
+                // [MODIFIED] 완료만 ack, 실패/마감 초과/세션 종료 취소는 fail → 큐가 백오프 후 세션 없이(headless) 재실행
+                // (시도 한도를 넘으면 큐가 폐기 = 최종 실패 ack), 닫힌 세션 결과를 저장하지 않는 설정이면 취소는 ack
+                done.whenComplete((v, err) -> {
+                    if (err == null || (flight.cancelled && !PERSIST_AFTER_CLOSE)) DurableJobQueue.get().ack(job);
+                    else DurableJobQueue.get().fail(job, rootCause(err));
+                });
+            }
+            return done;
         } catch (Exception ignore) {
             ignore.printStackTrace();
+            return CompletableFuture.failedFuture(ignore);
         }
     }
 
-    private String callOpenAIAnalyze(String imageUrl) throws Exception {
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey == null || apiKey.isBlank()) throw new IllegalStateException("OPENAI_API_KEY 필요");
+    // ===== [ADDED] 내구성 작업 큐 (재실행용 세션 없는 인스턴스) =====
+    private static final String JOB_CAP_ANALYZE = "cap-analyze";
+    private static final String JOB_CAP_ANALYZE_BATCH = "cap-analyze-batch";
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static volatile ControlManager headless;
+
+    private static String jobPayload(String originalJson, String dbResult, String robot) {
+        JsonObject p = new JsonObject();
+        p.addProperty("msg", originalJson);
+        p.addProperty("dbResult", dbResult);
+        if (robot != null) p.addProperty("robot", robot); // [ADDED] 세션 없이 재실행해도 Ai 문서에 로봇 기록
+        return p.toString();
+    }
 
-        String system = "현재 배수로 및 하수구 청소 로봇이 찍은 사진이다. "
-                + "이미지를 보고 객체를 분석하여 알려주고 위험요소(감전/흡입/전선/날카로움/미끄럼), 주행 가능성, "
-                + "청소 우선순위(분사/파쇄/우회)등 을 고려하여 분석한 결과를 간결하게 특수문자나 이모티콘없이"
-                + "한국어 스크립트로 제안해라. 사용자에게 말하듯이 잘 정리해서";
+    private static String robotOf(JsonObject payload) {
+        return payload.has("robot") ? payload.get("robot").getAsString() : null;
+    }
 
-        Map<String, Object> imagePart = Map.of(
-                "type", "image_url",
-                "image_url", Map.of("url", imageUrl)
-        );
-        Map<String, Object> textPart = Map.of(
-                "type", "text",
-                "text", "현재 상황 요약 + 위험요소 + 즉시 수행 액션(우선순위) 중심으로 말해줘."
-        );
+    private static synchronized ControlManager headless() {
+        if (headless == null) {
+            ControlManager cm = new ControlManager();
+            cm.setIngestService(new IngestFirestoreService());
+            headless = cm;
+        }
+        return headless;
+    }
 
-        Map<String, Object> body = Map.of(
-                "model", "gpt-4o-mini",
-                "messages", List.of(
-                        Map.of("role", "system", "content", system),
-                        Map.of("role", "user", "content", List.of(textPart, imagePart))
-                ),
-                "temperature", 0.2
-        );
+    // [ADDED] Batch 분석 작업을 넣은 연결 (작업 payload의 owner → 회신할 세션), 연결 종료 시 제거
+    private static final Map<String, JobOwner> JOB_OWNERS = new ConcurrentHashMap<>();
+    private final String jobOwner = UUID.randomUUID().toString();
 
-        String json = GSON.toJson(body);
-        HttpRequest req = HttpRequest.newBuilder()
-                .uri(java.net.URI.create("https://api.openai.com/v1/chat/completions"))
-                .header("Authorization", "Bearer " + apiKey)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(json))
-                .build();
-
-        HttpClient http = HttpClient.newHttpClient();
-        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
-        if (res.statusCode() / 100 != 2) {
-            throw new RuntimeException("OpenAI 호출 실패: " + res.statusCode() + " " + res.body());
+    private static final class JobOwner {
+        final ControlManager cm;
+        final Session session;
+        JobOwner(ControlManager cm, Session session) { this.cm = cm; this.session = session; }
+    }
+
+    /** 서버 시작 시 작업 큐 시작 전에 호출 (재생된 Cap 분석 작업 처리기 등록) */
+    public static void registerJobHandlers() {
+        DurableJobQueue.get().register(JOB_CAP_ANALYZE, job -> {
+            JsonObject p = GSON.fromJson(job.payload, JsonObject.class);
+            System.out.println("[QUEUE] run " + JOB_CAP_ANALYZE + " job=" + job.id + " attempt=" + job.attempts());
+            return headless().analyzeCap(null, robotOf(p), p.get("msg").getAsString(), p.get("dbResult").getAsString(),
+                    null, true);
+        });
+        // [ADDED] Batch 항목: 마감은 여기(꺼낸 시점)부터, 만료/실패는 ack하지 않고 큐가 백오프 후 재실행
+        DurableJobQueue.get().register(JOB_CAP_ANALYZE_BATCH, job -> {
+            JsonObject p = GSON.fromJson(job.payload, JsonObject.class);
+            JobOwner o = p.has("owner") ? JOB_OWNERS.get(p.get("owner").getAsString()) : null;
+            boolean live = o != null && !o.cm.closed && o.session.isOpen();
+            ControlManager cm = live ? o.cm : headless();
+            return cm.analyzeCap(live ? o.session : null, robotOf(p), p.get("msg").getAsString(),
+                    p.get("dbResult").getAsString(), null, true);
+        });
+    }
+
+    /** [ADDED] 모델에 넘길 이미지 (source: inline | url, complex: 복잡한 장면 → strong 모델 후보) */
+    private record ImageRef(String url, String source, boolean complex) {}
+
+    /** [ADDED] 분석 준비 결과: 재사용할 결과(reused, Ai_{capId}가 이미 있으면 storedOwn) 또는 모델 호출용 image */
+    private record Prepared(String signedUrl, ImageRef image, String reused, boolean storedOwn) {}
+
+    /** [ADDED] 다른 실행 주체(BacklogAnalyzer)가 끝낸 분석을 합류한 세션에 회신 (+ 같은 로봇 구독자) */
+    static void deliverAnalysis(AnalysisFlights.Waiter w, String gcsurl, String resultText) {
+        JsonObject resp = new JsonObject();
+        resp.addProperty("Type", "CapAnalysis");
+        resp.addProperty("Datetime", w.datetime);
+        resp.addProperty("ID", w.capId);
+        resp.addProperty("gcsurl", gcsurl);
+        resp.addProperty("result", resultText);
+        publishFor(w.session, "ai", resp.toString());
+        sendAsync(w.session, resp.toString());
+    }
+
+    /** [ADDED] 분석 LLM 호출을 Flight에 등록 (모든 대기 세션이 닫히면 취소되도록) */
+    private static <T> CompletableFuture<T> attach(AnalysisFlights.Flight flight, CompletableFuture<T> call) {
+        flight.attach(call);
+        return call;
+    }
+
+    /**
+     * [ADDED] 메모(capId/내용 해시) → 저장된 Ai_{capId} → 원본 캡처(dupOf)의 Ai 순으로 기존 결과 조회
+     * @return {결과, 출처} 또는 null
+     *         출처: memo(같은 capId 메모 = 이미 Ai_{capId} 저장함) | memoHash(같은 내용/원본 메모) | stored | dupOf
+     */
+    private String[] findKnownAnalysis(String capId, String contentHash, String dupOf) {
+        String r = AnalysisFlights.get().recent(capId, null);
+        if (r != null) return new String[]{ r, "memo" };
+        if (contentHash != null) r = AnalysisFlights.get().recent(capId, contentHash);
+        if (r == null && dupOf != null) r = AnalysisFlights.get().recent(dupOf, null);
+        if (r != null) return new String[]{ r, "memoHash" };
+        if (ingestService == null) return null;
+        try {
+            r = ingestService.findAiResult(capId);
+            if (r != null) return new String[]{ r, "stored" };
+            if (dupOf != null) {
+                r = ingestService.findAiResult(dupOf);
+                if (r != null) return new String[]{ r, "dupOf" };
+            }
+        } catch (Exception e) {
+            System.err.println("[AI] stored result lookup failed: " + e.getMessage());
         }
+        return null;
+    }
 
-        JsonObject root = GSON.fromJson(res.body(), JsonObject.class);
+    private void saveAiResult(String capId, String robot, String datetime, String gcsUri, String signedUrl,
+                              String resultText) {
+        if (ingestService == null) return;
+        JsonObject ai = new JsonObject();
+        ai.addProperty("Type", "Ai");
+        ai.addProperty("Datetime", datetime);
+        ai.addProperty("CapId", capId);
+        ai.addProperty("GcsUri", gcsUri);
+        ai.addProperty("Url", signedUrl);
+        if (robot != null) ai.addProperty("RobotId", robot); // [ADDED] 합류한 다른 로봇의 Cap이면 그 로봇으로 기록
+        ai.addProperty("Result", resultText);
         try {
-            return root.getAsJsonArray("choices")
-                    .get(0).getAsJsonObject()
-                    .getAsJsonObject("message")
-                    .get("content").getAsString();
+            String saved = ingestService.handleGenerated(ai.toString()); // [MODIFIED]
+            System.out.println("[AI] saved: " + saved);
         } catch (Exception e) {
-            throw new RuntimeException("OpenAI 응답 파싱 실패: " + e.getMessage() + " / body=" + res.body());
+            System.err.println("[AI] save failed: " + e.getMessage());
         }
     }
 
+    private CompletableFuture<String> callOpenAIAnalyze(String imageUrl, String mode, boolean complexScene, long deadline) {
+        Map<String, Object> imagePart = Map.of(
+                "type", "image_url",
+                "image_url", Map.of("url", imageUrl, "detail", IMAGE_DETAIL)
+        );
+
+        List<String> messages = List.of(
+                SYSTEM_ANALYZE_MSG,
+                OpenAIClient.message("user", List.of(ANALYZE_TEXT_PART, imagePart))
+        );
+        long t0 = System.nanoTime();
+        CompletableFuture<ModelRouter.Routed> routed = ModelRouter.get()
+                .call(ModelRouter.Kind.VISION, complexScene, messages, 0.2, null, deadline);
+        return ModelRouter.cancelUpstream(routed.thenApply(r -> {
+                    logUsage("analyze mode=" + mode + " route=" + r.route + " model=" + r.model
+                            + (r.fallback ? " (fallback)" : "") + " payload=" + messages.get(1).length() + "B llm="
+                            + (System.nanoTime() - t0) / 1_000_000 + "ms", r.root);
+                    return OpenAIClient.contentOf(r.root);
+                }), routed);
+    }
+
     // ===== 유틸 =====
-    private static String[] splitGsUri(String gcsUri) {
-        String noPrefix = gcsUri.replaceFirst("^gs://", "");
-        int idx = noPrefix.indexOf('/');
-        if (idx < 0) throw new IllegalArgumentException("잘못된 GCS URI: " + gcsUri);
-        return new String[]{ noPrefix.substring(0, idx), noPrefix.substring(idx + 1) };
+    /** [ADDED] 마감 초과로 답하지 않은 질문 통지 (SttResult + Expired=true) */
+    private static JsonObject expiredSttResult(String datetime) {
+        JsonObject o = new JsonObject();
+        o.addProperty("Type", "SttResult");
+        o.addProperty("Datetime", datetime);
+        o.addProperty("Text", "요청 시간이 지나 답변하지 않았습니다. 다시 질문해 주세요.");
+        o.addProperty("Expired", true);
+        return o;
+    }
+    private static Throwable rootCause(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+    /** [ADDED] 응답 usage(토큰 수) 로그 → url/inline 모드 지연·토큰 비교용 */
+    private static void logUsage(String label, JsonObject root) {
+        String usage = "n/a";
+        if (root != null && root.has("usage") && root.get("usage").isJsonObject()) {
+            JsonObject u = root.getAsJsonObject("usage");
+            usage = "prompt=" + (u.has("prompt_tokens") ? u.get("prompt_tokens").getAsInt() : -1)
+                    + " completion=" + (u.has("completion_tokens") ? u.get("completion_tokens").getAsInt() : -1);
+        }
+        System.out.println("[AI] " + label + " tokens(" + usage + ")");
     }
     private static String nowString() {
         return ZonedDateTime.now(ZONE_SEOUL).format(OUT_FMT);
@@ -356,6 +777,13 @@ public class ControlManager {
         Matcher m = p.matcher(dbResult);
         return m.find() ? m.group(1) : null;
     }
+    // [ADDED] Cap 저장 응답의 (md5=...) / (dup=Cap_...) 부분
+    private static final Pattern HASH_PATTERN = Pattern.compile("\\(md5=([0-9a-f]{32})\\)");
+    private static final Pattern DUP_PATTERN = Pattern.compile("\\(dup=(Cap_\\d{8}_\\d{6}_\\d+)\\)");
+    private static String tryExtract(String dbResult, Pattern p) {
+        Matcher m = p.matcher(dbResult);
+        return m.find() ? m.group(1) : null;
+    }
     private static String tryExtractGcsUri(String dbResult) {
         Pattern p = Pattern.compile("\\(gcs=(gs://[^)]+)\\)");
         Matcher m = p.matcher(dbResult);
@@ -0,0 +1,358 @@
+package gcfv2.control;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import gcfv2.Env;
+import gcfv2.ai.ModelRouter;
+import gcfv2.ai.OpenAIClient;
+import gcfv2.ai.RateLimiter;
+import gcfv2.fs.FirestoreClient;
+import gcfv2.limit.Bulkheads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * clientId별 대화 기억 (재접속해도 맥락 유지)
+ * - 대화마다 고정 크기 링 버퍼(CONV_RING_SIZE, 32 메시지): 쓰기는 시퀀스 번호 getAndIncrement 후 슬롯 set, 락 없음
+ * - 프롬프트에 넣을 때는 최신 메시지부터 추정 토큰 합이 CONV_TOKEN_BUDGET(1500)을 넘기 전까지만 사용
+ * - CONV_IDLE_MIN(30)분 동안 안 쓰인 대화는 메모리에서 제거
+ * - CONV_PERSIST=on 이면 Firestore Conversation/{clientId}에 지연 쓰기(CONV_FLUSH_SEC, 5초 주기),
+ *   메모리에 없는 clientId는 첫 사용 시 문서에서 복원 → 인스턴스 재시작 후에도 유지
+ * - [MODIFIED] 복원은 비동기(conversation-load 스레드): 빈 대화를 먼저 등록해 두고 조회가 끝나면 합침,
+ *   그동안 context()는 빈/부분 맥락을 돌려줌 (WS 스레드에서 Firestore를 기다리지 않음).
+ *   접속 시 prefetch()로 미리 시작, 로딩 중인 대화는 문서에 덮어쓰지 않고 제거하지도 않음
+ * - [ADDED] id 없는 접속의 세션 키(SESSION_PREFIX + 임의 UUID)는 저장/복원하지 않고 연결 종료 시 drop()
+ * - [ADDED] 롤링 요약(CONV_SUMMARY=on 기본): 요약 안 된 메시지가 CONV_SUMMARY_TRIGGER(800) 토큰을 넘으면
+ *   최근 CONV_SUMMARY_KEEP(4)개를 뺀 오래된 턴을 기존 요약과 합쳐 백그라운드에서 LLM으로 요약,
+ *   완료 시 요약 참조를 CAS로 교체 → 프롬프트 = 요약 1개 + 최근 원문 (질문 처리 경로는 기다리지 않음)
+ * - 연결마다 ControlManager가 따로 생기므로 JVM 전역 싱글턴
+ */
+public final class ConversationMemory {
+
+    /** 메시지 1개 (seq: 대화 내 순번, 링 슬롯 재사용 판별용) */
+    static final class Turn {
+        final long seq;
+        final String role;
+        final String content;
+        final int tokens;
+        Turn(long seq, String role, String content) {
+            this.seq = seq;
+            this.role = role;
+            this.content = content;
+            this.tokens = RateLimiter.estimateTokens(content, 0) + 4; // 메시지 오버헤드 포함
+        }
+    }
+
+    /** 누적 요약: upToSeq 미만 메시지가 text에 접혀 있음 */
+    static final class Summary {
+        static final Summary EMPTY = new Summary("", 0);
+        final String text;
+        final long upToSeq;
+        final int tokens;
+        Summary(String text, long upToSeq) {
+            this.text = text;
+            this.upToSeq = upToSeq;
+            this.tokens = text.isEmpty() ? 0 : RateLimiter.estimateTokens(text, 0) + 8;
+        }
+    }
+
+    /** 대화 1개 = 링 버퍼 + 요약 */
+    static final class Conversation {
+        final AtomicReferenceArray<Turn> ring;
+        final AtomicLong next = new AtomicLong();
+        final AtomicReference<Summary> summary = new AtomicReference<>(Summary.EMPTY);
+        final AtomicBoolean summarizing = new AtomicBoolean(false);
+        volatile long retryAfter = 0;
+        volatile long lastAccess = System.nanoTime();
+        volatile boolean loading; // [ADDED] 문서 복원 진행 중 (끝나기 전엔 flush/evict 안 함)
+
+        Conversation(int capacity, boolean loading) {
+            this.ring = new AtomicReferenceArray<>(capacity);
+            this.loading = loading;
+        }
+
+        void append(String role, String content) {
+            long seq = next.getAndIncrement();
+            ring.set((int) (seq % ring.length()), new Turn(seq, role, content));
+            lastAccess = System.nanoTime();
+        }
+
+        /** fromSeq 이후 메시지를 최신부터 거슬러 올라가며 budget 이내로 (시간순), budget<=0 이면 전부 */
+        List<Turn> recent(int budget, long fromSeq) {
+            long end = next.get();
+            List<Turn> out = new ArrayList<>();
+            int used = 0;
+            for (long seq = end - 1; seq >= fromSeq && seq >= end - ring.length(); seq--) {
+                Turn t = ring.get((int) (seq % ring.length()));
+                if (t == null || t.seq != seq) continue; // 아직 쓰는 중이거나 이미 덮어씀
+                if (budget > 0 && used + t.tokens > budget) break;
+                used += t.tokens;
+                out.add(t);
+            }
+            Collections.reverse(out);
+            // 답변만 남고 질문이 잘린 경우 앞의 답변 제거
+            while (!out.isEmpty() && !"user".equals(out.get(0).role)) out.remove(0);
+            return out;
+        }
+    }
+
+    private static final ConversationMemory INSTANCE = new ConversationMemory();
+    public static ConversationMemory get() { return INSTANCE; }
+
+    private static final String COLLECTION = "Conversation";
+    public static final String SESSION_PREFIX = "session:";
+
+    private final int capacity = Env.getInt("CONV_RING_SIZE", 32);
+    private final int tokenBudget = Env.getInt("CONV_TOKEN_BUDGET", 1500);
+    private final long idleNanos = TimeUnit.MINUTES.toNanos(Env.getInt("CONV_IDLE_MIN", 30));
+    private final boolean persist = Env.getFlag("CONV_PERSIST", false);
+    private final boolean summarize = Env.getFlag("CONV_SUMMARY", true);
+    private final int summaryTrigger = Env.getInt("CONV_SUMMARY_TRIGGER", 800);
+    private final int summaryKeep = Env.getInt("CONV_SUMMARY_KEEP", 4);
+    private final AtomicLong summaries = new AtomicLong(), summaryFailures = new AtomicLong();
+
+    private static final String SUMMARY_SYSTEM_MSG = OpenAIClient.message("system",
+            "너는 하수구/배수로 청소 로봇 관제 대화를 요약한다. 이전 요약과 새 대화를 합쳐 "
+            + "이후 답변에 필요한 사실(위치, 발견한 위험요소, 진행한 작업, 사용자의 요청과 결정)만 "
+            + "한국어 5문장 이내로 간결하게 정리해라. 이모지나 특수문자 없이.");
+
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicLong evicted = new AtomicLong(), restored = new AtomicLong(), flushed = new AtomicLong();
+    private final AtomicLong restoreSkipped = new AtomicLong();
+    private final ExecutorService loader = Executors.newFixedThreadPool(2, r -> { // [ADDED] 복원 조회 전용
+        Thread t = new Thread(r, "conversation-load");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ConversationMemory() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "conversation-memory");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+        if (persist) {
+            long sec = Env.getInt("CONV_FLUSH_SEC", 5);
+            timer.scheduleWithFixedDelay(this::flushDirty, sec, sec, TimeUnit.SECONDS);
+        }
+    }
+
+    /** [ADDED] 접속 시 호출: 저장된 대화 복원을 미리 시작 (기다리지 않음) */
+    public void prefetch(String clientId) {
+        conversation(clientId);
+    }
+
+    /** 프롬프트용 대화 맥락: [요약(system)] + 요약 이후 최근 메시지 (합계 토큰 예산 이내, 시간순) */
+    public List<Map<String, String>> context(String clientId) {
+        Conversation c = conversation(clientId);
+        Summary s = c.summary.get();
+        List<Map<String, String>> out = new ArrayList<>();
+        if (!s.text.isEmpty()) out.add(Map.of("role", "system", "content", "이전 대화 요약: " + s.text));
+        for (Turn t : c.recent(Math.max(1, tokenBudget - s.tokens), s.upToSeq)) {
+            out.add(Map.of("role", t.role, "content", t.content));
+        }
+        return out;
+    }
+
+    /** [ADDED] 현재 롤링 요약 본문 (없으면 "") - 답변 캐시 키용 */
+    public String summary(String clientId) {
+        return conversation(clientId).summary.get().text;
+    }
+
+    public void append(String clientId, String role, String content) {
+        Conversation c = conversation(clientId);
+        c.append(role, content);
+        if (persisted(clientId)) dirty.add(clientId);
+        if (summarize) maybeSummarize(clientId, c);
+    }
+
+    // ===== 롤링 요약 =====
+
+    /** 요약 안 된 메시지가 기준을 넘으면 오래된 턴을 접는 작업 시작 (대화당 1개씩, 비동기) */
+    private void maybeSummarize(String clientId, Conversation c) {
+        Summary s = c.summary.get();
+        List<Turn> pending = c.recent(0, s.upToSeq);
+        if (pending.size() <= summaryKeep) return;
+        int tokens = 0;
+        for (Turn t : pending) tokens += t.tokens;
+        if (tokens < summaryTrigger || System.nanoTime() - c.retryAfter < 0) return;
+
+        List<Turn> fold = new ArrayList<>(pending.subList(0, pending.size() - summaryKeep));
+        while (!fold.isEmpty() && "user".equals(fold.get(fold.size() - 1).role)) fold.remove(fold.size() - 1); // 질문-답변 쌍 유지
+        if (fold.isEmpty() || !c.summarizing.compareAndSet(false, true)) return;
+
+        StringBuilder sb = new StringBuilder();
+        if (!s.text.isEmpty()) sb.append("이전 요약: ").append(s.text).append("\n\n");
+        sb.append("새 대화:\n");
+        for (Turn t : fold) sb.append("user".equals(t.role) ? "사용자: " : "보조: ").append(t.content).append('\n');
+        long upTo = fold.get(fold.size() - 1).seq + 1;
+        long t0 = System.nanoTime();
+
+        ModelRouter.get()
+                .call(ModelRouter.Kind.TEXT, false, List.of(SUMMARY_SYSTEM_MSG, OpenAIClient.message("user", sb.toString())),
+                        0.2, null, OpenAIClient.defaultDeadline())
+                .whenComplete((r, err) -> {
+                    try {
+                        if (err != null) {
+                            summaryFailures.incrementAndGet();
+                            c.retryAfter = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+                            System.err.println("[MEMORY] summarize failed clientId=" + clientId + ": " + err.getMessage());
+                            return;
+                        }
+                        Summary next = new Summary(OpenAIClient.contentOf(r.root).trim(), upTo);
+                        if (c.summary.compareAndSet(s, next)) { // 원자적 교체 (다음 context()부터 반영)
+                            summaries.incrementAndGet();
+                            if (persisted(clientId)) dirty.add(clientId);
+                            System.out.println("[MEMORY] summarized clientId=" + clientId + " turns=" + fold.size()
+                                    + " tokens=" + s.tokens + "->" + next.tokens
+                                    + " in " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+                        }
+                    } catch (RuntimeException e) {
+                        summaryFailures.incrementAndGet();
+                        System.err.println("[MEMORY] summarize failed clientId=" + clientId + ": " + e.getMessage());
+                    } finally {
+                        c.summarizing.set(false);
+                    }
+                });
+    }
+
+    /** [MODIFIED] 블로킹 없음: 없으면 빈 대화를 등록하고 복원은 loader에서 (등록에 이긴 호출만 시작) */
+    private Conversation conversation(String clientId) {
+        Conversation c = conversations.get(clientId);
+        if (c == null) {
+            boolean load = persisted(clientId);
+            Conversation fresh = new Conversation(capacity, load);
+            c = conversations.putIfAbsent(clientId, fresh);
+            if (c == null) {
+                c = fresh;
+                if (load) loader.execute(() -> load(clientId, fresh));
+            }
+        }
+        c.lastAccess = System.nanoTime();
+        return c;
+    }
+
+    /** [ADDED] 세션 키 대화는 Firestore에 남기지 않음 (연결이 끝나면 다시 쓰일 일 없음) */
+    private boolean persisted(String clientId) {
+        return persist && !clientId.startsWith(SESSION_PREFIX);
+    }
+
+    /** [ADDED] 대화 즉시 제거 (id 없는 세션 종료 시) */
+    public void drop(String clientId) {
+        dirty.remove(clientId);
+        if (conversations.remove(clientId) != null) evicted.incrementAndGet();
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        conversations.forEach((id, c) -> {
+            if (c.loading || now - c.lastAccess < idleNanos) return;
+            if (persist && dirty.remove(id)) write(id, c);
+            if (conversations.remove(id, c)) evicted.incrementAndGet();
+        });
+    }
+
+    // ===== 지연 쓰기 / 복원 =====
+
+    private void flushDirty() {
+        for (String id : new ArrayList<>(dirty)) {
+            dirty.remove(id);
+            Conversation c = conversations.get(id);
+            if (c == null) continue;
+            if (c.loading) dirty.add(id); // 복원 전 상태로 문서를 덮지 않게 다음 주기로
+            else write(id, c);
+        }
+    }
+
+    private void write(String clientId, Conversation c) {
+        Summary s = c.summary.get();
+        List<Map<String, Object>> turns = new ArrayList<>();
+        for (Turn t : c.recent(0, s.upToSeq)) {
+            turns.add(Map.of("role", t.role, "content", t.content));
+        }
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("clientId", clientId);
+        doc.put("summary", s.text);
+        doc.put("turns", turns);
+        doc.put("updatedAt", System.currentTimeMillis());
+        try {
+            Bulkheads.FIRESTORE.call(() -> FirestoreClient.get().collection(COLLECTION).document(docId(clientId)).set(doc).get());
+            flushed.incrementAndGet();
+        } catch (Exception e) {
+            dirty.add(clientId); // 다음 주기에 재시도
+            System.err.println("[MEMORY] flush failed clientId=" + clientId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * [MODIFIED] 문서를 읽어 이미 등록된 대화 c에 합침 (loader 스레드)
+     * - 요약: 아직 요약이 없을 때만 CAS로 설정
+     * - 턴: 로딩 중 새 메시지가 없을 때만 시퀀스 0..n-1을 CAS로 먼저 확보한 뒤 슬롯에 기록,
+     *   이미 새 메시지가 쌓였으면 순서를 깨지 않도록 복원 턴은 버림 (restoreSkipped)
+     */
+    @SuppressWarnings("unchecked")
+    private void load(String clientId, Conversation c) {
+        try {
+            DocumentSnapshot d = Bulkheads.FIRESTORE.call(() ->
+                    FirestoreClient.get().collection(COLLECTION).document(docId(clientId)).get().get());
+            if (!d.exists() || !(d.get("turns") instanceof List)) return;
+            if (d.get("summary") instanceof String && !((String) d.get("summary")).isEmpty()) {
+                c.summary.compareAndSet(Summary.EMPTY, new Summary((String) d.get("summary"), 0));
+            }
+            List<Map<String, Object>> turns = new ArrayList<>();
+            for (Object o : (List<Object>) d.get("turns")) {
+                if (!(o instanceof Map)) continue;
+                Map<String, Object> m = (Map<String, Object>) o;
+                if (m.get("role") instanceof String && m.get("content") instanceof String) turns.add(m);
+            }
+            List<Map<String, Object>> keep = turns.subList(Math.max(0, turns.size() - capacity), turns.size());
+            if (c.next.compareAndSet(0, keep.size())) {
+                for (int i = 0; i < keep.size(); i++) {
+                    c.ring.set(i, new Turn(i, (String) keep.get(i).get("role"), (String) keep.get(i).get("content")));
+                }
+                restored.incrementAndGet();
+            } else if (!keep.isEmpty()) {
+                restoreSkipped.incrementAndGet();
+                System.err.println("[MEMORY] restore skipped turns clientId=" + clientId + " (new messages arrived first)");
+            }
+        } catch (Exception e) {
+            System.err.println("[MEMORY] restore failed clientId=" + clientId + ": " + e.getMessage());
+        } finally {
+            c.loading = false;
+        }
+    }
+
+    /** Firestore 문서 ID에 쓸 수 없는 '/' 치환 */
+    private static String docId(String clientId) {
+        return "Conv_" + clientId.replace('/', '_');
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("conversations", conversations.size());
+        m.put("dirty", dirty.size());
+        m.put("evicted", evicted.get());
+        m.put("restored", restored.get());
+        m.put("restoreSkipped", restoreSkipped.get());
+        m.put("flushed", flushed.get());
+        m.put("persist", persist);
+        m.put("summaries", summaries.get());
+        m.put("summaryFailures", summaryFailures.get());
+        return m;
+    }
+}
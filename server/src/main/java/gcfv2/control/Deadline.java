@@ -0,0 +1,88 @@
+package gcfv2.control;
+
+import com.google.gson.JsonObject;
+import gcfv2.Env;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 메시지 Datetime + Type으로 정한 처리 마감 시각 (System.nanoTime 기준)
+ * - 예산: Stt = DEADLINE_STT_SEC(15), Cap/CapStreamEnd = DEADLINE_CAP_SEC(60)
+ * - 기준 시각은 메시지 Datetime(yyyy-MM-dd HH:mm:ss, Asia/Seoul), 없거나 파싱 불가면 서버 수신 시각
+ * - 단말 시계 오차 대비: Datetime이 DEADLINE_MAX_SKEW_SEC(300)보다 과거/미래면 수신 시각 사용
+ * - 마감이 지난 작업은 업스트림(LLM) 호출 전에 버리고 클라이언트에 Expired 통지
+ */
+public final class Deadline {
+
+    private static final ZoneId ZONE_SEOUL = ZoneId.of("Asia/Seoul");
+    private static final DateTimeFormatter IN_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final long STT_MS = Env.getInt("DEADLINE_STT_SEC", 15) * 1000L;
+    private static final long CAP_MS = Env.getInt("DEADLINE_CAP_SEC", 60) * 1000L;
+    private static final long MAX_SKEW_MS = Env.getInt("DEADLINE_MAX_SKEW_SEC", 300) * 1000L;
+
+    private static final Map<String, AtomicLong> EXPIRED = new LinkedHashMap<>();
+    static {
+        EXPIRED.put("Stt", new AtomicLong());
+        EXPIRED.put("Cap", new AtomicLong());
+    }
+
+    private final String kind;
+    private final long nanos;
+
+    private Deadline(String kind, long nanos) {
+        this.kind = kind;
+        this.nanos = nanos;
+    }
+
+    /** 메시지 Type(Stt/Cap/CapStreamEnd)과 Datetime으로 마감 계산 */
+    public static Deadline of(JsonObject msg) {
+        String type = msg.has("Type") ? msg.get("Type").getAsString() : "";
+        String kind = "Stt".equals(type) ? "Stt" : "Cap";
+        long budgetMs = "Stt".equals(kind) ? STT_MS : CAP_MS;
+
+        long now = System.currentTimeMillis();
+        long origin = now;
+        if (msg.has("Datetime")) {
+            try {
+                long sent = LocalDateTime.parse(msg.get("Datetime").getAsString().trim(), IN_FMT)
+                        .atZone(ZONE_SEOUL).toInstant().toEpochMilli();
+                if (Math.abs(now - sent) <= MAX_SKEW_MS) origin = Math.min(sent, now);
+            } catch (Exception ignore) {
+                // 형식이 다르면 수신 시각 기준
+            }
+        }
+        long remainMs = origin + budgetMs - now;
+        return new Deadline(kind, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainMs));
+    }
+
+    /** [ADDED] 지금부터 Type 예산만큼 (작업 큐 재실행 등 원래 Datetime이 의미 없을 때) */
+    public static Deadline fromNow(String type) {
+        String kind = "Stt".equals(type) ? "Stt" : "Cap";
+        long budgetMs = "Stt".equals(kind) ? STT_MS : CAP_MS;
+        return new Deadline(kind, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs));
+    }
+
+    /** OpenAIClient 등에 넘길 마감 (System.nanoTime 기준) */
+    public long nanos() { return nanos; }
+
+    public boolean expired() { return System.nanoTime() - nanos >= 0; }
+
+    public long remainingMillis() { return TimeUnit.NANOSECONDS.toMillis(nanos - System.nanoTime()); }
+
+    /** 만료로 버린 작업 집계 */
+    void countExpired() { EXPIRED.get(kind).incrementAndGet(); }
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("sttBudgetMs", STT_MS);
+        m.put("capBudgetMs", CAP_MS);
+        EXPIRED.forEach((k, v) -> m.put("expired" + k, v.get()));
+        return m;
+    }
+}
@@ -1,18 +1,33 @@
 package gcfv2.fs;
 
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterOptions;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import gcfv2.Env;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Firestore 싱글턴 클라이언트
  * - wave-db 데이터베이스로 고정 연결
  * - GOOGLE_CLOUD_PROJECT 값이 있을 때만 projectId 적용(조건부 안전)
  * - 초기화 시 진단용 로그 출력(projectId / databaseId / host / 에뮬레이터 여부)
+ * - [ADDED] BulkWriter는 공용 데몬 실행기(FS_BULK_THREADS, 기본 2)로 생성
+ *   (실행기를 안 주면 BulkWriter마다 비데몬 스레드 풀이 생기고 close 전까지 남음)
  */
 public final class FirestoreClient {
 
     private static volatile Firestore firestore;
 
+    private static final ScheduledExecutorService BULK_EXEC = Executors.newScheduledThreadPool(
+            Math.max(1, Env.getInt("FS_BULK_THREADS", 2)), r -> {
+                Thread t = new Thread(r, "fs-bulk");
+                t.setDaemon(true);
+                return t;
+            });
+
     private FirestoreClient() {}
 
     public static Firestore get() {
@@ -50,4 +65,30 @@ public final class FirestoreClient {
         }
         return firestore;
     }
+
+    /** [ADDED] 공용 실행기를 쓰는 BulkWriter (자체 속도 조절 없음 - 호출측 예산/격벽으로 제어) */
+    public static BulkWriter bulkWriter() {
+        return get().bulkWriter(BulkWriterOptions.builder()
+                .setThrottlingEnabled(false)
+                .setExecutor(BULK_EXEC)
+                .build());
+    }
+
+    /**
+     * [ADDED] 넣은 쓰기가 모두 끝나면 닫기 (finally에서 호출)
+     * 예산 초과로 기다리지 않은 쓰기가 남아 있어도 호출 스레드를 막지 않음
+     */
+    public static void closeWhenDone(BulkWriter bw) {
+        try {
+            bw.flush().addListener(() -> {
+                try {
+                    bw.close();
+                } catch (Exception e) {
+                    System.err.println("[Firestore] bulk writer close failed: " + e.getMessage());
+                }
+            }, BULK_EXEC);
+        } catch (Exception e) {
+            System.err.println("[Firestore] bulk writer close failed: " + e.getMessage());
+        }
+    }
 }
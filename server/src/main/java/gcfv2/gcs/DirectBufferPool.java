@@ -0,0 +1,45 @@
+package gcfv2.gcs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 고정 크기 Direct ByteBuffer 풀
+ * - 스트리밍 업로드 청크 버퍼 재사용 (업로드마다 새 direct 버퍼 할당 방지)
+ * - maxPooled 개수까지만 보관, 초과 반납분은 GC에 맡김
+ */
+public final class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /** 버퍼 대여 (clear 상태) */
+    public ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        b.clear();
+        return b;
+    }
+
+    /** 버퍼 반납 */
+    public void release(ByteBuffer b) {
+        if (b == null || !b.isDirect() || b.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        b.clear();
+        free.offer(b);
+    }
+
+    public int bufferSize() { return bufferSize; }
+}
@@ -0,0 +1,109 @@
+package gcfv2.gcs;
+
+import com.google.cloud.WriteChannel;
+import gcfv2.Env;
+import gcfv2.Hashes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * WebSocket 바이너리 프레임 → GCS WriteChannel 스트리밍 업로드
+ * - 프레임 바이트를 풀링된 direct 버퍼(청크 크기)에 모았다가 가득 차면 채널로 전송
+ * - 이미지 전체를 힙에 올리지 않음 (메모리 사용 = 청크 1개)
+ * - 청크 크기는 GCS resumable 규칙상 256KiB 배수로 맞춤
+ * - 기록하면서 MD5를 함께 계산 (중복 감지용, 추가 읽기 없음 / [MODIFIED] GCS 메타데이터 md5Hash와 같은 값)
+ */
+public final class GcsStreamUpload {
+
+    private static final int CHUNK_UNIT = 256 * 1024;
+    public static final int CHUNK_BYTES = alignChunk(Env.getInt("CAP_STREAM_CHUNK_BYTES", 1024 * 1024));
+    private static final DirectBufferPool POOL = new DirectBufferPool(CHUNK_BYTES, Env.getInt("CAP_STREAM_POOL_SIZE", 8));
+
+    private final String bucket;
+    private final String objectName;
+    private final long maxBytes;
+    private final WriteChannel channel;
+    private final MessageDigest md5;
+    private ByteBuffer buf;
+    private long written = 0;
+    private String contentHash;
+
+    private GcsStreamUpload(String bucket, String objectName, WriteChannel channel, long maxBytes) {
+        this.bucket = bucket;
+        this.objectName = objectName;
+        this.channel = channel;
+        this.maxBytes = maxBytes;
+        this.md5 = newMd5();
+        this.buf = POOL.acquire();
+    }
+
+    public static GcsStreamUpload open(String bucket, String objectName, String contentType, long maxBytes) {
+        WriteChannel ch = GcsUrlUtil.openWriter(bucket, objectName, contentType, CHUNK_BYTES);
+        return new GcsStreamUpload(bucket, objectName, ch, maxBytes);
+    }
+
+    /** 프레임 바이트 추가 (청크가 차면 GCS로 전송) */
+    public void write(ByteBuffer src) throws IOException {
+        if (buf == null) throw new IllegalStateException("이미 종료된 업로드: " + objectName);
+        if (written + src.remaining() > maxBytes) {
+            throw new IllegalStateException("업로드 크기 초과: max=" + maxBytes);
+        }
+        written += src.remaining();
+        md5.update(src.duplicate());
+        while (src.hasRemaining()) {
+            int n = Math.min(buf.remaining(), src.remaining());
+            ByteBuffer slice = src.slice();
+            slice.limit(n);
+            buf.put(slice);
+            src.position(src.position() + n);
+            if (!buf.hasRemaining()) flush();
+        }
+    }
+
+    /** 남은 버퍼 전송 후 채널 close → 객체 확정 */
+    public void commit() throws IOException {
+        if (buf == null) throw new IllegalStateException("이미 종료된 업로드: " + objectName);
+        try {
+            flush();
+            channel.close();
+            contentHash = Hashes.toHex(md5.digest());
+        } finally {
+            releaseBuffer();
+        }
+    }
+
+    /** 업로드 중단 (채널을 닫지 않으므로 객체는 확정되지 않음) */
+    public void abort() {
+        releaseBuffer();
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    private void releaseBuffer() {
+        ByteBuffer b = buf;
+        buf = null;
+        POOL.release(b);
+    }
+
+    public String gcsUri() { return "gs://" + bucket + "/" + objectName; }
+    public long written() { return written; }
+    /** commit 이후에만 유효 (hex) */
+    public String contentHash() { return contentHash; }
+
+    private static MessageDigest newMd5() {
+        try { return MessageDigest.getInstance("MD5"); }
+        catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+
+    private static int alignChunk(int bytes) {
+        int units = Math.max(1, bytes / CHUNK_UNIT);
+        return units * CHUNK_UNIT;
+    }
+}
@@ -1,13 +1,21 @@
 package gcfv2.gcs;
 
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.*;
+import gcfv2.limit.Bulkheads;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
 /**
  * GCS V4 서명 URL 발급 유틸
  * - 클라이언트가 직접 HTTP PUT으로 업로드/다운로드 가능
+ * - [ADDED] 서버 경유 스트리밍 업로드용 WriteChannel 오픈
+ * - [ADDED] 서버 내부 처리(렌디션 등)용 객체 읽기/쓰기
+ * - [MODIFIED] 객체 내용 MD5를 GCS 메타데이터에서 조회 (중복 캡처 감지, 본문 다운로드 없음)
+ * - [ADDED] 모든 Storage 호출은 STORAGE 격벽 안에서 실행 (동시 실행 한도 적응 조절)
  */
 public final class GcsUrlUtil {
 
@@ -29,23 +37,81 @@ public final class GcsUrlUtil {
         BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, objectName))
                                     .setContentType(contentType)
                                     .build();
-        return get().signUrl(
+        return Bulkheads.STORAGE.run(() -> get().signUrl(
                 blobInfo,
                 ttl.getSeconds(),
                 TimeUnit.SECONDS,
                 Storage.SignUrlOption.httpMethod(HttpMethod.PUT),
                 Storage.SignUrlOption.withV4Signature()
-        );
+        ));
     }
 
     /** 다운로드용 V4 서명 URL 생성 (GET) */
     public static URL createDownloadUrl(String bucket, String objectName, Duration ttl) {
         BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, objectName)).build();
-        return get().signUrl(
+        return Bulkheads.STORAGE.run(() -> get().signUrl(
                 blobInfo,
                 ttl.getSeconds(),
                 TimeUnit.SECONDS,
                 Storage.SignUrlOption.withV4Signature()
-        );
+        ));
+    }
+
+    /** [ADDED] 서버 경유 업로드용 WriteChannel (resumable, chunkSize 단위 전송) */
+    public static WriteChannel openWriter(String bucket, String objectName, String contentType, int chunkSize) {
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, objectName))
+                                    .setContentType(contentType)
+                                    .build();
+        WriteChannel ch = get().writer(blobInfo);
+        ch.setChunkSize(chunkSize);
+        return ch;
+    }
+
+    /** [ADDED] gs://bucket/object → {bucket, object} */
+    public static String[] splitGsUri(String gcsUri) {
+        String noPrefix = gcsUri.replaceFirst("^gs://", "");
+        int idx = noPrefix.indexOf('/');
+        if (idx < 0) throw new IllegalArgumentException("잘못된 GCS URI: " + gcsUri);
+        return new String[]{ noPrefix.substring(0, idx), noPrefix.substring(idx + 1) };
+    }
+
+    /** [ADDED] 객체 전체 읽기 (서버 내부 처리용) */
+    public static byte[] readBytes(String bucket, String objectName) {
+        return Bulkheads.STORAGE.run(() -> get().readAllBytes(BlobId.of(bucket, objectName)));
+    }
+
+    /** [ADDED] 객체를 로컬 파일로 다운로드 (이미지 프록시 캐시 채우기용), 메타데이터 반환 */
+    public static Blob downloadTo(String bucket, String objectName, Path target) {
+        return Bulkheads.STORAGE.run(() -> {
+            Blob blob = get().get(BlobId.of(bucket, objectName));
+            if (blob == null) throw new IllegalArgumentException("객체 없음: gs://" + bucket + "/" + objectName);
+            blob.downloadTo(target);
+            return blob;
+        });
+    }
+
+    /**
+     * [MODIFIED] 객체 내용 MD5 (hex) - GCS가 저장 시 계산한 메타데이터만 조회 (본문 다운로드 없음)
+     * 객체가 없거나 MD5가 없는 합성(compose) 객체면 null (CRC32C는 중복 판정에 쓰기엔 충돌이 잦아 사용 안 함)
+     */
+    public static String md5Hex(String bucket, String objectName) {
+        return Bulkheads.STORAGE.run(() -> {
+            Blob blob = get().get(BlobId.of(bucket, objectName),
+                    Storage.BlobGetOption.fields(Storage.BlobField.MD5HASH));
+            return blob == null || blob.getMd5() == null ? null : blob.getMd5ToHexString();
+        });
+    }
+
+    /** [ADDED] 객체 삭제 (중복 캡처 정리) */
+    public static boolean delete(String bucket, String objectName) {
+        return Bulkheads.STORAGE.run(() -> get().delete(BlobId.of(bucket, objectName)));
+    }
+
+    /** [ADDED] 작은 객체 한 번에 쓰기 (렌디션 등) */
+    public static void writeBytes(String bucket, String objectName, String contentType, byte[] bytes) {
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucket, objectName))
+                                    .setContentType(contentType)
+                                    .build();
+        Bulkheads.STORAGE.run(() -> get().create(blobInfo, bytes));
     }
 }
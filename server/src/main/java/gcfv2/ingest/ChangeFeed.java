@@ -0,0 +1,331 @@
+package gcfv2.ingest;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import gcfv2.Env;
+import gcfv2.Operators;
+import gcfv2.fs.FirestoreClient;
+import gcfv2.limit.Bulkheads;
+import gcfv2.media.ImageProxyServlet;
+import gcfv2.pubsub.TopicBroker;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * [ADDED] Cap/Ai 실시간 변경 피드 (Firestore 스냅샷 리스너 → 구독 세션 푸시)
+ * - 인스턴스마다 컬렉션당 리스너 1개: savedAt 내림차순 최근 CHANGE_FEED_WINDOW(200)건
+ *   새 문서가 들어오면 ADDED만 전달되므로 클라이언트별 FindCaps 폴링 없이 다른 인스턴스가 만든 결과도 수신
+ * - Cap ADDED → CapAdded, Ai ADDED/MODIFIED(재분석) → AiAdded, 첫 스냅샷(기존 문서)은 전달하지 않음
+ * - 이벤트 JSON은 한 번만 만들어 구독 세션 전체에 비동기 전송 (url은 서명된 /img/ 프록시 경로)
+ * - [MODIFIED] 팬아웃은 TopicBroker 토픽 cap/new, ai/new로 발행 (Subscribe로 직접 구독 가능)
+ *   [MODIFIED] 문서의 robotId(저장한 연결의 로봇) 기준 robot/{robotId}/cap/new, robot/{robotId}/ai/new로 발행
+ *   → Watch한 세션은 자기 로봇 문서만 수신, 운영자(Operators)는 robot/+/... 로 전체 수신
+ *   (robotId가 없는 이전 문서는 발행하지 않음, unscoped 집계)
+ * - 구독: {"Type":"Watch","Collections":["Cap","Ai"]} (생략 시 둘 다), 해제: {"Type":"Unwatch"}
+ *   = 해당 토픽 Subscribe/Unsubscribe의 별칭 (접속 id가 없으면 운영자만 가능)
+ * - 구독자가 있는 토픽의 컬렉션만 리스너 유지, 리스너 오류 시 CHANGE_FEED_RETRY_SEC(5) 후 재시작
+ *   (재시작 첫 스냅샷은 이미 보낸 문서를 빼고 전달 → 끊긴 사이 추가분 보충)
+ * - savedAt(서버 저장 시각)이 없는 이전 문서와 창 밖으로 밀린 늦은 스풀 반영분은 대상 아님
+ * - [ADDED] 한 번에 창(WINDOW)보다 많이 들어오면(큰 Batch 등) 창 밖으로 밀린 분은 savedAt 커서
+ *   (마지막으로 본 savedAt ~ 창의 가장 오래된 savedAt)로 페이지 조회해 먼저 전달
+ *   (한 번에 최대 CHANGE_FEED_BACKFILL_MAX(2000)건, WatchAck의 Window/BackfillMax로 안내)
+ *   [MODIFIED] 보충 조회는 별도 스레드(change-feed-backfill)에서 → 리스너 스레드가 Firestore 조회에 묶이지 않음,
+ *   조회한 페이지는 리스너 스레드로 넘겨 seen 확인 후 발행 (보충분이 창 안 새 문서보다 늦게 도착할 수 있음)
+ */
+public final class ChangeFeed {
+
+    public static final List<String> COLLECTIONS = List.of("Cap", "Ai");
+    /** [MODIFIED] 로봇별 토픽 robot/{robotId}/{kind}의 kind */
+    public static final Map<String, String> KINDS = Map.of("Cap", "cap/new", "Ai", "ai/new");
+
+    private static final int WINDOW = Env.getInt("CHANGE_FEED_WINDOW", 200);
+    private static final long RETRY_SEC = Env.getInt("CHANGE_FEED_RETRY_SEC", 5);
+    private static final int BACKFILL_MAX = Env.getInt("CHANGE_FEED_BACKFILL_MAX", 2000);
+    private static final long BACKFILL_TIMEOUT_MS = Env.getInt("CHANGE_FEED_BACKFILL_TIMEOUT_MS", 5000);
+    private static final int SEEN_MAX = Math.max(Math.max(WINDOW, BACKFILL_MAX) * 4, 1000);
+
+    private static final Gson GSON = new com.google.gson.GsonBuilder().disableHtmlEscaping().create();
+    private static final ZoneId ZONE_SEOUL = ZoneId.of("Asia/Seoul");
+    private static final DateTimeFormatter OUT_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final ChangeFeed INSTANCE = new ChangeFeed();
+    public static ChangeFeed get() { return INSTANCE; }
+
+    /** 컬렉션별 리스너 상태 */
+    private final class Feed {
+        final String collection;
+        volatile ListenerRegistration registration; // [MODIFIED] 보충 스레드도 읽음
+        boolean primed; // 첫 스냅샷 처리 완료
+        volatile boolean resuming; // 오류 후 재시작 (첫 스냅샷 중 못 보낸 문서 전달)
+        Timestamp cursor; // [ADDED] 지금까지 본 가장 최근 savedAt (창을 넘는 유입 보충 기준)
+        final LinkedHashMap<String, Boolean> seen = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > SEEN_MAX;
+            }
+        };
+        final AtomicLong events = new AtomicLong(), restarts = new AtomicLong(), backfilled = new AtomicLong(),
+                unscoped = new AtomicLong();
+        boolean active() { return registration != null || resuming; } // 중지(reconcile)되지 않음
+        Feed(String collection) { this.collection = collection; }
+    }
+
+    private final Map<String, Feed> feeds = new LinkedHashMap<>();
+    private final ScheduledExecutorService listenerExec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "change-feed");
+        t.setDaemon(true);
+        return t;
+    });
+    // [ADDED] 창을 넘는 유입 보충 (블로킹 Firestore 조회 전용, 리스너 스레드와 분리)
+    private final ExecutorService backfillExec = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "change-feed-backfill");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong sent = new AtomicLong();
+
+    private ChangeFeed() {
+        for (String c : COLLECTIONS) feeds.put(c, new Feed(c));
+        TopicBroker.get().addSubscriptionListener(() -> listenerExec.execute(this::reconcile));
+    }
+
+    /** Watch 메시지 처리 → WatchAck JSON */
+    public String watch(Session session, JsonObject msg) {
+        Set<String> want = new LinkedHashSet<>();
+        if (msg.has("Collections") && msg.get("Collections").isJsonArray()) {
+            JsonArray arr = msg.getAsJsonArray("Collections");
+            for (JsonElement e : arr) {
+                String c = e.getAsString();
+                if (!COLLECTIONS.contains(c)) throw new IllegalArgumentException("Watch 지원 컬렉션 아님: " + c);
+                want.add(c);
+            }
+        }
+        if (want.isEmpty()) want.addAll(COLLECTIONS);
+        // [ADDED] 자기 로봇 토픽만, 운영자는 전체 로봇
+        String robot = Operators.isOperator(session) ? "+" : TopicBroker.clientId(session);
+        if (robot == null) throw new IllegalArgumentException("Watch는 접속 id가 필요합니다 (자기 로봇 문서만 수신)");
+        for (String c : COLLECTIONS) {
+            if (want.contains(c)) TopicBroker.get().subscribe(session, topic(robot, c));
+            else TopicBroker.get().unsubscribe(session, topic(robot, c));
+        }
+
+        Map<String, Object> resp = new LinkedHashMap<>();
+        resp.put("Type", "WatchAck");
+        resp.put("Collections", want);
+        resp.put("Robot", robot); // [ADDED] 수신 범위 (+ = 전체)
+        resp.put("Window", WINDOW);             // [ADDED] 리스너 창 크기
+        resp.put("BackfillMax", BACKFILL_MAX);  // [ADDED] 창을 넘는 유입 시 한 번에 보충하는 최대 건수
+        return GSON.toJson(resp);
+    }
+
+    /** Unwatch 메시지 → 두 토픽 구독 해제 (세션 종료 시는 TopicBroker.unsubscribeAll) */
+    public void unwatch(Session session) {
+        String robot = TopicBroker.clientId(session);
+        for (String c : COLLECTIONS) {
+            TopicBroker.get().unsubscribe(session, topic("+", c));
+            if (robot != null) TopicBroker.get().unsubscribe(session, topic(robot, c));
+        }
+    }
+
+    /** [ADDED] robot/{robot}/{kind} (robot이 + 이면 구독 필터) */
+    private static String topic(String robot, String collection) {
+        return "robot/" + robot + "/" + KINDS.get(collection);
+    }
+
+    /** 구독자가 있는 컬렉션만 리스너 유지 (listenerExec에서만 호출) */
+    private void reconcile() {
+        for (Feed f : feeds.values()) {
+            boolean wanted = TopicBroker.get().hasSubscribersMatching(topic("+", f.collection));
+            if (wanted && f.registration == null) {
+                start(f);
+            } else if (!wanted && f.registration != null) {
+                f.registration.remove();
+                f.registration = null;
+                f.primed = false;
+                f.resuming = false;
+                f.cursor = null;
+                f.seen.clear();
+                System.out.println("[FEED] listener stopped: " + f.collection);
+            }
+        }
+    }
+
+    private void start(Feed f) {
+        Query q = FirestoreClient.get().collection(f.collection)
+                .orderBy("savedAt", Query.Direction.DESCENDING)
+                .limit(WINDOW);
+        f.registration = q.addSnapshotListener(listenerExec, (snap, err) -> {
+            if (err != null) {
+                System.err.println("[FEED] listener error " + f.collection + ": " + err.getMessage());
+                if (f.registration != null) f.registration.remove();
+                f.registration = null;
+                f.primed = false;
+                f.resuming = true;
+                f.restarts.incrementAndGet();
+                listenerExec.schedule(this::reconcile, RETRY_SEC, TimeUnit.SECONDS);
+                return;
+            }
+            if (snap != null) onSnapshot(f, snap);
+        });
+        System.out.println("[FEED] listener started: " + f.collection + " window=" + WINDOW);
+    }
+
+    private void onSnapshot(Feed f, QuerySnapshot snap) {
+        boolean skip = !f.primed && !f.resuming;
+        f.primed = true;
+        f.resuming = false;
+        List<QueryDocumentSnapshot> docs = snap.getDocuments(); // savedAt 내림차순
+        Timestamp newest = docs.isEmpty() ? null : docs.get(0).getTimestamp("savedAt");
+        if (!skip && f.cursor != null && docs.size() >= WINDOW) {
+            Timestamp oldest = docs.get(docs.size() - 1).getTimestamp("savedAt");
+            if (oldest != null && oldest.compareTo(f.cursor) > 0) { // 창 사이에 빈틈 → [MODIFIED] 보충 스레드에서 조회
+                Timestamp from = f.cursor;
+                backfillExec.execute(() -> backfill(f, from, oldest));
+            }
+        }
+        if (newest != null && (f.cursor == null || newest.compareTo(f.cursor) > 0)) f.cursor = newest;
+        for (DocumentChange ch : snap.getDocumentChanges()) {
+            DocumentChange.Type t = ch.getType();
+            if (t == DocumentChange.Type.REMOVED) continue; // 창 밖으로 밀려남
+            if (t == DocumentChange.Type.MODIFIED && !"Ai".equals(f.collection)) continue;
+            DocumentSnapshot d = ch.getDocument();
+            String version = "Ai".equals(f.collection) ? d.getId() + "@" + d.getUpdateTime() : d.getId(); // Cap은 썸네일 갱신 무시
+            // 첫 스냅샷은 기존 문서 → 기록만, 재시작 후 첫 스냅샷은 못 보낸 것만 전달
+            if (f.seen.put(version, Boolean.TRUE) != null || skip) continue;
+            publish(f, d);
+        }
+    }
+
+    /**
+     * [ADDED] from ~ to (savedAt, 양끝 포함) 사이 문서를 오래된 순으로 페이지 조회해 전달 (이미 보낸 것은 seen으로 제외)
+     * [MODIFIED] 보충 스레드(backfillExec)에서 실행, 페이지마다 리스너 스레드로 넘겨 발행, 한 번에 BACKFILL_MAX건까지
+     */
+    private void backfill(Feed f, Timestamp from, Timestamp to) {
+        int fetched = 0;
+        DocumentSnapshot last = null;
+        try {
+            while (fetched < BACKFILL_MAX && f.active()) {
+                Query q = FirestoreClient.get().collection(f.collection)
+                        .whereGreaterThanOrEqualTo("savedAt", from)
+                        .whereLessThanOrEqualTo("savedAt", to)
+                        .orderBy("savedAt", Query.Direction.ASCENDING)
+                        .limit(Math.min(WINDOW, BACKFILL_MAX - fetched));
+                if (last != null) q = q.startAfter(last);
+                Query page = q;
+                List<QueryDocumentSnapshot> docs = Bulkheads.FIRESTORE.call(
+                        () -> page.get().get(BACKFILL_TIMEOUT_MS, TimeUnit.MILLISECONDS)).getDocuments();
+                listenerExec.execute(() -> deliver(f, docs));
+                fetched += docs.size();
+                if (docs.size() < WINDOW) break;
+                last = docs.get(docs.size() - 1);
+            }
+        } catch (Exception e) {
+            System.err.println("[FEED] backfill failed " + f.collection + ": " + e.getMessage());
+        }
+        if (fetched >= BACKFILL_MAX) {
+            System.err.println("[FEED] backfill capped " + f.collection + " at " + BACKFILL_MAX + " (older events skipped)");
+        }
+    }
+
+    /** [ADDED] 보충 페이지 발행 (listenerExec에서만, 그 사이 리스너가 중지됐으면 버림) */
+    private void deliver(Feed f, List<QueryDocumentSnapshot> docs) {
+        if (!f.active()) return;
+        int published = 0;
+        for (QueryDocumentSnapshot d : docs) {
+            String version = "Ai".equals(f.collection) ? d.getId() + "@" + d.getUpdateTime() : d.getId();
+            if (f.seen.put(version, Boolean.TRUE) != null) continue;
+            publish(f, d);
+            published++;
+        }
+        f.backfilled.addAndGet(published);
+        if (published > 0) {
+            System.out.println("[FEED] backfilled " + f.collection + " " + published + " event(s) beyond window");
+        }
+    }
+
+    /** [MODIFIED] 문서를 저장한 로봇의 토픽으로만 발행 */
+    private void publish(Feed f, DocumentSnapshot d) {
+        f.events.incrementAndGet();
+        String robot = d.getString("robotId");
+        if (robot == null || robot.isBlank() || robot.contains("/") || robot.contains("+") || robot.contains("#")) {
+            f.unscoped.incrementAndGet();
+            return;
+        }
+        sent.addAndGet(TopicBroker.get().publish(topic(robot, f.collection), toEvent(f.collection, d)));
+    }
+
+    private static String toEvent(String collection, DocumentSnapshot d) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        if ("Cap".equals(collection)) {
+            m.put("Type", "CapAdded");
+            m.put("ID", d.getId());
+        } else {
+            m.put("Type", "AiAdded");
+            m.put("ID", d.getString("capId"));
+            m.put("AiId", d.getId());
+        }
+        Timestamp ts = d.getTimestamp("datetime");
+        if (ts != null) m.put("Datetime", format(ts));
+        String gcsUri = d.getString("gcsUri");
+        if (gcsUri != null) {
+            m.put("gcsUri", gcsUri);
+            String thumb = d.getString("thumbUri");
+            String served = thumb != null && !thumb.isBlank() ? thumb : gcsUri;
+            int slash = served.indexOf('/', "gs://".length());
+            if (slash > 0) m.put("url", ImageProxyServlet.signedPath(served.substring(slash + 1)));
+        }
+        String dupOf = d.getString("dupOf");
+        if (dupOf != null) m.put("dupOf", dupOf);
+        String result = d.getString("result");
+        if (result != null) m.put("result", result);
+        return GSON.toJson(m);
+    }
+
+    private static String format(Timestamp ts) {
+        return Instant.ofEpochSecond(ts.getSeconds(), ts.getNanos()).atZone(ZONE_SEOUL).format(OUT_FMT);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("window", WINDOW);
+        m.put("backfillMax", BACKFILL_MAX);
+        m.put("topics", "robot/{robotId}/" + String.join("|", KINDS.values()));
+        List<Map<String, Object>> fs = new ArrayList<>();
+        for (Feed f : feeds.values()) {
+            Map<String, Object> one = new LinkedHashMap<>();
+            one.put("collection", f.collection);
+            one.put("listening", f.registration != null);
+            one.put("events", f.events.get());
+            one.put("restarts", f.restarts.get());
+            one.put("backfilled", f.backfilled.get());
+            one.put("unscoped", f.unscoped.get());
+            fs.add(one);
+        }
+        m.put("feeds", fs);
+        m.put("sent", sent.get());
+        return m;
+    }
+}
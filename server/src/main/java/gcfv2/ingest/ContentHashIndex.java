@@ -0,0 +1,53 @@
+package gcfv2.ingest;
+
+import gcfv2.Env;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 최근 캡처 내용 해시(MD5, GCS 메타데이터) → 최초 Cap 인덱스 (메모리, LRU)
+ * - 정지 상태에서 찍힌 동일 사진을 Firestore 조회 없이 중복 판정
+ * - 인스턴스 재시작/다른 인스턴스 간에는 공유되지 않음 (놓치면 새 캡처로 저장될 뿐)
+ */
+public final class ContentHashIndex {
+
+    /** 최초 저장된 캡처 */
+    public static final class Original {
+        public final String capId;
+        public final String gcsUri;
+        Original(String capId, String gcsUri) { this.capId = capId; this.gcsUri = gcsUri; }
+    }
+
+    private static final ContentHashIndex INSTANCE =
+            new ContentHashIndex(Env.getInt("CAP_HASH_INDEX_SIZE", 10000));
+    public static ContentHashIndex get() { return INSTANCE; }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Original> map;
+
+    private ContentHashIndex(int capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Original> eldest) {
+                return size() > ContentHashIndex.this.capacity;
+            }
+        };
+    }
+
+    public synchronized Original find(String contentHash) {
+        return contentHash == null ? null : map.get(contentHash);
+    }
+
+    /** 이미 있으면 기존 값을 유지하고 반환, 없으면 등록 후 null */
+    public synchronized Original putIfAbsent(String contentHash, String capId, String gcsUri) {
+        return map.putIfAbsent(contentHash, new Original(capId, gcsUri));
+    }
+
+    /** 저장 실패 시 등록 취소 (해당 capId로 등록된 경우만) */
+    public synchronized void remove(String contentHash, String capId) {
+        Original o = map.get(contentHash);
+        if (o != null && o.capId.equals(capId)) map.remove(contentHash);
+    }
+}
@@ -0,0 +1,322 @@
+package gcfv2.ingest;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterException;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.WriteResult;
+import gcfv2.Env;
+import gcfv2.Hashes;
+import gcfv2.fs.FirestoreClient;
+import gcfv2.limit.Bulkheads;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * [ADDED] 저장 요청 멱등키 → 최초 처리 응답(ack) 테이블
+ * - 소켓 재연결 후 같은 Cap/SttResult를 다시 보내도 새 문서/새 분석 없이 최초 응답을 그대로 돌려줌
+ *   ([MODIFIED] 클라이언트가 보낸 메시지만, 서버가 만든 Ai/SttResult 저장은 거치지 않음)
+ * - 1차: 메모리 LRU (IDEM_TABLE_SIZE, 기본 20000)
+ *   [MODIFIED] 처리 중인 같은 키는 기다리지 않고 바로 "처리 중" 오류 (수집 스레드를 붙잡지 않음, 클라이언트 재시도)
+ * - 2차: Firestore Idem/{sha256(key)} create-if-absent (다른 인스턴스/재시작 후 재시도 대비)
+ *   create 성공 = 처리 권한 획득(state=pending), 완료 시 ack 기록(state=done, WriteSpool 경유)
+ *   이미 있으면 done은 ack 반환, IDEM_LEASE_SEC(120)보다 오래된 pending은 인수,
+ *   [MODIFIED] 그 외 pending은 기다리지 않고 바로 "처리 중" 오류 (클라이언트 재시도, 수집 스레드를 붙잡지 않음)
+ * - Firestore 조회/생성이 실패하면 메모리 테이블만으로 처리 (중복 저장 가능성 < 저장 실패)
+ * - [ADDED] WriteSpool이 장애/반영 대기 중이면 Firestore 선점은 건너뛰고 메모리 테이블만 사용
+ *   (선점 create가 매번 예산을 다 쓰고 실패하는 것 방지)
+ * - expireAt 필드 = 처리 시각 + IDEM_TTL_HOURS(48), Firestore TTL 정책 대상으로 사용
+ * - [ADDED] beginAll/completeAll: Batch 항목들의 선점/응답 기록을 BulkWriter 한 번씩으로 처리
+ */
+public final class IdempotencyTable {
+
+    private static final String COLLECTION = "Idem";
+    private static final int CAPACITY = Env.getInt("IDEM_TABLE_SIZE", 20000);
+    private static final long STORE_MS = Env.getInt("IDEM_STORE_TIMEOUT_MS", 1500);
+    private static final long LEASE_MS = Env.getInt("IDEM_LEASE_SEC", 120) * 1000L;
+    private static final long TTL_MS = Env.getInt("IDEM_TTL_HOURS", 48) * 3600_000L;
+    private static final boolean STORE = !"off".equalsIgnoreCase(System.getenv().getOrDefault("IDEM_STORE", "on"));
+
+    private static final IdempotencyTable INSTANCE = new IdempotencyTable();
+    public static IdempotencyTable get() { return INSTANCE; }
+
+    private final LinkedHashMap<String, CompletableFuture<String>> map =
+            new LinkedHashMap<>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest) {
+                    return size() > CAPACITY && eldest.getValue().isDone(); // 처리 중인 키는 내보내지 않음
+                }
+            };
+
+    private final AtomicLong claims = new AtomicLong(), memoryHits = new AtomicLong(), storeHits = new AtomicLong(),
+            takeovers = new AtomicLong(), storeErrors = new AtomicLong(),
+            busy = new AtomicLong(), storeSkips = new AtomicLong();
+
+    private IdempotencyTable() {}
+
+    /**
+     * 처리 시작
+     * @return 이미 처리된 키면 최초 응답, 처리 권한을 얻었으면 null (이후 complete/abort 필수)
+     * @throws IllegalStateException 같은 키를 처리 중 (메모리/Firestore 어느 쪽이든 기다리지 않음)
+     */
+    public String begin(String key) throws Exception {
+        String ack = beginMemory(key);
+        if (ack != null) return ack;
+        if (!STORE) return null;
+        if (WriteSpool.get().deferring()) {
+            storeSkips.incrementAndGet();
+            return null;
+        }
+        try {
+            String stored = claimInStore(key);
+            if (stored != null) {
+                storeHits.incrementAndGet();
+                complete(key, stored, false);
+            }
+            return stored;
+        } catch (IllegalStateException e) {
+            abort(key, false);
+            throw e;
+        } catch (Exception e) {
+            storeErrors.incrementAndGet();
+            System.err.println("[IDEM] store claim failed, memory only: " + key + " / " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * [ADDED] 여러 키(중복 없이) 한 번에 처리 시작 (Firestore 선점은 BulkWriter create 한 번)
+     * @return 이미 처리된 키 → 최초 응답 (결과에 없는 키는 처리 권한 획득, 이후 completeAll/abort 필수)
+     * @throws IllegalStateException 처리 중인 키가 있으면 이번 호출에서 얻은 권한을 모두 풀고 던짐
+     */
+    public Map<String, String> beginAll(Collection<String> keys) throws Exception {
+        Map<String, String> prior = new HashMap<>();
+        List<String> owned = new ArrayList<>();
+        try {
+            for (String key : keys) {
+                String ack = beginMemory(key);
+                if (ack != null) prior.put(key, ack);
+                else owned.add(key);
+            }
+            if (!STORE || owned.isEmpty()) return prior;
+            if (WriteSpool.get().deferring()) {
+                storeSkips.addAndGet(owned.size());
+                return prior;
+            }
+
+            BulkWriter bw = FirestoreClient.bulkWriter();
+            List<ApiFuture<WriteResult>> futures = new ArrayList<>(owned.size());
+            try {
+                bw.addWriteErrorListener(err -> false); // 재시도 없음 (이미 있음 = 다른 요청이 선점)
+                for (String key : owned) futures.add(bw.create(ref(key), claimDoc(key, "pending")));
+                Bulkheads.FIRESTORE.call(() -> bw.flush().get(STORE_MS * 2, TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                storeErrors.incrementAndGet();
+                System.err.println("[IDEM] bulk claim failed, memory only: " + e.getMessage());
+                return prior;
+            } finally {
+                FirestoreClient.closeWhenDone(bw);
+            }
+            for (int i = 0; i < owned.size(); i++) {
+                String key = owned.get(i);
+                try {
+                    futures.get(i).get();
+                    continue;
+                } catch (ExecutionException e) {
+                    if (!alreadyExists(e)) {
+                        storeErrors.incrementAndGet();
+                        continue;
+                    }
+                }
+                String stored = claimInStore(key); // 선점돼 있음 → 완료 응답 확인 (드묾)
+                if (stored != null) {
+                    storeHits.incrementAndGet();
+                    complete(key, stored, false);
+                    prior.put(key, stored);
+                }
+            }
+            return prior;
+        } catch (Exception e) {
+            for (String key : owned) {
+                if (!prior.containsKey(key)) abort(key, false);
+            }
+            throw e;
+        }
+    }
+
+    /** [ADDED] 여러 키 처리 성공 기록 (Firestore 기록은 WriteSpool.writeAll 한 번) */
+    public void completeAll(Map<String, String> acks) {
+        List<WriteSpool.Write> writes = new ArrayList<>(acks.size());
+        acks.forEach((key, ack) -> {
+            complete(key, ack, false);
+            Map<String, Object> doc = claimDoc(key, "done");
+            doc.put("ack", ack);
+            writes.add(new WriteSpool.Write(COLLECTION, docId(key), doc));
+        });
+        if (!STORE) return;
+        try {
+            WriteSpool.get().writeAll(writes);
+        } catch (Exception e) {
+            storeErrors.incrementAndGet();
+            System.err.println("[IDEM] bulk ack persist failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 메모리 테이블 선점: 이미 처리된 키면 응답, 권한을 얻으면 null
+     * [MODIFIED] 처리 중이면 기다리지 않고 IllegalStateException (호출 스레드 블로킹 없음)
+     */
+    private String beginMemory(String key) {
+        while (true) {
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            CompletableFuture<String> prev;
+            synchronized (this) {
+                prev = map.putIfAbsent(key, mine);
+            }
+            if (prev == null) break;
+            if (!prev.isDone()) {
+                busy.incrementAndGet();
+                throw new IllegalStateException("같은 요청을 처리 중입니다. 잠시 후 다시 시도하세요 (key=" + key + ")");
+            }
+            if (!prev.isCompletedExceptionally()) {
+                memoryHits.incrementAndGet();
+                return prev.join();
+            }
+            synchronized (this) {
+                map.remove(key, prev); // 최초 요청이 실패해 해제됨 → 다시 선점
+            }
+        }
+        claims.incrementAndGet();
+        return null;
+    }
+
+    /** 처리 성공 → 같은 키 재요청에 돌려줄 응답 기록 */
+    public void complete(String key, String ack) {
+        complete(key, ack, STORE);
+    }
+
+    private void complete(String key, String ack, boolean persist) {
+        CompletableFuture<String> f;
+        synchronized (this) {
+            f = map.get(key);
+        }
+        if (f != null) f.complete(ack);
+        if (!persist) return;
+        try {
+            Map<String, Object> doc = claimDoc(key, "done");
+            doc.put("ack", ack);
+            WriteSpool.get().write(COLLECTION, docId(key), doc);
+        } catch (Exception e) {
+            storeErrors.incrementAndGet();
+            System.err.println("[IDEM] ack persist failed: " + key + " / " + e.getMessage());
+        }
+    }
+
+    /** 처리 실패 → 키 해제 (대기 중인 재요청은 직접 처리 시도) */
+    public void abort(String key) {
+        abort(key, STORE);
+    }
+
+    private void abort(String key, boolean release) {
+        CompletableFuture<String> f;
+        synchronized (this) {
+            f = map.remove(key);
+        }
+        if (f != null) f.completeExceptionally(new IllegalStateException("aborted"));
+        if (!release) return;
+        try {
+            ref(key).delete(); // 비동기, 실패해도 임대 만료 후 인수됨
+        } catch (Exception e) {
+            storeErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Firestore 선점: 권한 획득 시 null, 이미 완료된 키면 ack
+     * @throws IllegalStateException 다른 요청이 처리 중 (폴링하지 않음)
+     */
+    private String claimInStore(String key) throws Exception {
+        DocumentReference ref = ref(key);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Map<String, Object> doc = claimDoc(key, "pending");
+                Bulkheads.FIRESTORE.call(() -> ref.create(doc).get(STORE_MS, TimeUnit.MILLISECONDS));
+                return null;
+            } catch (Exception e) {
+                if (!alreadyExists(e)) throw e;
+            }
+            DocumentSnapshot d = Bulkheads.FIRESTORE.call(() -> ref.get().get(STORE_MS, TimeUnit.MILLISECONDS));
+            if (!d.exists()) continue; // 그 사이 해제됨 → 한 번 더 선점
+            Object ack = d.get("ack");
+            if ("done".equals(d.getString("state")) && ack instanceof String) return (String) ack;
+
+            Timestamp claimedAt = d.getTimestamp("claimedAt");
+            if (claimedAt == null || System.currentTimeMillis() - claimedAt.toDate().getTime() > LEASE_MS) {
+                takeovers.incrementAndGet();
+                System.out.println("[IDEM] stale claim taken over: " + key);
+                Map<String, Object> doc = claimDoc(key, "pending");
+                Bulkheads.FIRESTORE.call(() -> ref.set(doc).get(STORE_MS, TimeUnit.MILLISECONDS));
+                return null;
+            }
+            break;
+        }
+        busy.incrementAndGet();
+        throw new IllegalStateException("같은 요청을 처리 중입니다. 잠시 후 다시 시도하세요 (key=" + key + ")");
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("store", STORE);
+        m.put("size", map.size());
+        m.put("capacity", CAPACITY);
+        m.put("claims", claims.get());
+        m.put("memoryHits", memoryHits.get());
+        m.put("storeHits", storeHits.get());
+        m.put("takeovers", takeovers.get());
+        m.put("busy", busy.get());
+        m.put("storeSkips", storeSkips.get());
+        m.put("storeErrors", storeErrors.get());
+        return m;
+    }
+
+    private static Map<String, Object> claimDoc(String key, String state) {
+        long now = System.currentTimeMillis();
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("key", key);
+        doc.put("state", state);
+        doc.put("claimedAt", Timestamp.now());
+        doc.put("expireAt", Timestamp.ofTimeMicroseconds((now + TTL_MS) * 1000L));
+        return doc;
+    }
+
+    private static DocumentReference ref(String key) {
+        return FirestoreClient.get().collection(COLLECTION).document(docId(key));
+    }
+
+    /** 키에 '/' 등이 들어갈 수 있어 해시를 문서 ID로 사용 */
+    private static String docId(String key) {
+        return "Idem_" + Hashes.sha256Hex(key);
+    }
+
+    private static boolean alreadyExists(Exception e) {
+        Throwable c = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        if (c instanceof BulkWriterException) {
+            return "ALREADY_EXISTS".equals(((BulkWriterException) c).getStatus().getCode().name());
+        }
+        return c instanceof ApiException
+                && ((ApiException) c).getStatusCode().getCode() == StatusCode.Code.ALREADY_EXISTS;
+    }
+}
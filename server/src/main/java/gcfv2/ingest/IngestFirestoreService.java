@@ -3,14 +3,30 @@ package gcfv2.ingest;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import gcfv2.Hashes;
 import gcfv2.fs.FirestoreClient;
+import gcfv2.gcs.GcsStreamUpload;
 import gcfv2.gcs.GcsUrlUtil;
+import gcfv2.limit.Bulkheads;
+import gcfv2.media.ImageProxyServlet;
+import gcfv2.media.RenditionService;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * 요구사항 반영:
@@ -20,6 +36,19 @@ import java.util.*;
  *  - Datetime은 Timestamp로 저장
  *  - 모든 JSON 원문은 'raw' 필드(Map)로 함께 저장
  *  - 사진 업로드: CapUploadInit → 서명URL 발급
+ *  - [ADDED] 사진 스트리밍 업로드: CapStreamBegin → 바이너리 프레임들 → CapStreamEnd(Cap 저장까지)
+ *    (서명URL PUT이 막힌 네트워크용, 연결당 동시에 1건)
+ *  - [ADDED] Cap 저장 시 내용 MD5(contentHash, GCS 메타데이터) 기록, 최근 동일 사진이면 기존 객체를 가리키고
+ *    새로 올라온 객체는 삭제 (dupOf = 최초 Cap ID)
+ *  - [ADDED] Firestore가 느리거나 장애면 쓰기를 로컬 스풀(WriteSpool)에 접수하고 "저장 접수"로 응답, 복구 후 재반영
+ *  - [ADDED] Cap/SttResult 멱등 처리: IdempotencyKey(없으면 GcsUri/내용에서 유도)가 같은 재전송은
+ *    새 문서 없이 최초 응답을 그대로 반환 (IdempotencyTable)
+ *    [MODIFIED] 클라이언트가 보낸 메시지만 대상, Ai는 문서 ID(Ai_{capId})가 고정이라 제외,
+ *    서버가 만든 SttResult/Ai(분석 결과 저장)는 handleGenerated()로 멱등 테이블을 거치지 않음
+ *  - [ADDED] Batch: 오프라인 동안 쌓인 Cap/SttResult/Ai 여러 건을 한 메시지로 받아 BulkWriter 한 번에 저장,
+ *    항목별 상태를 BatchAck 하나로 응답 (후속 Cap 분석은 ControlManager가 일괄 예약)
+ *  - [ADDED] Cap/Ai 문서에 savedAt(서버 저장 시각) 기록 → ChangeFeed 리스너 창 기준
+ *  - [ADDED] Cap/SttResult/Ai 문서에 robotId(접속 id) 기록 → ChangeFeed가 그 로봇 구독자에게만 전달
  */
 public class IngestFirestoreService {
 
@@ -34,8 +63,59 @@ public class IngestFirestoreService {
     private static volatile long lastSecond = -1;
     private static volatile int counter = 0;
 
+    // [ADDED] 스트리밍 업로드 상태 (엔드포인트=연결당 인스턴스 1개이므로 연결 단위)
+    private static final long STREAM_MAX_BYTES =
+            Long.parseLong(System.getenv().getOrDefault("CAP_STREAM_MAX_BYTES", String.valueOf(20L * 1024 * 1024)));
+    private GcsStreamUpload streamUpload;
+    private JsonObject streamMeta;
+
+    // [ADDED] Batch 한도/준비(내용 해시 계산) 병렬도
+    private static final int BATCH_MAX_ITEMS =
+            Integer.parseInt(System.getenv().getOrDefault("BATCH_MAX_ITEMS", "500"));
+    private static final ExecutorService BATCH_PREP = Executors.newFixedThreadPool(
+            Integer.parseInt(System.getenv().getOrDefault("BATCH_PARALLEL", "8")), r -> {
+                Thread t = new Thread(r, "ingest-batch");
+                t.setDaemon(true);
+                return t;
+            });
+    private static final Pattern ACK_ID = Pattern.compile("\\[(\\w+)/([^\\]]+)\\]");
+
+    /**
+     * [ADDED] 저장 1건 준비 결과: 문서 + 쓰기 후 처리
+     * (단건 저장은 commit으로 바로 쓰고, Batch는 모아서 BulkWriter로 씀)
+     */
+    private static final class Prepared {
+        final String collection, id;
+        final Map<String, Object> doc;
+        String ackSuffix = "";
+        Runnable onWritten = () -> {};
+        Runnable onFailed = () -> {};
+        Prepared(String collection, String id, Map<String, Object> doc) {
+            this.collection = collection; this.id = id; this.doc = doc;
+        }
+        String ack(boolean written) {
+            return (written ? "Firestore 저장 완료 [" : "Firestore 저장 접수(지연 반영) [")
+                    + collection + "/" + id + "]" + ackSuffix;
+        }
+    }
+
+    private volatile String robotId; // [ADDED] 이 연결의 로봇 id (Cap/SttResult/Ai 문서 robotId), 서버 작업용은 null
+
+    /** [ADDED] 접속 시 설정 (TopicBroker.clientId, ChangeFeed가 이 값으로 구독 로봇을 가림) */
+    public void setRobotId(String robotId) { this.robotId = robotId; }
+
     // ====== 외부 진입점 ======
+    /** 클라이언트 메시지 (재전송 멱등 처리 대상) */
     public String handle(String rawJson) throws Exception {
+        return handle(rawJson, true);
+    }
+
+    /** [ADDED] 서버가 만든 SttResult/Ai 저장 (재전송이 없으므로 멱등 테이블을 거치지 않음) */
+    public String handleGenerated(String rawJson) throws Exception {
+        return handle(rawJson, false);
+    }
+
+    private String handle(String rawJson, boolean fromClient) throws Exception {
         JsonObject obj = GSON.fromJson(rawJson, JsonObject.class);
         String type = getAsText(obj, "Type");
         if (type == null || type.isBlank()) {
@@ -43,16 +123,24 @@ public class IngestFirestoreService {
         }
 
         switch (type) {
-            case "Cap":
-                return saveCap(obj, rawJson);
+            case "Cap": // [MODIFIED] 재전송이면 해시 계산/저장 없이 최초 응답
+                return idempotent(idempotencyKey(type, obj),
+                        () -> saveCap(obj, rawJson, hashOfObject(getAsText(obj, "GcsUri"))));
 
             // [ADDED/USED] 음성-답변 합본 결과 저장 (새 플로우 핵심)
             case "SttResult":
-                return saveSttResult(obj, rawJson);
+                return fromClient ? idempotent(idempotencyKey(type, obj), () -> saveSttResult(obj, rawJson))
+                        : saveSttResult(obj, rawJson);
 
             case "CapUploadInit":
                 return initCapUpload(obj); // 사진 업로드
 
+            case "CapStreamBegin":
+                return beginCapStream(obj); // 사진 스트리밍 업로드 시작
+
+            case "CapStreamEnd":
+                return endCapStream(obj); // 스트리밍 업로드 확정 + Cap 저장
+
             case "FindCap":
                 return getCapAsset(obj); // 단건 사진 조회
                 
@@ -62,8 +150,11 @@ public class IngestFirestoreService {
             case "Find":
                 return genericRangeQuery(obj);  // 범용 조회
 
-            case "Ai":
-                return saveAi(obj, rawJson);
+            case "Ai": // [MODIFIED] Ai_{capId} set은 반복돼도 결과가 같아 멱등 테이블 불필요
+                return saveAi(obj, rawJson, !fromClient);
+
+            case "Batch":
+                return saveBatch(obj); // [ADDED] 여러 건 일괄 저장
 
             default:
                 throw new IllegalArgumentException("지원하지 않는 Type: " + type);
@@ -72,7 +163,12 @@ public class IngestFirestoreService {
 
     // ====== Type별 저장 ======
 
-    private String saveCap(JsonObject obj, String rawJson) throws Exception {
+    private String saveCap(JsonObject obj, String rawJson, String contentHash) throws Exception {
+        return commit(prepareCap(obj, rawJson, contentHash));
+    }
+
+    /** [MODIFIED] Cap 문서/중복 판정 준비 (쓰기는 commit 또는 Batch) */
+    private Prepared prepareCap(JsonObject obj, String rawJson, String contentHash) throws Exception {
         Timestamp ts = toTimestamp(getRequiredText(obj, "Datetime"));
         Double lat = getAsDouble(obj, "Lang");
         Double lon = getAsDouble(obj, "Long");
@@ -81,18 +177,54 @@ public class IngestFirestoreService {
 
         Map<String, Object> doc = new HashMap<>();
         doc.put("type", "Cap");
+        doc.put("savedAt", Timestamp.now()); // [ADDED] ChangeFeed 기준 시각
         doc.put("datetime", ts);
         if (lat != null) doc.put("latitude", lat);
         if (lon != null) doc.put("longitude", lon);
         doc.put("ext", ext.toLowerCase());
         doc.put("gcsUri", gcsUri);
         doc.put("raw", GSON.fromJson(rawJson, Map.class));
+        if (robotId != null) doc.put("robotId", robotId); // [ADDED]
 
         String collection = "Cap";
         String id = buildId(collection, ts);
-        writeDoc(collection, id, doc);
 
-        return ackSaved(collection, id) + " (gcs=" + gcsUri + ")";
+        // [ADDED] 내용 해시 중복 판정 (메모리 인덱스, Firestore 조회 없음)
+        ContentHashIndex.Original orig = null;
+        if (contentHash != null) {
+            doc.put("contentHash", contentHash);
+            orig = ContentHashIndex.get().putIfAbsent(contentHash, id, gcsUri);
+        }
+        String uploadedUri = gcsUri;
+        if (orig != null) {
+            gcsUri = orig.gcsUri;
+            doc.put("gcsUri", gcsUri);
+            doc.put("dupOf", orig.capId); // 렌디션은 원본 Cap에 기록된 뒤 복사 (RenditionService.copyFrom)
+        }
+
+        Prepared p = new Prepared(collection, id, doc);
+        p.ackSuffix = " (gcs=" + gcsUri + ")";
+        if (contentHash != null) p.ackSuffix += " (md5=" + contentHash + ")";
+        if (orig == null) {
+            final String savedUri = gcsUri;
+            p.onWritten = () -> RenditionService.get().submit(id, savedUri); // [ADDED] 썸네일/중간 해상도 비동기 생성
+            if (contentHash != null) p.onFailed = () -> ContentHashIndex.get().remove(contentHash, id);
+            return p;
+        }
+        p.ackSuffix += " (dup=" + orig.capId + ")";
+        final String originalId = orig.capId;
+        final boolean reupload = !uploadedUri.equals(gcsUri);
+        p.onWritten = () -> {
+            RenditionService.get().copyFrom(id, originalId);
+            if (!reupload) return;
+            try {
+                String[] bo = GcsUrlUtil.splitGsUri(uploadedUri);
+                GcsUrlUtil.delete(bo[0], bo[1]);
+            } catch (Exception e) {
+                System.err.println("[Cap] duplicate object delete failed: " + uploadedUri + " / " + e.getMessage());
+            }
+        };
+        return p;
     }
 
     /**
@@ -107,6 +239,10 @@ public class IngestFirestoreService {
      * }
      */
     private String saveSttResult(JsonObject obj, String rawJson) throws Exception {
+        return commit(prepareSttResult(obj, rawJson));
+    }
+
+    private Prepared prepareSttResult(JsonObject obj, String rawJson) {
         Timestamp ts = toTimestamp(getRequiredText(obj, "Datetime"));
         String text  = getRequiredText(obj, "Text");
 
@@ -114,12 +250,12 @@ public class IngestFirestoreService {
         doc.put("type", "SttResult");
         doc.put("datetime", ts);
         doc.put("text", text);
+        if (obj.has("Cached") && obj.get("Cached").getAsBoolean()) doc.put("cached", true); // [ADDED] 답변 캐시 재사용
         doc.put("raw", GSON.fromJson(rawJson, Map.class)); // 합본 raw 그대로 저장
+        if (robotId != null) doc.put("robotId", robotId); // [ADDED]
 
         String collection = "SttResult";
-        String id = buildId(collection, ts);
-        writeDoc(collection, id, doc);
-        return ackSaved(collection, id);
+        return new Prepared(collection, buildId(collection, ts), doc);
     }
 
     // 사진 업로드용 사전 서명 URL
@@ -127,19 +263,13 @@ public class IngestFirestoreService {
         String ext = getRequiredText(obj, "확장자");
         String datetime = getRequiredText(obj, "Datetime");
 
-        ZonedDateTime z = toZonedDateTime(toTimestamp(datetime));
-        String datePart = z.toLocalDate().format(DateTimeFormatter.BASIC_ISO_DATE);
-        String timePart = z.format(DateTimeFormatter.ofPattern("HHmmss"));
-        int rnd = 1000 + RND.nextInt(9000);
-        String objectName = String.format("photos/%s/%s_%04d.%s", datePart, timePart, rnd, ext.toLowerCase());
-
-        String bucket = System.getenv("GCS_BUCKET");
-        if (bucket == null || bucket.isBlank()) throw new IllegalStateException("GCS_BUCKET 환경변수 누락");
+        String objectName = newPhotoObjectName(datetime, ext);
+        String bucket = requireBucket();
 
         String gcsUri = "gs://" + bucket + "/" + objectName;
 
         var url = gcfv2.gcs.GcsUrlUtil.createUploadUrl(bucket, objectName, Duration.ofMinutes(10),
-                ext.equalsIgnoreCase("png") ? "image/png" : "image/jpeg");
+                contentTypeOf(ext));
 
         Map<String, Object> resp = new LinkedHashMap<>();
         resp.put("Type", "CapUploadInitResult");
@@ -149,6 +279,67 @@ public class IngestFirestoreService {
         return GSON.toJson(resp);
     }
 
+    /**
+     * [ADDED] 스트리밍 업로드 시작
+     * 입력 JSON 예: {"Type":"CapStreamBegin","Datetime":"yyyy-MM-dd HH:mm:ss","확장자":"jpg","Lang":..,"Long":..}
+     * 이후 바이너리 프레임(JPEG 바이트)을 순서대로 보내고 {"Type":"CapStreamEnd"} 로 마무리
+     */
+    private String beginCapStream(JsonObject obj) throws Exception {
+        String ext = getRequiredText(obj, "확장자");
+        String datetime = getRequiredText(obj, "Datetime");
+        abortCapStream(); // 이전 미완료 업로드는 폐기
+
+        String objectName = newPhotoObjectName(datetime, ext);
+        streamUpload = GcsStreamUpload.open(requireBucket(), objectName, contentTypeOf(ext), STREAM_MAX_BYTES);
+        streamMeta = obj;
+
+        Map<String, Object> resp = new LinkedHashMap<>();
+        resp.put("Type", "CapStreamBeginResult");
+        resp.put("GcsUri", streamUpload.gcsUri());
+        resp.put("ChunkSize", GcsStreamUpload.CHUNK_BYTES);
+        return GSON.toJson(resp);
+    }
+
+    /** [ADDED] 바이너리 프레임 수신 → 진행 중 업로드에 기록 */
+    public void handleBinary(ByteBuffer frame) throws IOException {
+        if (streamUpload == null) {
+            throw new IllegalStateException("CapStreamBegin 없이 바이너리 수신");
+        }
+        try {
+            streamUpload.write(frame);
+        } catch (IOException | RuntimeException e) {
+            abortCapStream();
+            throw e;
+        }
+    }
+
+    /** [ADDED] 업로드 확정 후 같은 흐름에서 Cap 레코드 저장 (응답 형식은 Cap과 동일) */
+    private String endCapStream(JsonObject obj) throws Exception {
+        if (streamUpload == null) throw new IllegalStateException("진행 중인 스트리밍 업로드 없음");
+        GcsStreamUpload up = streamUpload;
+        JsonObject meta = streamMeta;
+        streamUpload = null;
+        streamMeta = null;
+        if (up.written() == 0) {
+            up.abort();
+            throw new IllegalStateException("업로드된 바이트 없음");
+        }
+        up.commit();
+
+        JsonObject cap = meta.deepCopy();
+        cap.addProperty("Type", "Cap");
+        cap.addProperty("GcsUri", up.gcsUri());
+        cap.addProperty("Size", up.written());
+        return saveCap(cap, cap.toString(), up.contentHash());
+    }
+
+    /** [ADDED] 연결 종료/오류 시 미완료 스트리밍 업로드 정리 */
+    public void abortCapStream() {
+        if (streamUpload != null) streamUpload.abort();
+        streamUpload = null;
+        streamMeta = null;
+    }
+
     private String getCapAsset(JsonObject obj) throws Exception {
         int ttlSec = 900;
         if (obj.has("TtlSec") && obj.get("TtlSec").isJsonPrimitive()) {
@@ -162,8 +353,8 @@ public class IngestFirestoreService {
             if (id == null || id.isBlank()) {
                 throw new IllegalArgumentException("Id 또는 GcsUri 중 하나는 필요합니다.");
             }
-            DocumentSnapshot doc = FirestoreClient.get()
-                    .collection("Cap").document(id).get().get();
+            DocumentSnapshot doc = Bulkheads.FIRESTORE.call(() -> FirestoreClient.get()
+                    .collection("Cap").document(id).get().get());
             if (!doc.exists()) throw new IllegalArgumentException("문서 없음: " + id);
             Object got = doc.get("gcsUri");
             if (!(got instanceof String) || ((String) got).isBlank()) {
@@ -172,7 +363,7 @@ public class IngestFirestoreService {
             gcsUri = (String) got;
         }
 
-        String[] bo = splitGsUri(gcsUri);
+        String[] bo = GcsUrlUtil.splitGsUri(gcsUri);
         var url = GcsUrlUtil.createDownloadUrl(bo[0], bo[1], Duration.ofSeconds(ttlSec));
 
         Map<String, Object> resp = new LinkedHashMap<>();
@@ -194,6 +385,11 @@ public class IngestFirestoreService {
         if (obj.has("TtlSec") && obj.get("TtlSec").isJsonPrimitive()) {
             try { ttlSec = obj.get("TtlSec").getAsInt(); } catch (Exception ignore) {}
         }
+        // [ADDED] url에 담을 해상도: thumb(기본) | medium | original (렌디션이 아직 없으면 원본)
+        String rendition = getAsText(obj, "Rendition");
+        if (rendition == null || rendition.isBlank()) rendition = "thumb";
+        // [ADDED] UrlMode=proxy 이면 /img/ 프록시 경로 반환 (서버 디스크 캐시 경유, [MODIFIED] TtlSec 만료 HMAC 서명)
+        boolean proxy = "proxy".equalsIgnoreCase(getAsText(obj, "UrlMode"));
 
         Timestamp fromTs = toTimestamp(fromStr);
         Timestamp toTs   = toTimestamp(toStr);
@@ -204,7 +400,8 @@ public class IngestFirestoreService {
                 .orderBy("datetime", Query.Direction.ASCENDING);
         if (limit != null && limit > 0) q = q.limit(limit);
 
-        List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+        Query fq = q;
+        List<QueryDocumentSnapshot> docs = Bulkheads.FIRESTORE.call(() -> fq.get().get().getDocuments());
 
         List<Map<String, Object>> items = new ArrayList<>();
         for (QueryDocumentSnapshot d : docs) {
@@ -221,9 +418,22 @@ public class IngestFirestoreService {
                 String gcsUri = (String) gcsObj;
                 one.put("gcsUri", gcsUri);
 
-                String[] bo = splitGsUri(gcsUri);
-                var url = GcsUrlUtil.createDownloadUrl(bo[0], bo[1], Duration.ofSeconds(ttlSec));
-                one.put("url", url.toExternalForm());
+                String servedUri = gcsUri;
+                String served = "original";
+                Object rendObj = "original".equals(rendition) ? null : d.get(rendition + "Uri");
+                if (rendObj instanceof String && !((String) rendObj).isBlank()) {
+                    servedUri = (String) rendObj;
+                    served = rendition;
+                }
+
+                String[] bo = GcsUrlUtil.splitGsUri(servedUri);
+                if (proxy) {
+                    one.put("url", ImageProxyServlet.signedPath(bo[1], ttlSec));
+                } else {
+                    var url = GcsUrlUtil.createDownloadUrl(bo[0], bo[1], Duration.ofSeconds(ttlSec));
+                    one.put("url", url.toExternalForm());
+                }
+                one.put("rendition", served);
             }
             items.add(one);
         }
@@ -258,7 +468,7 @@ public class IngestFirestoreService {
                 .whereLessThanOrEqualTo("datetime", toTs)
                 .orderBy("datetime", Query.Direction.ASCENDING);
 
-        List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+        List<QueryDocumentSnapshot> docs = Bulkheads.FIRESTORE.call(() -> q.get().get().getDocuments());
 
         List<Map<String, Object>> raws = new ArrayList<>();
         for (QueryDocumentSnapshot d : docs) {
@@ -281,7 +491,12 @@ public class IngestFirestoreService {
     }
 
     // ====== AI 이미지 결과 저장 (기존 유지) ======
-    private String saveAi(JsonObject obj, String rawJson) throws Exception {
+    private String saveAi(JsonObject obj, String rawJson, boolean generated) throws Exception {
+        return commit(prepareAi(obj, rawJson, generated));
+    }
+
+    /** [MODIFIED] generated: 서버가 만든 결과면 RobotId 필드(Cap을 올린 로봇)를 따름, 클라이언트 메시지는 연결의 로봇 */
+    private Prepared prepareAi(JsonObject obj, String rawJson, boolean generated) {
         Timestamp ts = toTimestamp(getRequiredText(obj, "Datetime"));
         String capId = getAsText(obj, "CapId");
         if (capId == null || capId.isBlank()) capId = getRequiredText(obj, "ID");
@@ -291,27 +506,258 @@ public class IngestFirestoreService {
 
         Map<String, Object> doc = new LinkedHashMap<>();
         doc.put("type", "Ai");
+        doc.put("savedAt", Timestamp.now()); // [ADDED]
         doc.put("datetime", ts);
         doc.put("capId", capId);
         if (gcsUri != null && !gcsUri.isBlank()) doc.put("gcsUri", gcsUri);
         if (url != null && !url.isBlank())       doc.put("url", url);
         doc.put("result", result);
         doc.put("raw", GSON.fromJson(rawJson, Map.class));
+        String robot = generated && getAsText(obj, "RobotId") != null ? getAsText(obj, "RobotId") : robotId;
+        if (robot != null) doc.put("robotId", robot); // [ADDED]
+
+        return new Prepared("Ai", "Ai_" + capId, doc);
+    }
+
+    /**
+     * [ADDED] 일괄 저장
+     * 입력: {"Type":"Batch","BatchId":"...(선택)","Items":[{Cap...},{SttResult...},{Ai...}]}
+     * 응답: {"Type":"BatchAck","Count":n,"Saved":..,"Accepted":..,"Duplicate":..,"Failed":..,
+     *        "Items":[{"Index":0,"Type":"Cap","Status":"saved|accepted|duplicate|error","Id":"Cap/Cap_...","Ack":"..."}]}
+     * - 멱등 판정/선점(beginAll) → 항목 준비(Cap 내용 해시는 병렬) → BulkWriter 한 번 → 응답 기록(completeAll)
+     * - 항목 하나가 실패해도 나머지는 저장, Ack는 단건 저장 응답과 같은 형식
+     */
+    private String saveBatch(JsonObject obj) throws Exception {
+        long t0 = System.currentTimeMillis();
+        if (!obj.has("Items") || !obj.get("Items").isJsonArray()) {
+            throw new IllegalArgumentException("필수 필드 누락: Items");
+        }
+        JsonArray items = obj.getAsJsonArray("Items");
+        int n = items.size();
+        if (n > BATCH_MAX_ITEMS) throw new IllegalArgumentException("Batch 항목 수 초과: " + n + " > " + BATCH_MAX_ITEMS);
+
+        List<Map<String, Object>> results = new ArrayList<>(n);
+        String[] types = new String[n];
+        String[] keys = new String[n];
+        JsonObject[] objs = new JsonObject[n];
+        Map<String, Integer> firstOfKey = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            results.add(new LinkedHashMap<>());
+            results.get(i).put("Index", i);
+            JsonElement el = items.get(i);
+            if (!el.isJsonObject()) { fail(results.get(i), "항목이 JSON 객체가 아님"); continue; }
+            objs[i] = el.getAsJsonObject();
+            types[i] = getAsText(objs[i], "Type");
+            results.get(i).put("Type", types[i]);
+            if (!"Cap".equals(types[i]) && !"SttResult".equals(types[i]) && !"Ai".equals(types[i])) {
+                fail(results.get(i), "Batch에서 지원하지 않는 Type: " + types[i]);
+                objs[i] = null;
+                continue;
+            }
+            keys[i] = idempotencyKey(types[i], objs[i]);
+            if (keys[i] != null) firstOfKey.putIfAbsent(keys[i], i);
+        }
+
+        // 1) 멱등 판정 (같은 Batch 안의 반복은 첫 항목 결과를 따름)
+        Map<String, String> prior = IdempotencyTable.get().beginAll(firstOfKey.keySet());
+
+        // 2) 항목 준비 (Cap은 GCS 내용 해시 때문에 병렬)
+        Prepared[] prepared = new Prepared[n];
+        List<CompletableFuture<Void>> preps = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (objs[i] == null) continue;
+            if (keys[i] != null && (prior.containsKey(keys[i]) || firstOfKey.get(keys[i]) != i)) continue;
+            final int idx = i;
+            preps.add(CompletableFuture.runAsync(() -> {
+                try {
+                    prepared[idx] = prepare(types[idx], objs[idx]);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, BATCH_PREP).exceptionally(e -> {
+                Throwable c = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                fail(results.get(idx), c.getMessage());
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(preps.toArray(new CompletableFuture<?>[0])).join();
+
+        // 3) BulkWriter 한 번 (장애면 WriteSpool에 접수)
+        List<WriteSpool.Write> writes = new ArrayList<>();
+        List<Integer> writeIdx = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (prepared[i] == null) continue;
+            writes.add(new WriteSpool.Write(prepared[i].collection, prepared[i].id, prepared[i].doc));
+            writeIdx.add(i);
+        }
+        try {
+            WriteSpool.get().writeAll(writes);
+        } catch (Exception e) {
+            for (int i : writeIdx) prepared[i].onFailed.run();
+            for (String key : firstOfKey.keySet()) if (!prior.containsKey(key)) IdempotencyTable.get().abort(key);
+            throw e;
+        }
+
+        // 4) 항목별 결과 + 멱등 응답 기록
+        Map<String, String> acks = new LinkedHashMap<>();
+        for (int w = 0; w < writes.size(); w++) {
+            int i = writeIdx.get(w);
+            WriteSpool.Write wr = writes.get(w);
+            Prepared p = prepared[i];
+            if (wr.error() != null) {
+                p.onFailed.run();
+                fail(results.get(i), wr.error().getMessage());
+                continue;
+            }
+            p.onWritten.run();
+            String ack = p.ack(wr.written());
+            results.get(i).put("Status", wr.written() ? "saved" : "accepted");
+            results.get(i).put("Id", p.collection + "/" + p.id);
+            results.get(i).put("Ack", ack);
+            if (keys[i] != null) acks.put(keys[i], ack);
+        }
+        for (String key : firstOfKey.keySet()) {
+            if (!prior.containsKey(key) && !acks.containsKey(key)) IdempotencyTable.get().abort(key);
+        }
+        IdempotencyTable.get().completeAll(acks);
+        for (int i = 0; i < n; i++) {
+            if (keys[i] == null || results.get(i).containsKey("Status")) continue;
+            String ack = prior.containsKey(keys[i]) ? prior.get(keys[i]) : acks.get(keys[i]);
+            if (ack == null) {
+                fail(results.get(i), "같은 Batch의 " + firstOfKey.get(keys[i]) + "번 항목 저장 실패");
+                continue;
+            }
+            results.get(i).put("Status", "duplicate");
+            Matcher m = ACK_ID.matcher(ack);
+            if (m.find()) results.get(i).put("Id", m.group(1) + "/" + m.group(2));
+            results.get(i).put("Ack", ack);
+        }
+
+        Map<String, Object> resp = new LinkedHashMap<>();
+        resp.put("Type", "BatchAck");
+        if (obj.has("BatchId")) resp.put("BatchId", getAsText(obj, "BatchId"));
+        resp.put("Count", n);
+        for (String s : new String[]{ "saved", "accepted", "duplicate", "error" }) {
+            long c = results.stream().filter(r -> s.equals(r.get("Status"))).count();
+            resp.put("error".equals(s) ? "Failed" : Character.toUpperCase(s.charAt(0)) + s.substring(1), c);
+        }
+        resp.put("ElapsedMs", System.currentTimeMillis() - t0);
+        resp.put("Items", results);
+        System.out.println("[BATCH] items=" + n + " written=" + writes.size() + " prior=" + prior.size()
+                + " elapsedMs=" + resp.get("ElapsedMs"));
+        return GSON.toJson(resp);
+    }
+
+    private Prepared prepare(String type, JsonObject item) throws Exception {
+        String raw = item.toString();
+        switch (type) {
+            case "Cap":       return prepareCap(item, raw, hashOfObject(getAsText(item, "GcsUri")));
+            case "SttResult": return prepareSttResult(item, raw);
+            default:          return prepareAi(item, raw, false);
+        }
+    }
+
+    private static void fail(Map<String, Object> result, String message) {
+        result.put("Status", "error");
+        result.put("Error", message);
+    }
 
-        String collection = "Ai";
-        String id = "Ai_" + capId;
-        writeDoc(collection, id, doc);
-        return ackSaved(collection, id);
+    /** [ADDED] 저장된 Ai_{capId} 분석 결과 (없으면 null) - 재분석 방지용 */
+    public String findAiResult(String capId) throws Exception {
+        DocumentSnapshot d = Bulkheads.FIRESTORE.call(() ->
+                FirestoreClient.get().collection("Ai").document("Ai_" + capId).get().get());
+        if (!d.exists()) return null;
+        Object r = d.get("result");
+        return (r instanceof String && !((String) r).isBlank()) ? (String) r : null;
     }
 
     // ====== 공통 유틸 ======
-    private void writeDoc(String collection, String id, Map<String, Object> doc) throws Exception {
-        Firestore db = FirestoreClient.get();
-        db.collection(collection).document(id).set(doc).get();
+    /** [ADDED] 준비된 1건 쓰기 → 단건 저장 응답 */
+    private String commit(Prepared p) throws Exception {
+        boolean written;
+        try {
+            written = writeDoc(p.collection, p.id, p.doc);
+        } catch (Exception e) {
+            p.onFailed.run();
+            throw e;
+        }
+        p.onWritten.run();
+        return p.ack(written);
+    }
+
+    /** [ADDED] 멱등키가 있으면 최초 처리 응답을 재사용, 처음이면 저장 후 응답 기록 */
+    private String idempotent(String key, Callable<String> save) throws Exception {
+        if (key == null) return save.call();
+        String prior = IdempotencyTable.get().begin(key);
+        if (prior != null) {
+            System.out.println("[IDEM] duplicate request, original ack returned: " + key);
+            return prior;
+        }
+        String ack;
+        try {
+            ack = save.call();
+        } catch (Exception e) {
+            IdempotencyTable.get().abort(key);
+            throw e;
+        }
+        IdempotencyTable.get().complete(key, ack);
+        return ack;
+    }
+
+    /**
+     * [ADDED] 멱등키: 메시지 IdempotencyKey 우선, 없으면
+     * Cap = GcsUri(업로드 객체당 1건), SttResult = Datetime+Text
+     * [MODIFIED] Ai는 null (문서 ID가 Cap 기준으로 고정)
+     */
+    private static String idempotencyKey(String type, JsonObject obj) {
+        if ("Ai".equals(type)) return null;
+        String k = getAsText(obj, "IdempotencyKey");
+        if (k != null && !k.isBlank()) return type + "|key|" + k.trim();
+        switch (type) {
+            case "Cap": {
+                String gcsUri = getAsText(obj, "GcsUri");
+                return gcsUri == null || gcsUri.isBlank() ? null : "Cap|gcs|" + gcsUri.trim();
+            }
+            case "SttResult": {
+                String dt = getAsText(obj, "Datetime"), text = getAsText(obj, "Text");
+                return dt == null || text == null ? null : "SttResult|" + dt + "|" + Hashes.sha256Hex(text);
+            }
+            default:
+                return null;
+        }
     }
 
-    private String ackSaved(String collection, String id) {
-        return "Firestore 저장 완료 [" + collection + "/" + id + "]";
+    /** [MODIFIED] 격벽 경유, 느리거나 장애면 WriteSpool에 접수 → 반영됐으면 true, 접수만 됐으면 false */
+    private boolean writeDoc(String collection, String id, Map<String, Object> doc) throws Exception {
+        return WriteSpool.get().write(collection, id, doc);
+    }
+
+    /** [MODIFIED] 서명URL로 올라온 객체의 MD5 - 메타데이터 조회만 (실패/없음이면 null → 중복 판정 생략) */
+    private static String hashOfObject(String gcsUri) {
+        if (gcsUri == null || gcsUri.isBlank()) return null;
+        try {
+            String[] bo = GcsUrlUtil.splitGsUri(gcsUri);
+            return GcsUrlUtil.md5Hex(bo[0], bo[1]);
+        } catch (Exception e) {
+            System.err.println("[Cap] hash failed: " + gcsUri + " / " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String newPhotoObjectName(String datetime, String ext) {
+        ZonedDateTime z = toZonedDateTime(toTimestamp(datetime));
+        String datePart = z.toLocalDate().format(DateTimeFormatter.BASIC_ISO_DATE);
+        String timePart = z.format(DateTimeFormatter.ofPattern("HHmmss"));
+        int rnd = 1000 + RND.nextInt(9000);
+        return String.format("photos/%s/%s_%04d.%s", datePart, timePart, rnd, ext.toLowerCase());
+    }
+    private static String requireBucket() {
+        String bucket = System.getenv("GCS_BUCKET");
+        if (bucket == null || bucket.isBlank()) throw new IllegalStateException("GCS_BUCKET 환경변수 누락");
+        return bucket;
+    }
+    private static String contentTypeOf(String ext) {
+        return ext.equalsIgnoreCase("png") ? "image/png" : "image/jpeg";
     }
 
     private static String getRequiredText(JsonObject obj, String key) {
@@ -351,10 +797,4 @@ public class IngestFirestoreService {
         ZonedDateTime z = inst.atZone(ZONE_SEOUL);
         return z.format(INPUT_FMT);
     }
-    private static String[] splitGsUri(String gcsUri) {
-        String noPrefix = gcsUri.replaceFirst("^gs://", "");
-        int idx = noPrefix.indexOf('/');
-        if (idx < 0) throw new IllegalArgumentException("잘못된 GCS URI: " + gcsUri);
-        return new String[]{ noPrefix.substring(0, idx), noPrefix.substring(idx + 1) };
-    }
 }
@@ -0,0 +1,454 @@
+package gcfv2.ingest;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterException;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.WriteResult;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import gcfv2.Env;
+import gcfv2.fs.FirestoreClient;
+import gcfv2.limit.Bulkheads;
+import gcfv2.queue.SegmentLog;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * [ADDED] Firestore 쓰기 스풀 (장애/지연 시 로컬 WAL에 보관 후 재반영)
+ * - 쓰기가 SPOOL_BUDGET_MS(1500) 안에 끝나지 않거나 재시도 가능한 오류(UNAVAILABLE 등, 격벽 거절 포함)면
+ *   SegmentLog(mmap)에 기록하고 "접수"로 응답, 이후 SPOOL_OUTAGE_MS(5000) 동안은 바로 스풀 (매번 예산만큼 기다리지 않음)
+ * - 재반영 스레드가 SPOOL_REPLAY_MS(1000)마다 기록 순서대로 set(같은 문서 ID → 여러 번 반영돼도 결과 동일),
+ *   실패하면 그 회차는 멈추고 다음 주기에 다시 시도
+ * - 재시작 시 로그 재생으로 미반영 쓰기 복구, 모두 반영된 앞쪽 세그먼트는 삭제
+ * - 문서 값 중 Timestamp/정수는 형식을 보존해 직렬화 (Gson 기본 변환은 double/객체로 바뀜)
+ * - 위치 SPOOL_DIR(기본 {tmp}/gcfv2-spool), SPOOL=off면 기존처럼 직접 쓰기만
+ * - stats: 대기 건수/바이트, 가장 오래된 대기 시간(lag), 재반영 처리량
+ * - [ADDED] writeAll: 여러 문서를 BulkWriter 한 번으로 기록 (SPOOL_BULK_BUDGET_MS 안에 못 끝낸 항목은 스풀)
+ * - [ADDED] 대기 중 동작 (호출측 주의):
+ *   · 대기 건이 하나라도 있으면 다른 문서 쓰기도 전부 스풀로 감 (기록 순서 유지, 대기 건이 다 반영될 때까지)
+ *   · 스풀에만 있는 문서는 Firestore 조회(findAiResult, 중복 판정, ChangeFeed 등)에 보이지 않음
+ *   · 대기 깊이는 /stats firestoreSpool.pending / pendingByCollection / lagMs
+ * - [ADDED] 늦게 도착하는 쓰기 방지: 문서마다 원래 쓰기 시각 savedAt을 쓰기 시점에 찍고(없을 때만) 스풀에도 그대로 보존,
+ *   재반영은 트랜잭션으로 저장된 savedAt이 더 새로우면 건너뜀(superseded) → 오래된 스풀 쓰기가 새 쓰기를 덮지 않음.
+ *   예산을 넘긴 직접 set()은 스풀에 넣으면서 취소(클라이언트 재시도 중단, cancelledLate)
+ * - [ADDED] 스풀 레코드에 접수 시각을 함께 기록 → 재시작 후에도 lagMs가 원래 접수 시각 기준
+ */
+public final class WriteSpool {
+
+    private static final byte WRITE = 1;
+    private static final byte DONE = 2;
+
+    private static final long BUDGET_MS = Env.getInt("SPOOL_BUDGET_MS", 1500);
+    private static final long OUTAGE_MS = Env.getInt("SPOOL_OUTAGE_MS", 5000);
+    private static final long REPLAY_MS = Env.getInt("SPOOL_REPLAY_MS", 1000);
+    private static final int REPLAY_BATCH = Math.max(1, Env.getInt("SPOOL_REPLAY_BATCH", 200));
+    private static final long BULK_BUDGET_MS = Env.getInt("SPOOL_BULK_BUDGET_MS", 5000);
+    private static final int BULK_RETRIES = Env.getInt("SPOOL_BULK_RETRIES", 2);
+    private static final Set<String> RETRYABLE_CODES = Set.of(
+            "UNAVAILABLE", "DEADLINE_EXCEEDED", "RESOURCE_EXHAUSTED", "ABORTED", "INTERNAL", "UNKNOWN", "CANCELLED");
+
+    private static final Gson GSON = new Gson();
+    private static final String SAVED_AT = "savedAt";
+
+    /** 대기 중인 쓰기 1건 */
+    private static final class Entry {
+        final long seq;
+        final String collection, id;
+        final byte[] bytes;
+        final long spooledAt;
+        final long segment;
+        Entry(long seq, String collection, String id, byte[] bytes, long spooledAt, long segment) {
+            this.seq = seq; this.collection = collection; this.id = id;
+            this.bytes = bytes; this.spooledAt = spooledAt; this.segment = segment;
+        }
+    }
+
+    /** [ADDED] writeAll 항목 (결과: written=반영, 아니면 error==null이면 스풀 접수) */
+    public static final class Write {
+        final String collection, id;
+        final Map<String, Object> doc;
+        boolean written;
+        Exception error;
+        public Write(String collection, String id, Map<String, Object> doc) {
+            this.collection = collection; this.id = id; this.doc = stamped(doc);
+        }
+        public boolean written() { return written; }
+        public Exception error() { return error; }
+    }
+
+    private static final WriteSpool INSTANCE = new WriteSpool();
+    public static WriteSpool get() { return INSTANCE; }
+
+    private final SegmentLog log;
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    private final AtomicLong direct = new AtomicLong(), spooled = new AtomicLong(), replayed = new AtomicLong(),
+            replayFailures = new AtomicLong(), recovered = new AtomicLong(), bulkBatches = new AtomicLong(),
+            superseded = new AtomicLong(), cancelledLate = new AtomicLong();
+    private volatile long outageUntil = 0;
+    private volatile double replayPerSec = 0;
+    private long pendingBytes = 0;
+
+    private WriteSpool() {
+        SegmentLog l = null;
+        if (!"off".equalsIgnoreCase(System.getenv().getOrDefault("SPOOL", "on"))) {
+            Path dir = Path.of(System.getenv().getOrDefault("SPOOL_DIR",
+                    Path.of(System.getProperty("java.io.tmpdir"), "gcfv2-spool").toString()));
+            try {
+                l = new SegmentLog(dir, "spool", Env.getInt("SPOOL_SEGMENT_MB", 16) * 1024 * 1024,
+                        Env.getInt("SPOOL_FSYNC_MS", 100));
+                recover(l);
+            } catch (Exception e) {
+                System.err.println("[SPOOL] log open failed, direct writes only: " + e.getMessage());
+                l = null;
+            }
+        }
+        this.log = l;
+        if (log != null) {
+            Thread t = new Thread(this::replayLoop, "firestore-spool");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void recover(SegmentLog l) {
+        Map<Long, Entry> found = new LinkedHashMap<>();
+        l.replay((segment, type, id, payload) -> {
+            seq.accumulateAndGet(id, Math::max);
+            if (type == DONE) {
+                found.remove(id);
+            } else if (type == WRITE) {
+                Record r = parse(payload);
+                found.put(id, new Entry(id, r.collection(), r.id(), payload, r.spooledAt(), segment));
+            }
+        });
+        synchronized (this) {
+            for (Entry e : found.values()) {
+                pending.put(e.seq, e);
+                pendingBytes += e.bytes.length;
+            }
+        }
+        recovered.set(found.size());
+        if (!found.isEmpty()) System.out.println("[SPOOL] recovered " + found.size() + " unreplayed writes");
+    }
+
+    /**
+     * 문서 쓰기: 예산 안에 반영되면 true, 스풀에 접수되면 false
+     * 재시도해도 소용없는 오류(잘못된 값 등)는 그대로 던짐
+     */
+    public boolean write(String collection, String id, Map<String, Object> source) throws Exception {
+        DocumentReference ref = FirestoreClient.get().collection(collection).document(id);
+        Map<String, Object> doc = stamped(source);
+        if (log == null) {
+            Bulkheads.FIRESTORE.call(() -> ref.set(doc).get());
+            return true;
+        }
+        if (deferring()) {
+            spool(collection, id, doc); // 장애 중이거나 앞선 쓰기가 밀려 있으면 순서 유지를 위해 스풀
+            return false;
+        }
+        AtomicReference<ApiFuture<WriteResult>> call = new AtomicReference<>();
+        try {
+            Bulkheads.FIRESTORE.call(() -> {
+                ApiFuture<WriteResult> f = ref.set(doc);
+                call.set(f);
+                return f.get(BUDGET_MS, TimeUnit.MILLISECONDS);
+            });
+            direct.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            ApiFuture<WriteResult> f = call.get();
+            if (f != null && !f.isDone() && f.cancel(true)) cancelledLate.incrementAndGet(); // [ADDED] 늦은 반영 방지
+            if (!retryable(e)) throw e;
+            outageUntil = System.currentTimeMillis() + OUTAGE_MS;
+            System.err.println("[SPOOL] firestore write deferred " + collection + "/" + id + ": " + e);
+            spool(collection, id, doc);
+            return false;
+        }
+    }
+
+    /**
+     * [ADDED] 여러 문서를 BulkWriter로 한 번에 기록 (항목별 결과는 Write에 기록)
+     * - 장애 구간/대기 건이 있으면 모두 바로 스풀 (write와 같은 순서 보장)
+     * - 재시도 가능한 오류는 SPOOL_BULK_RETRIES까지 BulkWriter가 재시도, 그래도 실패하거나
+     *   예산 안에 끝나지 않은 항목은 스풀 (나중에 끝나도 같은 문서 ID set이라 결과 동일)
+     */
+    public void writeAll(List<Write> writes) throws Exception {
+        if (writes.isEmpty()) return;
+        if (deferring()) {
+            for (Write w : writes) spool(w.collection, w.id, w.doc);
+            return;
+        }
+        BulkWriter bw = FirestoreClient.bulkWriter();
+        List<ApiFuture<WriteResult>> futures = new ArrayList<>(writes.size());
+        try {
+            bw.addWriteErrorListener(err -> err.getFailedAttempts() < BULK_RETRIES
+                    && RETRYABLE_CODES.contains(err.getStatus().getCode().name()));
+            for (Write w : writes) {
+                futures.add(bw.set(FirestoreClient.get().collection(w.collection).document(w.id), w.doc));
+            }
+            Bulkheads.FIRESTORE.call(() -> bw.flush().get(BULK_BUDGET_MS, TimeUnit.MILLISECONDS));
+        } catch (Exception e) {
+            if (!retryable(e)) System.err.println("[SPOOL] bulk flush failed: " + e);
+        } finally {
+            FirestoreClient.closeWhenDone(bw);
+        }
+        bulkBatches.incrementAndGet();
+        int deferred = 0;
+        for (int i = 0; i < writes.size(); i++) {
+            Write w = writes.get(i);
+            ApiFuture<WriteResult> f = futures.get(i);
+            Exception err;
+            if (f.isDone()) {
+                try {
+                    f.get();
+                    w.written = true;
+                    direct.incrementAndGet();
+                    continue;
+                } catch (ExecutionException e) {
+                    err = e;
+                }
+            } else {
+                err = new TimeoutException("bulk write budget exceeded");
+                if (f.cancel(true)) cancelledLate.incrementAndGet(); // [ADDED]
+            }
+            if (log == null || !retryable(err)) {
+                w.error = err;
+                continue;
+            }
+            spool(w.collection, w.id, w.doc);
+            deferred++;
+        }
+        if (deferred > 0) {
+            outageUntil = System.currentTimeMillis() + OUTAGE_MS;
+            System.err.println("[SPOOL] bulk write deferred " + deferred + "/" + writes.size());
+        }
+    }
+
+    private void spool(String collection, String id, Map<String, Object> doc) throws Exception {
+        long now = System.currentTimeMillis();
+        byte[] bytes = encode(collection, id, now, doc);
+        synchronized (this) {
+            long s = seq.incrementAndGet();
+            long segment = log.append(WRITE, s, bytes);
+            pending.put(s, new Entry(s, collection, id, bytes, now, segment));
+            pendingBytes += bytes.length;
+        }
+        spooled.incrementAndGet();
+    }
+
+    private synchronized boolean hasPending() { return !pending.isEmpty(); }
+
+    /** [ADDED] 지금 쓰면 스풀로 가는 상태 (장애 구간이거나 반영 대기 건이 있음) */
+    public boolean deferring() {
+        return log != null && (System.currentTimeMillis() < outageUntil || hasPending());
+    }
+
+    private void replayLoop() {
+        while (true) {
+            try {
+                if (!replayOnce()) Thread.sleep(REPLAY_MS); // 진행 중이면 쉬지 않고 이어서 반영
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("[SPOOL] replay error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** 기록 순서대로 반영, 실패하면 이번 회차 중단 → 반영 후에도 대기 건이 남았으면 true */
+    boolean replayOnce() throws Exception {
+        List<Entry> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return false;
+            batch = new ArrayList<>(Math.min(REPLAY_BATCH, pending.size()));
+            for (Entry e : pending.values()) {
+                if (batch.size() >= REPLAY_BATCH) break;
+                batch.add(e);
+            }
+        }
+        long t0 = System.nanoTime();
+        int n = 0;
+        for (Entry e : batch) {
+            Map<String, Object> doc = decode(e.bytes);
+            DocumentReference ref = FirestoreClient.get().collection(e.collection).document(e.id);
+            try {
+                if (!Bulkheads.FIRESTORE.call(() -> setIfNotNewer(ref, doc).get(BUDGET_MS * 4, TimeUnit.MILLISECONDS))) {
+                    superseded.incrementAndGet();
+                }
+            } catch (Exception ex) {
+                if (retryable(ex)) {
+                    replayFailures.incrementAndGet();
+                    outageUntil = System.currentTimeMillis() + OUTAGE_MS;
+                    break;
+                }
+                System.err.println("[SPOOL] drop unwritable " + e.collection + "/" + e.id + ": " + ex);
+            }
+            synchronized (this) {
+                log.append(DONE, e.seq, new byte[0]);
+                pending.remove(e.seq);
+                pendingBytes -= e.bytes.length;
+            }
+            n++;
+        }
+        if (n > 0) {
+            replayed.addAndGet(n);
+            replayPerSec = n / Math.max(1e-3, (System.nanoTime() - t0) / 1e9);
+            System.out.println("[SPOOL] replayed " + n + " writes, pending=" + pendingCount());
+            dropReplayedSegments();
+        }
+        return n == batch.size() && hasPending();
+    }
+
+    /**
+     * [ADDED] 저장된 문서의 savedAt이 이 쓰기보다 새로우면 건너뛰고(false), 아니면 set (트랜잭션)
+     * savedAt이 없거나 Timestamp가 아니면(이전 형식 문서) 그냥 set
+     */
+    private static ApiFuture<Boolean> setIfNotNewer(DocumentReference ref, Map<String, Object> doc) {
+        Object mine = doc.get(SAVED_AT);
+        return FirestoreClient.get().runTransaction(tx -> {
+            Object current = tx.get(ref).get().get(SAVED_AT);
+            if (mine instanceof Timestamp && current instanceof Timestamp
+                    && ((Timestamp) current).compareTo((Timestamp) mine) > 0) {
+                return false;
+            }
+            tx.set(ref, doc);
+            return true;
+        });
+    }
+
+    /** [ADDED] savedAt(원래 쓰기 시각)이 없으면 지금 시각을 넣은 사본 (있으면 그대로) */
+    private static Map<String, Object> stamped(Map<String, Object> doc) {
+        if (doc.get(SAVED_AT) instanceof Timestamp) return doc;
+        Map<String, Object> m = new HashMap<>(doc);
+        m.put(SAVED_AT, Timestamp.now());
+        return m;
+    }
+
+    /** 모두 반영된 앞쪽 세그먼트 삭제 (대기 중 가장 오래된 쓰기의 세그먼트 전까지) */
+    private synchronized void dropReplayedSegments() {
+        long oldest = pending.isEmpty() ? log.activeSegment() : pending.values().iterator().next().segment;
+        if (oldest > 0) log.dropThrough(oldest - 1);
+    }
+
+    private synchronized int pendingCount() { return pending.size(); }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", log != null);
+        m.put("pending", pending.size());
+        Map<String, Integer> byCollection = new LinkedHashMap<>(); // [ADDED] 컬렉션별 대기 깊이
+        for (Entry e : pending.values()) byCollection.merge(e.collection, 1, Integer::sum);
+        m.put("pendingByCollection", byCollection);
+        m.put("pendingBytes", pendingBytes);
+        m.put("lagMs", pending.isEmpty() ? 0 : System.currentTimeMillis() - pending.values().iterator().next().spooledAt);
+        m.put("outage", System.currentTimeMillis() < outageUntil);
+        m.put("direct", direct.get());
+        m.put("spooled", spooled.get());
+        m.put("replayed", replayed.get());
+        m.put("replayPerSec", Math.round(replayPerSec));
+        m.put("replayFailures", replayFailures.get());
+        m.put("superseded", superseded.get());
+        m.put("cancelledLate", cancelledLate.get());
+        m.put("recovered", recovered.get());
+        m.put("bulkBatches", bulkBatches.get());
+        if (log != null) m.put("log", log.stats());
+        return m;
+    }
+
+    /** 시간 초과, 격벽 거절, 일시적 RPC 오류만 스풀 대상 */
+    private static boolean retryable(Exception e) {
+        Throwable c = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        if (c instanceof TimeoutException || c instanceof RejectedExecutionException) return true;
+        if (c instanceof ApiException) {
+            ApiException a = (ApiException) c;
+            return a.isRetryable() || RETRYABLE_CODES.contains(a.getStatusCode().getCode().name());
+        }
+        if (c instanceof BulkWriterException) {
+            return RETRYABLE_CODES.contains(((BulkWriterException) c).getStatus().getCode().name());
+        }
+        return c instanceof IOException;
+    }
+
+    // ===== 직렬화: collection\nid\nspooledAt\n{json} (Timestamp/정수는 태그로 보존) =====
+    // [MODIFIED] 접수 시각(epoch ms) 줄 추가, 이전 형식(collection\nid\n{json})도 읽음
+
+    /** [ADDED] 스풀 레코드 머리 + 문서 JSON */
+    private record Record(String collection, String id, long spooledAt, String json) {}
+
+    private static byte[] encode(String collection, String id, long spooledAt, Map<String, Object> doc) {
+        return (collection + "\n" + id + "\n" + spooledAt + "\n" + GSON.toJson(tag(doc))).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Record parse(byte[] bytes) {
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        int a = s.indexOf('\n'), b = s.indexOf('\n', a + 1);
+        if (s.startsWith("{", b + 1)) { // 이전 형식: 접수 시각 없음
+            return new Record(s.substring(0, a), s.substring(a + 1, b), System.currentTimeMillis(), s.substring(b + 1));
+        }
+        int c = s.indexOf('\n', b + 1);
+        return new Record(s.substring(0, a), s.substring(a + 1, b), Long.parseLong(s.substring(b + 1, c)), s.substring(c + 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> decode(byte[] bytes) {
+        Map<String, Object> raw = GSON.fromJson(parse(bytes).json(), new TypeToken<Map<String, Object>>() {}.getType());
+        return (Map<String, Object>) untag(raw);
+    }
+
+    private static Object tag(Object v) {
+        if (v instanceof Timestamp) {
+            Timestamp t = (Timestamp) v;
+            return Map.of("$ts", t.getSeconds() + "." + t.getNanos());
+        }
+        if (v instanceof Long || v instanceof Integer) return Map.of("$long", v.toString());
+        if (v instanceof Map) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            ((Map<?, ?>) v).forEach((k, x) -> m.put(String.valueOf(k), tag(x)));
+            return m;
+        }
+        if (v instanceof List) {
+            List<Object> l = new ArrayList<>();
+            for (Object x : (List<?>) v) l.add(tag(x));
+            return l;
+        }
+        return v;
+    }
+
+    private static Object untag(Object v) {
+        if (v instanceof Map) {
+            Map<?, ?> in = (Map<?, ?>) v;
+            if (in.size() == 1 && in.get("$ts") instanceof String) {
+                String[] p = ((String) in.get("$ts")).split("\\.");
+                return Timestamp.ofTimeSecondsAndNanos(Long.parseLong(p[0]), Integer.parseInt(p[1]));
+            }
+            if (in.size() == 1 && in.get("$long") instanceof String) return Long.parseLong((String) in.get("$long"));
+            Map<String, Object> m = new HashMap<>();
+            in.forEach((k, x) -> m.put(String.valueOf(k), untag(x)));
+            return m;
+        }
+        if (v instanceof List) {
+            List<Object> l = new ArrayList<>();
+            for (Object x : (List<?>) v) l.add(untag(x));
+            return l;
+        }
+        return v;
+    }
+}
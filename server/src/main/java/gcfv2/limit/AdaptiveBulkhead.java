@@ -0,0 +1,215 @@
+package gcfv2.limit;
+
+import gcfv2.Env;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 의존성(Firestore / Storage / LLM)별 격벽 + 적응형 동시 실행 한도 (AIMD)
+ * - 동시 실행 수가 limit 이상이면 대기열에서 기다리고, 대기열이 차거나 대기 시간을 넘기면 거절
+ * - 완료마다 지연을 측정: 기준 지연(baseline)의 tolerance배를 넘거나 실패면 limit × 0.8 (쿨다운 내 1회),
+ *   아니면 limit += 1/limit (포화 상태일 때만)
+ * - call(): 블로킹 작업용 (Firestore get(), GCS 서명 등), callAsync(): CompletableFuture 작업용 (LLM)
+ * - 취소된 비동기 작업(헤지 패자 등)은 permit만 반납하고 한도 조절에는 반영하지 않음
+ * - 설정: BULKHEAD_{NAME}_INIT / _MIN / _MAX / _QUEUE / _QUEUE_MS / _TOLERANCE
+ */
+public final class AdaptiveBulkhead {
+
+    private static final double DECREASE = 0.8;
+    private static final double MIN_SLOW_MS = 20;
+
+    private final String name;
+    private final int minLimit, maxLimit, maxQueue;
+    private final long queueTimeoutMs;
+    private final double tolerance;
+
+    private double limit;
+    private int inFlight = 0;
+    private int blockingWaiters = 0;
+    private final ArrayDeque<Runnable> asyncQueue = new ArrayDeque<>();
+    private double ewmaMs = -1, baselineMs = -1;
+    private long lastDecrease = 0;
+    private long completed = 0, errors = 0, rejected = 0, slow = 0;
+
+    public AdaptiveBulkhead(String name, int initLimit, int minLimit, int maxLimit,
+                            int maxQueue, long queueTimeoutMs, double tolerance) {
+        String p = "BULKHEAD_" + name.toUpperCase() + "_";
+        this.name = name;
+        this.minLimit = Env.getInt(p + "MIN", minLimit);
+        this.maxLimit = Env.getInt(p + "MAX", maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, Env.getInt(p + "INIT", initLimit)));
+        this.maxQueue = Env.getInt(p + "QUEUE", maxQueue);
+        this.queueTimeoutMs = Env.getInt(p + "QUEUE_MS", (int) queueTimeoutMs);
+        this.tolerance = Env.getDouble(p + "TOLERANCE", tolerance);
+    }
+
+    /** 블로킹 작업 실행 (permit 대기 → 실행 → 지연 기록) */
+    public <T> T call(Callable<T> task) throws Exception {
+        acquireBlocking();
+        long t0 = System.nanoTime();
+        boolean ok = false;
+        try {
+            T r = task.call();
+            ok = true;
+            return r;
+        } finally {
+            release(System.nanoTime() - t0, ok, true);
+        }
+    }
+
+    /** 체크 예외 없는 블로킹 작업용 */
+    public <T> T run(Supplier<T> task) {
+        try {
+            return call(task::get);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> task) {
+        return callAsync(task, r -> false);
+    }
+
+    /** 비동기 작업 실행, isFailure: 정상 완료지만 실패로 칠 결과(예: 429/5xx 응답) */
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> task, Predicate<T> isFailure) {
+        CompletableFuture<T> out = new CompletableFuture<>();
+        Runnable start = () -> {
+            long t0 = System.nanoTime();
+            CompletableFuture<T> f;
+            try {
+                f = task.get();
+            } catch (Throwable e) {
+                f = CompletableFuture.failedFuture(e);
+            }
+            f.whenComplete((v, e) -> {
+                boolean cancelled = e instanceof CancellationException
+                        || (e instanceof CompletionException && e.getCause() instanceof CancellationException);
+                release(System.nanoTime() - t0, e == null && !isFailure.test(v), !cancelled);
+                if (e != null) out.completeExceptionally(e);
+                else out.complete(v);
+            });
+        };
+
+        boolean runNow = false;
+        synchronized (this) {
+            if (inFlight < (int) limit && asyncQueue.isEmpty()) {
+                inFlight++;
+                runNow = true;
+            } else if (asyncQueue.size() >= maxQueue) {
+                rejected++;
+            } else {
+                asyncQueue.addLast(start);
+                CompletableFuture.delayedExecutor(queueTimeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+                    boolean removed;
+                    synchronized (this) {
+                        removed = asyncQueue.remove(start);
+                        if (removed) rejected++;
+                    }
+                    if (removed) out.completeExceptionally(rejection("queue timeout"));
+                });
+                return out;
+            }
+        }
+        if (runNow) start.run();
+        else out.completeExceptionally(rejection("queue full"));
+        return out;
+    }
+
+    private synchronized void acquireBlocking() throws InterruptedException {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return;
+        }
+        if (blockingWaiters >= maxQueue) {
+            rejected++;
+            throw rejection("queue full");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        blockingWaiters++;
+        try {
+            while (inFlight >= (int) limit) {
+                long remain = deadline - System.nanoTime();
+                if (remain <= 0) {
+                    rejected++;
+                    throw rejection("queue timeout");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remain);
+            }
+            inFlight++;
+        } finally {
+            blockingWaiters--;
+        }
+    }
+
+    private void release(long latencyNanos, boolean ok, boolean measure) {
+        List<Runnable> toStart = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            if (measure) {
+                completed++;
+                if (!ok) errors++;
+                adjust(latencyNanos / 1_000_000.0, ok);
+            }
+            while (inFlight < (int) limit && !asyncQueue.isEmpty()) {
+                inFlight++;
+                toStart.add(asyncQueue.pollFirst());
+            }
+            notifyAll();
+        }
+        for (Runnable r : toStart) r.run();
+    }
+
+    /** AIMD: 느리거나 실패 → 곱셈 감소, 포화 상태에서 정상 → 덧셈 증가 */
+    private void adjust(double ms, boolean ok) {
+        ewmaMs = ewmaMs < 0 ? ms : ewmaMs * 0.8 + ms * 0.2;
+        if (baselineMs < 0 || ms < baselineMs) baselineMs = ms;
+        else baselineMs += (ms - baselineMs) * 0.01; // 환경 변화에 천천히 따라감
+
+        boolean isSlow = ewmaMs > MIN_SLOW_MS && ewmaMs > baselineMs * tolerance;
+        if (isSlow) slow++;
+        long now = System.nanoTime();
+        if (!ok || isSlow) {
+            long cooldown = TimeUnit.MILLISECONDS.toNanos((long) Math.max(100, ewmaMs));
+            if (now - lastDecrease > cooldown) {
+                limit = Math.max(minLimit, limit * DECREASE);
+                lastDecrease = now;
+            }
+        } else if (inFlight + 1 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private RejectedExecutionException rejection(String why) {
+        return new RejectedExecutionException("bulkhead " + name + " " + why + " (limit=" + (int) limit + ")");
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("limit", Math.round(limit * 10) / 10.0);
+        m.put("inFlight", inFlight);
+        m.put("queued", asyncQueue.size() + blockingWaiters);
+        m.put("rejected", rejected);
+        m.put("completed", completed);
+        m.put("errors", errors);
+        m.put("slow", slow);
+        m.put("ewmaMs", Math.round(ewmaMs * 10) / 10.0);
+        m.put("baselineMs", Math.round(baselineMs * 10) / 10.0);
+        return m;
+    }
+
+    public String name() { return name; }
+}
@@ -0,0 +1,27 @@
+package gcfv2.limit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 의존성별 격벽 인스턴스 (JVM 전역)
+ * - FIRESTORE: 문서 쓰기/조회 / STORAGE: GCS 서명·읽기·쓰기 / LLM: OpenAI 호출
+ * - 한 의존성이 느려져도 다른 의존성의 실행 슬롯을 잠식하지 않음
+ */
+public final class Bulkheads {
+
+    private Bulkheads() {}
+
+    //                                                   name       init min max  queue queueMs tolerance
+    public static final AdaptiveBulkhead FIRESTORE = new AdaptiveBulkhead("firestore", 32, 4, 128, 256, 5_000, 3.0);
+    public static final AdaptiveBulkhead STORAGE   = new AdaptiveBulkhead("storage",   16, 2,  64, 128, 5_000, 3.0);
+    public static final AdaptiveBulkhead LLM       = new AdaptiveBulkhead("llm",       16, 2,  64, 256, 30_000, 2.5);
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (AdaptiveBulkhead b : new AdaptiveBulkhead[]{ FIRESTORE, STORAGE, LLM }) {
+            m.put(b.name(), b.stats());
+        }
+        return m;
+    }
+}
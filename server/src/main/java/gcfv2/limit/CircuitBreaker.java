@@ -0,0 +1,117 @@
+package gcfv2.limit;
+
+import gcfv2.Env;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 엔드포인트별 서킷 브레이커 (최근 N회 결과 기반)
+ * - CLOSED: 최근 window회 중 실패율이 failureRate 이상(최소 minCalls회)이면 OPEN
+ * - OPEN: openMs 동안 즉시 거절 (업스트림이 불안정할 때 기다리지 않고 바로 실패)
+ * - HALF_OPEN: 시험 호출 probes회만 통과, 모두 성공하면 CLOSED / 하나라도 실패하면 다시 OPEN
+ * - 설정: {PREFIX}_WINDOW / _MIN_CALLS / _FAILURE_RATE / _OPEN_MS / _PROBES
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int window, minCalls, probes;
+    private final double failureRate;
+    private final long openNanos;
+
+    private final boolean[] outcomes; // true = 실패
+    private int pos = 0, count = 0, failures = 0;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private int probesInFlight = 0, probeSuccesses = 0;
+    private long rejected = 0, opened = 0;
+
+    public CircuitBreaker(String name, String envPrefix) {
+        this(name, Env.getInt(envPrefix + "_WINDOW", 20), Env.getInt(envPrefix + "_MIN_CALLS", 10),
+                Env.getDouble(envPrefix + "_FAILURE_RATE", 0.5), Env.getInt(envPrefix + "_OPEN_MS", 30_000),
+                Env.getInt(envPrefix + "_PROBES", 2));
+    }
+
+    /** [ADDED] 설정값 직접 지정 (테스트 등) */
+    public CircuitBreaker(String name, int window, int minCalls, double failureRate, long openMs, int probes) {
+        this.name = name;
+        this.window = Math.max(1, window);
+        this.minCalls = minCalls;
+        this.failureRate = failureRate;
+        this.openNanos = openMs * 1_000_000L;
+        this.probes = Math.max(1, probes);
+        this.outcomes = new boolean[this.window];
+    }
+
+    /** 호출 허용 여부 (false면 호출하지 말고 즉시 실패 처리) */
+    public synchronized boolean allow() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                rejected++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + probeSuccesses >= probes) {
+                rejected++;
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    /** allow() 후 호출 결과 기록 */
+    public synchronized void record(boolean success) {
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight > 0) probesInFlight--;
+            if (!success) {
+                trip();
+            } else if (++probeSuccesses >= probes) {
+                state = State.CLOSED;
+                pos = count = failures = 0;
+                System.out.println("[CB] " + name + " closed");
+            }
+            return;
+        }
+        if (state == State.OPEN) return; // OPEN 전에 나간 호출의 늦은 결과
+        if (count == window) {
+            if (outcomes[pos]) failures--;
+        } else {
+            count++;
+        }
+        outcomes[pos] = !success;
+        if (!success) failures++;
+        pos = (pos + 1) % window;
+        if (count >= minCalls && failures >= failureRate * count) trip();
+    }
+
+    /** allow() 후 결과를 판정하지 않고 끝난 경우 (취소 등) */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && probesInFlight > 0) probesInFlight--;
+    }
+
+    private void trip() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        opened++;
+        System.err.println("[CB] " + name + " opened (failures=" + failures + "/" + count + ")");
+    }
+
+    public synchronized State state() { return state; }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("state", state.name());
+        m.put("failures", failures);
+        m.put("window", count);
+        m.put("opened", opened);
+        m.put("rejected", rejected);
+        return m;
+    }
+}
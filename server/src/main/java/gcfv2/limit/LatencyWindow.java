@@ -0,0 +1,37 @@
+package gcfv2.limit;
+
+import java.util.Arrays;
+
+/**
+ * 최근 N개 지연(ms) 표본 링 버퍼 + 백분위 계산
+ * - 헤지 지연(p95) 산정용, 표본 수가 작아 조회 시 복사 후 정렬
+ */
+public final class LatencyWindow {
+
+    private final long[] samples;
+    private int pos = 0, count = 0;
+
+    public LatencyWindow(int size) {
+        this.samples = new long[Math.max(1, size)];
+    }
+
+    public synchronized void record(long ms) {
+        samples[pos] = ms;
+        pos = (pos + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    public synchronized int count() { return count; }
+
+    /** p(0~100) 백분위 (표본 없으면 -1) */
+    public long percentile(double p) {
+        long[] copy;
+        synchronized (this) {
+            if (count == 0) return -1;
+            copy = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(copy);
+        int idx = (int) Math.ceil(p / 100.0 * copy.length) - 1;
+        return copy[Math.max(0, Math.min(copy.length - 1, idx))];
+    }
+}
@@ -0,0 +1,156 @@
+package gcfv2.media;
+
+import com.google.cloud.storage.Blob;
+import gcfv2.Hashes;
+import gcfv2.gcs.GcsUrlUtil;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 이미지 프록시용 로컬 디스크 LRU 캐시
+ * - 키: GCS 객체 이름 / 파일명: 키의 SHA-256
+ * - 미스 시 객체당 한 번만 GCS에서 내려받음 (동시 요청은 같은 Future 공유)
+ * - 전체 크기가 maxBytes를 넘으면 가장 오래 안 쓴 항목부터 삭제
+ * - 항목별 파일은 최초 서빙 시 메모리 매핑 후 재사용 (삭제돼도 매핑은 유효)
+ * - [MODIFIED] 시작 시 정리는 이 캐시가 만든 파일(SHA-256 이름, fill-*.tmp)만 삭제 (디렉터리를 잘못 지정해도 다른 파일 보존)
+ */
+public final class ImageDiskCache {
+
+    /** 캐시된 객체 1개 */
+    public static final class Entry {
+        public final Path file;
+        public final long size;
+        public final String etag;
+        public final String contentType;
+        private volatile MappedByteBuffer mapped;
+
+        Entry(Path file, long size, String etag, String contentType) {
+            this.file = file;
+            this.size = size;
+            this.etag = etag;
+            this.contentType = contentType;
+        }
+
+        /** 읽기 전용 매핑 (요청마다 duplicate()해서 사용) */
+        public MappedByteBuffer mapped() throws IOException {
+            MappedByteBuffer m = mapped;
+            if (m == null) {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                mapped = m;
+            }
+            return m;
+        }
+    }
+
+    /** 이 캐시가 만드는 파일 이름 (항목 / 채우는 중 임시 파일) */
+    private static final Pattern OWN_FILE = Pattern.compile("[0-9a-f]{64}|fill-\\d+\\.tmp");
+
+    private final Path dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<>(256, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> filling = new ConcurrentHashMap<>();
+    private long totalBytes = 0;
+    private long hits = 0, misses = 0;
+
+    public ImageDiskCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        // 재시작 시 인덱스가 없으므로 이전 파일은 정리 ([MODIFIED] 이 캐시가 만든 파일만)
+        try (Stream<Path> old = Files.list(dir)) {
+            old.filter(p -> Files.isRegularFile(p) && OWN_FILE.matcher(p.getFileName().toString()).matches())
+                    .forEach(p -> { try { Files.deleteIfExists(p); } catch (IOException ignore) {} });
+        }
+    }
+
+    /** 캐시 조회, 없으면 GCS에서 채운 뒤 반환 */
+    public Entry getOrFetch(String bucket, String objectName) throws IOException {
+        String key = bucket + "/" + objectName;
+        synchronized (this) {
+            Entry e = lru.get(key);
+            if (e != null) { hits++; return e; }
+            misses++;
+        }
+
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> running = filling.putIfAbsent(key, mine);
+        if (running == null) {
+            try {
+                mine.complete(fill(key, bucket, objectName));
+            } catch (Exception e) {
+                mine.completeExceptionally(e);
+            } finally {
+                filling.remove(key, mine);
+            }
+            running = mine;
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            throw new IOException(c);
+        }
+    }
+
+    private Entry fill(String key, String bucket, String objectName) throws IOException {
+        Path target = dir.resolve(Hashes.sha256Hex(key));
+        Path tmp = Files.createTempFile(dir, "fill-", ".tmp");
+        try {
+            Blob blob = GcsUrlUtil.downloadTo(bucket, objectName, tmp);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            String etag = "\"" + (blob.getEtag() != null ? blob.getEtag() : String.valueOf(blob.getGeneration())) + "\"";
+            String ct = blob.getContentType() != null ? blob.getContentType() : "application/octet-stream";
+            Entry e = new Entry(target, Files.size(target), etag, ct);
+            put(key, e);
+            return e;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private synchronized void put(String key, Entry e) {
+        Entry prev = lru.put(key, e);
+        if (prev != null) totalBytes -= prev.size;
+        totalBytes += e.size;
+        Iterator<Map.Entry<String, Entry>> it = lru.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> oldest = it.next();
+            if (oldest.getValue() == e) continue;
+            it.remove();
+            totalBytes -= oldest.getValue().size;
+            try { Files.deleteIfExists(oldest.getValue().file); } catch (IOException ignore) {}
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("entries", lru.size());
+        m.put("bytes", totalBytes);
+        m.put("maxBytes", maxBytes);
+        m.put("hits", hits);
+        m.put("misses", misses);
+        return m;
+    }
+}
@@ -0,0 +1,221 @@
+package gcfv2.media;
+
+import gcfv2.Env;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.HttpOutput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * GET /img/{objectName} : GCS_BUCKET 객체를 디스크 LRU 캐시 경유로 서빙
+ * - 캐시 히트 시 GCS egress/서명 없이 메모리 매핑된 파일을 그대로 전송
+ * - ETag(If-None-Match → 304), 단일 Range(bytes=a-b → 206) 지원
+ *   [MODIFIED] 다중 범위/해석 불가 Range는 무시하고 전체 본문(200), 만족 불가 단일 범위만 416
+ * - photos/ 하위 객체만 허용
+ * - [ADDED] 서명된 경로만 서빙: /img/{objectName}?exp={epoch초}&sig={HMAC-SHA256(objectName\nexp)}
+ *   (인증 없는 오픈 프록시 방지, 만료/서명 불일치 → 403)
+ *   키는 IMG_URL_SECRET, 없으면 프로세스마다 임의 생성 (재시작/다른 인스턴스에서는 기존 URL 무효)
+ */
+public class ImageProxyServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /** parseRange: Range 무시하고 전체 본문 전송 */
+    static final long[] FULL = new long[0];
+
+    private static final int URL_TTL_SEC = Env.getInt("IMG_URL_TTL_SEC", 3600);
+    private static final byte[] URL_KEY = urlKey();
+
+    private final String bucket = System.getenv("GCS_BUCKET");
+    private final ImageDiskCache cache;
+
+    public ImageProxyServlet() throws IOException {
+        String dir = System.getenv().getOrDefault("IMG_CACHE_DIR", "/tmp/wave-img-cache");
+        long maxMb = Long.parseLong(System.getenv().getOrDefault("IMG_CACHE_MAX_MB", "512"));
+        this.cache = new ImageDiskCache(Path.of(dir), maxMb * 1024 * 1024);
+    }
+
+    public ImageDiskCache cache() { return cache; }
+
+    /** [ADDED] 클라이언트에 내려줄 서명된 프록시 경로 (기본 만료 IMG_URL_TTL_SEC) */
+    public static String signedPath(String objectName) {
+        return signedPath(objectName, URL_TTL_SEC);
+    }
+
+    public static String signedPath(String objectName, int ttlSec) {
+        long exp = System.currentTimeMillis() / 1000 + Math.max(1, ttlSec);
+        return "/img/" + objectName + "?exp=" + exp + "&sig=" + sign(objectName, exp);
+    }
+
+    /** 서명/만료 확인 */
+    static boolean verify(String objectName, String exp, String sig, long nowSec) {
+        if (exp == null || sig == null) return false;
+        long e;
+        try { e = Long.parseLong(exp); } catch (NumberFormatException nfe) { return false; }
+        if (e < nowSec) return false;
+        return MessageDigest.isEqual(sign(objectName, e).getBytes(StandardCharsets.US_ASCII),
+                sig.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String sign(String objectName, long exp) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(URL_KEY, "HmacSHA256"));
+            byte[] h = mac.doFinal((objectName + "\n" + exp).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(h);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] urlKey() {
+        String secret = System.getenv("IMG_URL_SECRET");
+        if (secret != null && !secret.isBlank()) return secret.getBytes(StandardCharsets.UTF_8);
+        System.out.println("[IMG] IMG_URL_SECRET 없음 → 프로세스 임의 키 사용 (재시작 시 /img/ URL 무효)");
+        byte[] k = new byte[32];
+        new SecureRandom().nextBytes(k);
+        return k;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String objectName = req.getPathInfo() == null ? "" : req.getPathInfo().replaceFirst("^/", "");
+        if (bucket == null || bucket.isBlank()) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "GCS_BUCKET 환경변수 누락");
+            return;
+        }
+        if (!objectName.startsWith("photos/") || objectName.contains("..")) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!verify(objectName, req.getParameter("exp"), req.getParameter("sig"), System.currentTimeMillis() / 1000)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        ImageDiskCache.Entry e;
+        try {
+            e = cache.getOrFetch(bucket, objectName);
+        } catch (IllegalArgumentException notFound) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        } catch (Exception ex) {
+            System.err.println("[IMG] fetch failed " + objectName + ": " + ex.getMessage());
+            resp.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+            return;
+        }
+
+        resp.setHeader("ETag", e.etag);
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("Cache-Control", "private, max-age=86400");
+        resp.setContentType(e.contentType);
+
+        String inm = req.getHeader("If-None-Match");
+        if (inm != null && (inm.equals(e.etag) || inm.equals("*"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0, end = e.size - 1;
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(e.etag))) {
+            long[] r = parseRange(range, e.size);
+            if (r == FULL) {
+                resp.setStatus(HttpServletResponse.SC_OK);
+            } else if (r == null) {
+                resp.setHeader("Content-Range", "bytes */" + e.size);
+                resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else {
+                start = r[0];
+                end = r[1];
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + e.size);
+            }
+        } else {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        long len = end - start + 1;
+        resp.setContentLengthLong(len);
+        if ("HEAD".equals(req.getMethod())) return;
+
+        send(resp.getOutputStream(), e, start, len);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doGet(req, resp);
+    }
+
+    /** Jetty면 매핑 버퍼를 직접 전송, 아니면 FileChannel.transferTo */
+    private static void send(ServletOutputStream out, ImageDiskCache.Entry e, long start, long len) throws IOException {
+        try {
+            if (out instanceof HttpOutput && e.size <= Integer.MAX_VALUE) {
+                ByteBuffer buf = e.mapped().duplicate();
+                buf.position((int) start).limit((int) (start + len));
+                ((HttpOutput) out).sendContent(buf.slice());
+                return;
+            }
+            try (FileChannel ch = FileChannel.open(e.file, StandardOpenOption.READ)) {
+                var target = Channels.newChannel(out);
+                long pos = start, remaining = len;
+                while (remaining > 0) {
+                    long n = ch.transferTo(pos, remaining, target);
+                    if (n <= 0) break;
+                    pos += n;
+                    remaining -= n;
+                }
+            }
+        } catch (NoSuchFileException evicted) {
+            throw new IOException("캐시 항목이 전송 전에 제거됨: " + e.file, evicted);
+        }
+    }
+
+    /**
+     * "bytes=a-b" | "bytes=a-" | "bytes=-n" → {start, end}
+     * - 만족 불가 단일 범위(시작이 크기 이상, bytes=-0) → null (416)
+     * - [MODIFIED] 다중 범위, bytes 외 단위, 형식 오류 → FULL (Range 무시, 200)
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.contains(",")) return FULL;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return FULL;
+        try {
+            String a = spec.substring(0, dash).trim(), b = spec.substring(dash + 1).trim();
+            long start, end;
+            if (a.isEmpty()) {
+                long suffix = Long.parseLong(b);
+                if (suffix < 0) return FULL;
+                if (suffix == 0 || size == 0) return null;
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(a);
+                long last = b.isEmpty() ? Long.MAX_VALUE : Long.parseLong(b);
+                if (start < 0 || last < start) return FULL;
+                end = Math.min(last, size - 1);
+            }
+            if (start >= size) return null;
+            return new long[]{ start, end };
+        } catch (NumberFormatException nfe) {
+            return FULL;
+        }
+    }
+}
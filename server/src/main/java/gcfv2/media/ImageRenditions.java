@@ -0,0 +1,83 @@
+package gcfv2.media;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * 이미지 디코드/축소/JPEG 인코드 유틸 (순수 CPU 작업)
+ * - 축소는 1/2씩 단계적으로 줄인 뒤 마지막에 목표 크기로 맞춤 (품질/속도 절충)
+ * - 알파 채널은 흰 배경에 합성 (JPEG는 알파 미지원)
+ */
+public final class ImageRenditions {
+
+    private ImageRenditions() {}
+
+    public static BufferedImage decode(byte[] bytes) throws IOException {
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (img == null) throw new IOException("지원하지 않는 이미지 형식");
+        return img;
+    }
+
+    /** 긴 변이 maxEdge 이하가 되도록 축소 (이미 작으면 RGB 변환만) */
+    public static BufferedImage scaleToMaxEdge(BufferedImage src, int maxEdge) {
+        int w = src.getWidth(), h = src.getHeight();
+        double scale = Math.min(1.0, (double) maxEdge / Math.max(w, h));
+        int tw = Math.max(1, (int) Math.round(w * scale));
+        int th = Math.max(1, (int) Math.round(h * scale));
+
+        BufferedImage cur = src;
+        int cw = w, ch = h;
+        while (cw / 2 >= tw && ch / 2 >= th) {
+            cw /= 2;
+            ch /= 2;
+            cur = draw(cur, cw, ch);
+        }
+        if (cw != tw || ch != th || cur.getType() != BufferedImage.TYPE_INT_RGB) {
+            cur = draw(cur, tw, th);
+        }
+        return cur;
+    }
+
+    public static byte[] encodeJpeg(BufferedImage img, float quality) throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!it.hasNext()) throw new IOException("JPEG writer 없음");
+        ImageWriter writer = it.next();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * 1024);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bos)) {
+            writer.setOutput(out);
+            ImageWriteParam p = writer.getDefaultWriteParam();
+            p.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(img, null, null), p);
+        } finally {
+            writer.dispose();
+        }
+        return bos.toByteArray();
+    }
+
+    private static BufferedImage draw(BufferedImage src, int w, int h) {
+        BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+}
@@ -0,0 +1,105 @@
+package gcfv2.media;
+
+import gcfv2.Env;
+import gcfv2.gcs.GcsUrlUtil;
+
+import java.awt.image.BufferedImage;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 비전 분석용 인라인 이미지 (base64 data URL)
+ * - GCS 객체를 한 번 읽어 디코드 → 긴 변 AI_IMAGE_MAX_EDGE 로 축소 → JPEG(AI_IMAGE_JPEG_QUALITY)
+ * - 모델 제공자가 서명 URL로 원본을 다시 내려받는 시간을 없애고 페이로드를 줄임
+ * - 디코드/인코드는 전용 CPU 풀에서 수행
+ * - [MODIFIED] 풀 대기열은 AI_IMAGE_QUEUE(기본 스레드 수 × 4)로 제한, 가득 차면 즉시 실패 → 호출측은 서명 URL로 대체
+ */
+public final class InlineImages {
+
+    public static final int MAX_EDGE = Env.getInt("AI_IMAGE_MAX_EDGE", 1024);
+    public static final float QUALITY = Env.getFloat("AI_IMAGE_JPEG_QUALITY", 0.75f);
+
+    private static final ThreadPoolExecutor CPU;
+    private static final AtomicLong REJECTED = new AtomicLong();
+    static {
+        int threads = Env.getInt("AI_IMAGE_THREADS", Math.max(1, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger seq = new AtomicInteger();
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Env.getInt("AI_IMAGE_QUEUE", threads * 4))),
+                r -> {
+                    Thread t = new Thread(r, "inline-image-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ex.allowCoreThreadTimeOut(true);
+        CPU = ex;
+    }
+
+    private InlineImages() {}
+
+    /** 인코딩 결과 + 측정값 */
+    public static final class Inline {
+        public final String dataUrl;
+        public final int bytes;
+        public final int width, height;
+        public final long fetchMs, encodeMs;
+
+        Inline(String dataUrl, int bytes, int width, int height, long fetchMs, long encodeMs) {
+            this.dataUrl = dataUrl;
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.fetchMs = fetchMs;
+            this.encodeMs = encodeMs;
+        }
+    }
+
+    /** 대기열이 가득 차면 RejectedExecutionException으로 실패한 future */
+    public static CompletableFuture<Inline> toDataUrl(String gcsUri) {
+        try {
+            return encodeAsync(gcsUri);
+        } catch (RejectedExecutionException e) {
+            REJECTED.incrementAndGet();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("인라인 이미지 대기열 포화"));
+        }
+    }
+
+    private static CompletableFuture<Inline> encodeAsync(String gcsUri) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                long t0 = System.nanoTime();
+                String[] bo = GcsUrlUtil.splitGsUri(gcsUri);
+                byte[] original = GcsUrlUtil.readBytes(bo[0], bo[1]);
+                long t1 = System.nanoTime();
+
+                BufferedImage img = ImageRenditions.scaleToMaxEdge(ImageRenditions.decode(original), MAX_EDGE);
+                byte[] jpeg = ImageRenditions.encodeJpeg(img, QUALITY);
+                String dataUrl = "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(jpeg);
+                long t2 = System.nanoTime();
+
+                return new Inline(dataUrl, jpeg.length, img.getWidth(), img.getHeight(),
+                        (t1 - t0) / 1_000_000, (t2 - t1) / 1_000_000);
+            } catch (Exception e) {
+                throw new IllegalStateException("인라인 이미지 생성 실패: " + e.getMessage(), e);
+            }
+        }, CPU);
+    }
+
+    public static Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("threads", CPU.getMaximumPoolSize());
+        m.put("active", CPU.getActiveCount());
+        m.put("queued", CPU.getQueue().size());
+        m.put("queueCapacity", CPU.getQueue().size() + CPU.getQueue().remainingCapacity());
+        m.put("rejected", REJECTED.get());
+        return m;
+    }
+}
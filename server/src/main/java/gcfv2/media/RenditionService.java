@@ -0,0 +1,130 @@
+package gcfv2.media;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import gcfv2.Env;
+import gcfv2.fs.FirestoreClient;
+import gcfv2.gcs.GcsUrlUtil;
+import gcfv2.limit.Bulkheads;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cap 저장 후 비동기 렌디션(썸네일/중간 해상도) 생성
+ * - 원본을 한 번만 디코드 → medium 생성 → medium에서 thumb 생성
+ * - 결과는 원본 옆에 {이름}_thumb.jpg / {이름}_medium.jpg 로 저장
+ * - Cap 문서에 thumbUri / mediumUri 기록 (FindCaps가 썸네일 URL 반환에 사용)
+ * - CPU 풀은 코어 수만큼, 대기열이 차면 해당 렌디션은 건너뜀 (원본은 항상 사용 가능)
+ * - [ADDED] 중복 Cap은 새로 만들지 않고 원본 Cap 문서에 렌디션이 기록된 뒤 같은 URI를 복사
+ *   (RENDITION_COPY_RETRY_MS(3000) 간격 RENDITION_COPY_TRIES(10)회 확인, 끝내 없으면 조회측이 원본 사용)
+ */
+public final class RenditionService {
+
+    private static final int THUMB_EDGE  = Env.getInt("RENDITION_THUMB_EDGE", 320);
+    private static final int MEDIUM_EDGE = Env.getInt("RENDITION_MEDIUM_EDGE", 1280);
+    private static final float QUALITY   = Env.getFloat("RENDITION_JPEG_QUALITY", 0.8f);
+    private static final int COPY_TRIES = Env.getInt("RENDITION_COPY_TRIES", 10);
+    private static final long COPY_RETRY_MS = Env.getInt("RENDITION_COPY_RETRY_MS", 3000);
+
+    private static final RenditionService INSTANCE = new RenditionService();
+    public static RenditionService get() { return INSTANCE; }
+
+    private final ThreadPoolExecutor cpu;
+    private final ScheduledExecutorService copier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rendition-copy");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private RenditionService() {
+        int threads = Env.getInt("RENDITION_THREADS", Runtime.getRuntime().availableProcessors());
+        AtomicInteger seq = new AtomicInteger();
+        cpu = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Env.getInt("RENDITION_QUEUE", 64)),
+                r -> {
+                    Thread t = new Thread(r, "rendition-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        cpu.allowCoreThreadTimeOut(true);
+    }
+
+    /** Cap 저장 직후 호출 (비동기, 실패해도 저장 흐름에 영향 없음) */
+    public void submit(String capId, String gcsUri) {
+        try {
+            cpu.execute(() -> render(capId, gcsUri));
+        } catch (RejectedExecutionException e) {
+            System.err.println("[RENDITION] queue full; skip capId=" + capId);
+        }
+    }
+
+    private void render(String capId, String gcsUri) {
+        long t0 = System.nanoTime();
+        try {
+            String[] bo = GcsUrlUtil.splitGsUri(gcsUri);
+            BufferedImage original = ImageRenditions.decode(GcsUrlUtil.readBytes(bo[0], bo[1]));
+
+            BufferedImage medium = ImageRenditions.scaleToMaxEdge(original, MEDIUM_EDGE);
+            BufferedImage thumb  = ImageRenditions.scaleToMaxEdge(medium, THUMB_EDGE);
+
+            String mediumName = renditionName(bo[1], "medium");
+            String thumbName  = renditionName(bo[1], "thumb");
+            GcsUrlUtil.writeBytes(bo[0], mediumName, "image/jpeg", ImageRenditions.encodeJpeg(medium, QUALITY));
+            GcsUrlUtil.writeBytes(bo[0], thumbName,  "image/jpeg", ImageRenditions.encodeJpeg(thumb, QUALITY));
+
+            Map<String, Object> upd = new LinkedHashMap<>();
+            upd.put("mediumUri", "gs://" + bo[0] + "/" + mediumName);
+            upd.put("thumbUri",  "gs://" + bo[0] + "/" + thumbName);
+            Bulkheads.FIRESTORE.call(() -> FirestoreClient.get().collection("Cap").document(capId).update(upd).get());
+
+            System.out.println("[RENDITION] done capId=" + capId
+                    + " " + original.getWidth() + "x" + original.getHeight()
+                    + " in " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+        } catch (Exception e) {
+            System.err.println("[RENDITION] failed capId=" + capId + ": " + e.getMessage());
+        }
+    }
+
+    /** [ADDED] 중복 Cap 저장 직후 호출: 원본 Cap의 렌디션이 생기면 그 URI를 중복 Cap 문서에 복사 */
+    public void copyFrom(String capId, String originalCapId) {
+        copyFrom(capId, originalCapId, 0);
+    }
+
+    private void copyFrom(String capId, String originalCapId, int attempt) {
+        copier.schedule(() -> {
+            try {
+                DocumentSnapshot o = Bulkheads.FIRESTORE.call(
+                        () -> FirestoreClient.get().collection("Cap").document(originalCapId).get().get());
+                String medium = o.getString("mediumUri"), thumb = o.getString("thumbUri");
+                if (medium == null || thumb == null) { // 원본 렌디션 생성 전 (또는 실패)
+                    if (attempt + 1 < COPY_TRIES) copyFrom(capId, originalCapId, attempt + 1);
+                    else System.out.println("[RENDITION] original has none; dup uses original capId=" + capId);
+                    return;
+                }
+                Map<String, Object> upd = new LinkedHashMap<>();
+                upd.put("mediumUri", medium);
+                upd.put("thumbUri", thumb);
+                Bulkheads.FIRESTORE.call(() -> FirestoreClient.get().collection("Cap").document(capId).update(upd).get());
+            } catch (Exception e) { // 스풀된 중복 Cap 문서가 아직 없을 때 등
+                if (attempt + 1 < COPY_TRIES) copyFrom(capId, originalCapId, attempt + 1);
+                else System.err.println("[RENDITION] copy failed capId=" + capId + ": " + e.getMessage());
+            }
+        }, attempt == 0 ? 0 : COPY_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** photos/20250101/120000_1234.jpg → photos/20250101/120000_1234_thumb.jpg */
+    static String renditionName(String objectName, String suffix) {
+        int slash = objectName.lastIndexOf('/');
+        int dot = objectName.lastIndexOf('.');
+        String base = (dot > slash) ? objectName.substring(0, dot) : objectName;
+        return base + "_" + suffix + ".jpg";
+    }
+}
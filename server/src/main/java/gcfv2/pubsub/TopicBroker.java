@@ -0,0 +1,357 @@
+package gcfv2.pubsub;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import gcfv2.Env;
+import gcfv2.Operators;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * [ADDED] 프로세스 내 토픽 pub/sub 브로커 (WebSocket 세션 팬아웃)
+ * - 토픽은 '/' 계층: robot/{clientId}/ai, robot/{clientId}/stt, robot/{clientId}/telemetry,
+ *   [MODIFIED] robot/{clientId}/cap/new, robot/{clientId}/ai/new (ChangeFeed)
+ * - 구독 필터 와일드카드: '+' = 한 단계, '#' = 마지막에만, 그 아래 전체 (robot/+/ai, robot/#)
+ * - 토픽 트라이로 매칭 (발행 비용은 토픽 깊이 × 와일드카드 분기, 구독자 수와 무관하게 탐색)
+ * - 메시지는 발행 시 한 번만 문자열로 만들고({"Topic":..., 원래 필드...}) 모든 구독 세션에 같은 문자열을 비동기 전송
+ *   → 기존 메시지 형식(Type=CapAnalysis/SttResult/CapAdded...)을 그대로 유지, Topic 필드만 추가
+ * - 느린 구독자: 전송 대기가 BROKER_MAX_INFLIGHT(256) 넘으면 그 세션 몫은 버림 (dropped 집계)
+ * - WebSocket 메시지: Subscribe/Unsubscribe(Topics 배열, Unsubscribe는 생략 시 전체),
+ *   Publish(Topic, Payload) - 클라이언트는 자기 robot/{clientId}/ 아래에만 발행 가능
+ * - [ADDED] 구독도 자기 robot/{clientId}(/...) 아래만 (robot/+/..., # 같은 다른 로봇에 걸치는 필터는 거절),
+ *   운영자(Operators)만 범위 제한 없음. 서버 코드의 subscribe() 직접 호출은 제한 없음 (ChangeFeed 등이 범위를 정함)
+ * - [ADDED] ROBOT_ID_SECRET 설정 시 접속 id는 sig 파라미터(= hex HMAC-SHA256(secret, id))가 맞아야 인정
+ *   → 다른 로봇 id를 사칭해 그 토픽을 구독/발행할 수 없음 (미설정이면 id를 그대로 믿음, 내부망 전제)
+ */
+public final class TopicBroker {
+
+    private static final int MAX_INFLIGHT = Env.getInt("BROKER_MAX_INFLIGHT", 256);
+    private static final Gson GSON = new com.google.gson.GsonBuilder().disableHtmlEscaping().create();
+    private static final SecretKeySpec ID_SECRET = idSecret();
+
+    private static final TopicBroker INSTANCE = new TopicBroker();
+    public static TopicBroker get() { return INSTANCE; }
+
+    /** 구독 세션 1개 */
+    private static final class Subscriber {
+        final Session session;
+        final Set<String> filters = ConcurrentHashMap.newKeySet();
+        final AtomicInteger inflight = new AtomicInteger();
+        Subscriber(Session session) { this.session = session; }
+    }
+
+    /** 트라이 노드 (자식은 단계 문자열, '+'/'#' 포함) */
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        final Set<Subscriber> subs = ConcurrentHashMap.newKeySet();
+        boolean isEmpty() { return children.isEmpty() && subs.isEmpty(); }
+    }
+
+    private final Node root = new Node();
+    private final Map<Session, Subscriber> bySession = new ConcurrentHashMap<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong published = new AtomicLong(), delivered = new AtomicLong(),
+            dropped = new AtomicLong(), sendFailures = new AtomicLong();
+
+    TopicBroker() {} // 테스트는 인스턴스를 따로 만듦
+
+    // ===== WebSocket 메시지 =====
+
+    /** Subscribe/Unsubscribe/Publish 처리 → 응답 JSON (해당 Type이 아니면 null) */
+    public String handle(Session session, JsonObject msg) {
+        String type = msg.has("Type") ? msg.get("Type").getAsString() : "";
+        switch (type) {
+            case "Subscribe": {
+                List<String> topics = topicsOf(msg);
+                if (topics.isEmpty()) throw new IllegalArgumentException("필수 필드 누락: Topics");
+                String id = clientId(session);
+                boolean operator = Operators.isOperator(session);
+                for (String t : topics) checkSubscribe(t, id, operator); // [ADDED] 하나라도 범위 밖이면 전부 거절
+                for (String t : topics) subscribe(session, t);
+                return ack("SubscribeAck", session);
+            }
+            case "Unsubscribe": {
+                List<String> topics = topicsOf(msg);
+                if (topics.isEmpty()) unsubscribeAll(session);
+                else for (String t : topics) unsubscribe(session, t);
+                return ack("UnsubscribeAck", session);
+            }
+            case "Publish": {
+                String topic = msg.has("Topic") ? msg.get("Topic").getAsString() : "";
+                String id = clientId(session);
+                if (id == null || !topic.startsWith("robot/" + id + "/")) {
+                    throw new IllegalArgumentException("발행 가능 토픽은 robot/" + id + "/... 입니다: " + topic);
+                }
+                JsonElement payload = msg.get("Payload");
+                int n = publish(topic, payload != null && payload.isJsonObject() ? payload.toString() : msg.toString());
+                return "{\"Type\":\"PublishAck\",\"Topic\":" + GSON.toJson(topic) + ",\"Delivered\":" + n + "}";
+            }
+            default:
+                return null;
+        }
+    }
+
+    private String ack(String type, Session session) {
+        Subscriber s = bySession.get(session);
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("Type", type);
+        m.put("Topics", s == null ? List.of() : new ArrayList<>(s.filters));
+        return GSON.toJson(m);
+    }
+
+    private static List<String> topicsOf(JsonObject msg) {
+        List<String> out = new ArrayList<>();
+        if (msg.has("Topics") && msg.get("Topics").isJsonArray()) {
+            JsonArray arr = msg.getAsJsonArray("Topics");
+            for (JsonElement e : arr) out.add(e.getAsString().trim());
+        } else if (msg.has("Topic")) {
+            out.add(msg.get("Topic").getAsString().trim());
+        }
+        return out;
+    }
+
+    // ===== 구독 =====
+
+    /** [ADDED] 클라이언트 구독 범위: 자기 robot/{id}(/...) 아래만 (id 단계 와일드카드 불가), 운영자는 전체 */
+    static void checkSubscribe(String filter, String id, boolean operator) {
+        split(filter, true);
+        if (operator) return;
+        if (id == null) throw new IllegalArgumentException("구독하려면 접속 id가 필요합니다: " + filter);
+        String own = "robot/" + id;
+        if (!filter.equals(own) && !filter.startsWith(own + "/")) {
+            throw new IllegalArgumentException("구독 가능 토픽은 robot/" + id + "/... 입니다: " + filter);
+        }
+    }
+
+    public void subscribe(Session session, String filter) {
+        String[] parts = split(filter, true);
+        Subscriber s = bySession.computeIfAbsent(session, Subscriber::new);
+        synchronized (this) {
+            if (!s.filters.add(filter)) return;
+            Node n = root;
+            for (String p : parts) n = n.children.computeIfAbsent(p, k -> new Node());
+            n.subs.add(s);
+        }
+        fireChanged();
+    }
+
+    public void unsubscribe(Session session, String filter) {
+        Subscriber s = bySession.get(session);
+        if (s == null) return;
+        synchronized (this) {
+            if (!s.filters.remove(filter)) return;
+            remove(root, split(filter, true), 0, s);
+            if (s.filters.isEmpty()) bySession.remove(session);
+        }
+        fireChanged();
+    }
+
+    /** 세션 종료 시 */
+    public void unsubscribeAll(Session session) {
+        Subscriber s = bySession.remove(session);
+        if (s == null) return;
+        synchronized (this) {
+            for (String f : s.filters) remove(root, split(f, true), 0, s);
+            s.filters.clear();
+        }
+        fireChanged();
+    }
+
+    /** 빈 노드는 정리 */
+    private static void remove(Node n, String[] parts, int i, Subscriber s) {
+        if (i == parts.length) {
+            n.subs.remove(s);
+            return;
+        }
+        Node c = n.children.get(parts[i]);
+        if (c == null) return;
+        remove(c, parts, i + 1, s);
+        if (c.isEmpty()) n.children.remove(parts[i]);
+    }
+
+    /** 구독 변경 알림 (ChangeFeed 리스너 시작/중지 등) */
+    public void addSubscriptionListener(Runnable r) { listeners.add(r); }
+
+    private void fireChanged() {
+        for (Runnable r : listeners) {
+            try { r.run(); } catch (Exception e) { System.err.println("[BROKER] listener failed: " + e.getMessage()); }
+        }
+    }
+
+    /** 이 토픽으로 발행하면 받을 구독자가 있는지 */
+    public boolean hasSubscribers(String topic) {
+        return !match(topic).isEmpty();
+    }
+
+    /** [ADDED] 필터(와일드카드 가능)에 걸리는 토픽 중 하나라도 받을 구독자가 있는지 (robot/+/cap/new 등) */
+    public boolean hasSubscribersMatching(String filter) {
+        return anyMatch(root, split(filter, true), 0);
+    }
+
+    private static boolean anyMatch(Node n, String[] parts, int i) {
+        Node all = n.children.get("#");
+        if (all != null && !all.subs.isEmpty()) return true;
+        if (i == parts.length) return !n.subs.isEmpty();
+        String p = parts[i];
+        if (p.equals("#")) return anySub(n);
+        if (p.equals("+")) { // 이 단계의 어떤 값이든 (구독 쪽 '+' 포함)
+            for (Map.Entry<String, Node> e : n.children.entrySet()) {
+                if (!e.getKey().equals("#") && anyMatch(e.getValue(), parts, i + 1)) return true;
+            }
+            return false;
+        }
+        Node exact = n.children.get(p);
+        if (exact != null && anyMatch(exact, parts, i + 1)) return true;
+        Node one = n.children.get("+");
+        return one != null && anyMatch(one, parts, i + 1);
+    }
+
+    private static boolean anySub(Node n) {
+        if (!n.subs.isEmpty()) return true;
+        for (Node c : n.children.values()) if (anySub(c)) return true;
+        return false;
+    }
+
+    // ===== 발행 =====
+
+    /**
+     * JSON 객체 문자열 payload를 토픽으로 발행 → 전송한 세션 수
+     * payload에 Topic 필드를 붙인 문자열을 한 번만 만들어 모든 구독자에 그대로 전송
+     */
+    public int publish(String topic, String payloadJson) {
+        Set<Subscriber> targets = match(topic);
+        published.incrementAndGet();
+        if (targets.isEmpty()) return 0;
+        String body = payloadJson.trim();
+        String frame = "{\"Topic\":" + GSON.toJson(topic)
+                + (body.length() > 2 && body.startsWith("{") ? "," + body.substring(1) : "}");
+        int n = 0;
+        for (Subscriber s : targets) {
+            if (!s.session.isOpen()) {
+                unsubscribeAll(s.session);
+                continue;
+            }
+            if (s.inflight.incrementAndGet() > MAX_INFLIGHT) {
+                s.inflight.decrementAndGet();
+                dropped.incrementAndGet();
+                continue;
+            }
+            s.session.getRemote().sendString(frame, new WriteCallback() {
+                @Override
+                public void writeSuccess() { s.inflight.decrementAndGet(); }
+                @Override
+                public void writeFailed(Throwable x) {
+                    s.inflight.decrementAndGet();
+                    sendFailures.incrementAndGet();
+                }
+            });
+            n++;
+        }
+        delivered.addAndGet(n);
+        return n;
+    }
+
+    /** 트라이 매칭 (같은 세션이 여러 필터로 걸려도 1번만) */
+    private Set<Subscriber> match(String topic) {
+        String[] parts = split(topic, false);
+        Set<Subscriber> out = Collections.newSetFromMap(new IdentityHashMap<>());
+        match(root, parts, 0, out);
+        return out;
+    }
+
+    private static void match(Node n, String[] parts, int i, Set<Subscriber> out) {
+        Node all = n.children.get("#");
+        if (all != null) out.addAll(all.subs); // '#'은 부모 단계 자체도 포함 (robot/# ⊃ robot)
+        if (i == parts.length) {
+            out.addAll(n.subs);
+            return;
+        }
+        Node exact = n.children.get(parts[i]);
+        if (exact != null) match(exact, parts, i + 1, out);
+        Node one = n.children.get("+");
+        if (one != null) match(one, parts, i + 1, out);
+    }
+
+    /** 토픽/필터 검증 후 단계 분리 (발행 토픽에는 와일드카드 불가) */
+    private static String[] split(String topic, boolean filter) {
+        if (topic == null || topic.isBlank()) throw new IllegalArgumentException("토픽이 비어 있음");
+        String[] parts = topic.split("/", -1);
+        for (int i = 0; i < parts.length; i++) {
+            String p = parts[i];
+            if (p.isEmpty()) throw new IllegalArgumentException("빈 토픽 단계: " + topic);
+            boolean wild = p.equals("+") || p.equals("#");
+            if (!filter && (wild || p.contains("+") || p.contains("#"))) {
+                throw new IllegalArgumentException("발행 토픽에 와일드카드 불가: " + topic);
+            }
+            if (filter && !wild && (p.contains("+") || p.contains("#"))) {
+                throw new IllegalArgumentException("와일드카드는 단계 전체여야 함: " + topic);
+            }
+            if (filter && p.equals("#") && i != parts.length - 1) {
+                throw new IllegalArgumentException("'#'은 마지막 단계에만: " + topic);
+            }
+        }
+        return parts;
+    }
+
+    /** 접속 URL의 id 파라미터 (없거나 토픽 단계로 쓸 수 없으면 null, [ADDED] 서명 검사 시 sig가 틀려도 null) */
+    public static String clientId(Session s) {
+        if (s == null) return null;
+        Map<String, List<String>> params = s.getUpgradeRequest().getParameterMap();
+        String id = params.getOrDefault("id", List.of("unknown")).get(0);
+        if (id == null || id.isBlank() || "unknown".equals(id)) return null;
+        if (id.contains("/") || id.contains("+") || id.contains("#")) return null;
+        return ID_SECRET == null || signed(id, params.getOrDefault("sig", List.of("")).get(0)) ? id : null;
+    }
+
+    /** [ADDED] sig = hex HMAC-SHA256(ROBOT_ID_SECRET, id) */
+    static boolean signed(String id, String sig) {
+        if (sig == null || sig.isBlank()) return false;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(ID_SECRET);
+            byte[] want = HexFormat.of().formatHex(mac.doFinal(id.getBytes(StandardCharsets.UTF_8)))
+                    .getBytes(StandardCharsets.UTF_8);
+            return MessageDigest.isEqual(want, sig.trim().toLowerCase().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            System.err.println("[BROKER] id signature check failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static SecretKeySpec idSecret() {
+        String s = System.getenv("ROBOT_ID_SECRET");
+        if (s == null || s.isBlank()) return null;
+        return new SecretKeySpec(s.trim().getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("sessions", bySession.size());
+        m.put("filters", bySession.values().stream().mapToInt(s -> s.filters.size()).sum());
+        m.put("published", published.get());
+        m.put("delivered", delivered.get());
+        m.put("dropped", dropped.get());
+        m.put("sendFailures", sendFailures.get());
+        m.put("maxInflight", MAX_INFLIGHT);
+        return m;
+    }
+}
@@ -0,0 +1,359 @@
+package gcfv2.queue;
+
+import gcfv2.Env;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * [ADDED] 내구성 AI 작업 큐 (SegmentLog 기반, 인스턴스 재시작/배포 후에도 미완료 작업 재실행)
+ * - enqueue: JOB 레코드를 mmap 로그에 추가 후 작업자에게 전달 (로그 추가는 메모리 복사라 마이크로초 단위)
+ * - enqueueClaimed: 기록만 하고 호출측이 바로 처리 (실시간 경로), 끝나면 ack / 실패 시 fail → 큐가 재시도
+ * - ack: ACK 레코드 추가, fail: 시도 횟수를 올린 JOB 레코드를 다시 써서 지터 백오프 후 재실행
+ *   (QUEUE_RETRY_BASE_MS 2000 ~ QUEUE_RETRY_MAX_MS 300000, QUEUE_MAX_ATTEMPTS 5회 넘으면 폐기)
+ * - 시작 시 로그 재생: 마지막 JOB 레코드 기준으로 ACK 없는 작업을 다시 큐에 넣음 (타입별 핸들러는 start 전에 등록)
+ * - 압축(QUEUE_COMPACT_SEC 30초마다): 살아 있는 작업이 없는 앞쪽 세그먼트 삭제,
+ *   세그먼트가 QUEUE_COMPACT_SEGMENTS(4)개를 넘으면 가장 오래된 세그먼트의 작업을 새 세그먼트로 옮겨 삭제
+ * - [MODIFIED] 위치 QUEUE_DIR 필수 (영구 디스크/볼륨 마운트 경로, 임시 디렉터리 기본값 없음),
+ *   세그먼트 QUEUE_SEGMENT_MB(16), 디스크 반영 QUEUE_FSYNC_MS(200), 동시 실행 QUEUE_CONCURRENCY(4)
+ * - QUEUE_DIR 미설정, 로그를 열 수 없거나 QUEUE=off면 메모리 전용 (enqueueClaimed는 -1 반환, ack/fail 무시)
+ */
+public final class DurableJobQueue {
+
+    private static final byte JOB = 1;
+    private static final byte ACK = 2;
+
+    private static final int MAX_ATTEMPTS = Env.getInt("QUEUE_MAX_ATTEMPTS", 5);
+    private static final long RETRY_BASE_MS = Env.getInt("QUEUE_RETRY_BASE_MS", 2_000);
+    private static final long RETRY_MAX_MS = Env.getInt("QUEUE_RETRY_MAX_MS", 300_000);
+    private static final int CONCURRENCY = Math.max(1, Env.getInt("QUEUE_CONCURRENCY", 4));
+    private static final int COMPACT_SEGMENTS = Math.max(2, Env.getInt("QUEUE_COMPACT_SEGMENTS", 4));
+
+    /** 작업 1건 */
+    public static final class Job implements Delayed {
+        public final long id;
+        public final String type;
+        public final String payload;
+        volatile int attempts;
+        volatile long notBefore;  // epoch ms
+        long segment;             // 최신 JOB 레코드가 있는 세그먼트 (큐 락 안에서만 변경)
+        boolean claimed;          // 호출측이 처리 중 (작업자에게 주지 않음)
+
+        Job(long id, String type, String payload, int attempts, long notBefore) {
+            this.id = id; this.type = type; this.payload = payload;
+            this.attempts = attempts; this.notBefore = notBefore;
+        }
+
+        public int attempts() { return attempts; }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(notBefore - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(notBefore, ((Job) o).notBefore);
+        }
+    }
+
+    private static final DurableJobQueue INSTANCE = new DurableJobQueue(openLog());
+    public static DurableJobQueue get() { return INSTANCE; }
+
+    private final SegmentLog log;
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> liveBySegment = new HashMap<>();
+    private final DelayQueue<Job> ready = new DelayQueue<>();
+    private final Map<String, Function<Job, CompletableFuture<?>>> handlers = new ConcurrentHashMap<>();
+    private final Semaphore permits = new Semaphore(CONCURRENCY);
+    private final AtomicLong seq = new AtomicLong();
+    private final AtomicLong enqueued = new AtomicLong(), acked = new AtomicLong(), retried = new AtomicLong(),
+            dead = new AtomicLong(), replayed = new AtomicLong(), compactedSegments = new AtomicLong(),
+            enqueueNanos = new AtomicLong();
+    private volatile boolean started;
+
+    /** log == null 이면 메모리 전용 (테스트는 임시 디렉터리 로그로 직접 생성) */
+    DurableJobQueue(SegmentLog log) {
+        this.log = log;
+    }
+
+    private static SegmentLog openLog() {
+        if (!Env.getFlag("QUEUE", true)) return null;
+        String dir = System.getenv("QUEUE_DIR");
+        if (dir == null || dir.isBlank()) {
+            System.err.println("[QUEUE] QUEUE_DIR 미설정 → 메모리 전용 (재시작 시 미완료 작업 유실, 영구 볼륨 경로를 지정하세요)");
+            return null;
+        }
+        try {
+            return new SegmentLog(Path.of(dir), "jobs", Env.getInt("QUEUE_SEGMENT_MB", 16) * 1024 * 1024,
+                    Env.getInt("QUEUE_FSYNC_MS", 200));
+        } catch (Exception e) {
+            System.err.println("[QUEUE] log open failed, memory only: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** 작업 타입별 처리기 (future 성공 → ack, 실패 → 재시도) */
+    public void register(String type, Function<Job, CompletableFuture<?>> handler) {
+        handlers.put(type, handler);
+    }
+
+    /** 로그 재생 + 작업자/압축 시작 (핸들러 등록 후 1회) */
+    public synchronized void start() {
+        if (started) return;
+        started = true;
+        if (log != null) {
+            long t0 = System.nanoTime();
+            Map<Long, Job> found = new HashMap<>();
+            log.replay((segment, type, id, payload) -> {
+                seq.accumulateAndGet(id, Math::max);
+                if (type == ACK) {
+                    found.remove(id);
+                } else if (type == JOB) {
+                    Job j = decode(id, payload);
+                    j.segment = segment;
+                    found.put(id, j);
+                }
+            });
+            synchronized (this) {
+                for (Job j : found.values()) {
+                    jobs.put(j.id, j);
+                    liveBySegment.merge(j.segment, 1, Integer::sum);
+                    ready.add(j);
+                }
+            }
+            replayed.set(found.size());
+            System.out.println("[QUEUE] replayed " + found.size() + " pending jobs in "
+                    + (System.nanoTime() - t0) / 1_000_000 + "ms " + log.stats());
+        }
+
+        Thread t = new Thread(this::dispatchLoop, "job-queue");
+        t.setDaemon(true);
+        t.start();
+        if (log != null) {
+            long every = Env.getInt("QUEUE_COMPACT_SEC", 30);
+            ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread c = new Thread(r, "job-queue-compact");
+                c.setDaemon(true);
+                return c;
+            });
+            s.scheduleWithFixedDelay(this::compact, every, every, TimeUnit.SECONDS);
+        }
+    }
+
+    /** 기록 후 작업자가 실행 → 작업 id */
+    public long enqueue(String type, String payload) {
+        Job j = append(type, payload, false);
+        ready.add(j);
+        return j.id;
+    }
+
+    /** 기록만 하고 호출측이 바로 처리 (ack/fail 필수) → 작업 id, 기록 불가면 -1 */
+    public long enqueueClaimed(String type, String payload) {
+        if (log == null) return -1;
+        return append(type, payload, true).id;
+    }
+
+    private Job append(String type, String payload, boolean claimed) {
+        long t0 = System.nanoTime();
+        Job j = new Job(seq.incrementAndGet(), type, payload, 0, System.currentTimeMillis());
+        j.claimed = claimed;
+        if (log != null) {
+            try {
+                synchronized (this) {
+                    j.segment = log.append(JOB, j.id, encode(j));
+                    liveBySegment.merge(j.segment, 1, Integer::sum);
+                }
+            } catch (Exception e) {
+                System.err.println("[QUEUE] append failed, job not durable: " + e.getMessage());
+                j.segment = -1;
+            }
+        }
+        jobs.put(j.id, j);
+        enqueued.incrementAndGet();
+        enqueueNanos.addAndGet(System.nanoTime() - t0);
+        return j;
+    }
+
+    /** 완료 */
+    public void ack(long id) {
+        Job j = jobs.remove(id);
+        if (j == null) return;
+        acked.incrementAndGet();
+        if (log == null || j.segment < 0) return;
+        try {
+            synchronized (this) {
+                log.append(ACK, id, new byte[0]);
+                liveBySegment.merge(j.segment, -1, Integer::sum);
+            }
+        } catch (Exception e) {
+            System.err.println("[QUEUE] ack append failed: " + e.getMessage());
+        }
+    }
+
+    /** 실패 → 백오프 후 작업자가 재실행, 최대 시도 초과면 폐기 */
+    public void fail(long id, Throwable cause) {
+        Job j = jobs.get(id);
+        if (j == null) return;
+        int attempts = j.attempts + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            System.err.println("[QUEUE] drop job " + id + " (" + j.type + ") after " + attempts + " attempts: " + cause);
+            dead.incrementAndGet();
+            ack(id);
+            return;
+        }
+        long exp = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(attempts - 1, 20));
+        long delay = exp / 2 + ThreadLocalRandom.current().nextLong(exp / 2 + 1);
+        j.attempts = attempts;
+        j.notBefore = System.currentTimeMillis() + delay;
+        j.claimed = false;
+        rewrite(j);
+        retried.incrementAndGet();
+        System.err.println("[QUEUE] retry job " + id + " (" + j.type + ") #" + attempts + " in " + delay + "ms: " + cause);
+        ready.add(j);
+    }
+
+    /** 최신 상태로 JOB 레코드 다시 기록 (재시도 정보 / 압축 이동) */
+    private void rewrite(Job j) {
+        if (log == null) return;
+        try {
+            synchronized (this) {
+                if (!jobs.containsKey(j.id)) return;
+                long seg = log.append(JOB, j.id, encode(j));
+                if (j.segment >= 0) liveBySegment.merge(j.segment, -1, Integer::sum);
+                j.segment = seg;
+                liveBySegment.merge(seg, 1, Integer::sum);
+            }
+        } catch (Exception e) {
+            System.err.println("[QUEUE] rewrite failed: " + e.getMessage());
+        }
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            try {
+                Job j = ready.take();
+                if (!jobs.containsKey(j.id) || j.claimed) continue;
+                Function<Job, CompletableFuture<?>> h = handlers.get(j.type);
+                if (h == null) {
+                    System.err.println("[QUEUE] no handler for " + j.type + ", job " + j.id + " postponed");
+                    j.notBefore = System.currentTimeMillis() + RETRY_MAX_MS;
+                    ready.add(j);
+                    continue;
+                }
+                permits.acquire();
+                CompletableFuture<?> f;
+                try {
+                    f = h.apply(j);
+                } catch (RuntimeException e) {
+                    f = CompletableFuture.failedFuture(e);
+                }
+                f.whenComplete((v, err) -> {
+                    permits.release();
+                    if (err == null) ack(j.id);
+                    else fail(j.id, err);
+                });
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("[QUEUE] dispatch error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** 앞쪽 빈 세그먼트 삭제, 세그먼트가 많으면 가장 오래된 것의 작업을 옮긴 뒤 삭제 */
+    void compact() {
+        try {
+            List<Long> segs = log.segmentNumbers();
+            if (segs.size() > COMPACT_SEGMENTS) {
+                long oldest = segs.get(0);
+                List<Job> move = new ArrayList<>();
+                synchronized (this) { // j.segment는 큐 락 안에서만 읽고 씀
+                    for (Job j : jobs.values()) {
+                        if (j.segment == oldest) move.add(j);
+                    }
+                }
+                for (Job j : move) rewrite(j);
+            }
+            int dropped;
+            synchronized (this) {
+                long through = emptyHead();
+                dropped = through < 0 ? 0 : log.dropThrough(through);
+                liveBySegment.keySet().removeIf(seg -> seg <= through);
+            }
+            if (dropped > 0) {
+                compactedSegments.addAndGet(dropped);
+                System.out.println("[QUEUE] compacted " + dropped + " segment(s), live=" + jobs.size());
+            }
+        } catch (Exception e) {
+            System.err.println("[QUEUE] compaction failed: " + e.getMessage());
+        }
+    }
+
+    /** 살아 있는 작업이 없는 앞쪽 세그먼트 중 마지막 번호 (없으면 -1), 큐 락 안에서 호출 */
+    private long emptyHead() {
+        long through = -1;
+        for (long seg : log.segmentNumbers()) {
+            if (seg == log.activeSegment() || liveBySegment.getOrDefault(seg, 0) > 0) break;
+            through = seg;
+        }
+        return through;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("durable", log != null);
+        m.put("pending", jobs.size());
+        m.put("ready", ready.size());
+        m.put("running", CONCURRENCY - permits.availablePermits());
+        m.put("enqueued", enqueued.get());
+        m.put("acked", acked.get());
+        m.put("retried", retried.get());
+        m.put("dead", dead.get());
+        m.put("replayed", replayed.get());
+        m.put("compactedSegments", compactedSegments.get());
+        long n = enqueued.get();
+        m.put("avgEnqueueMicros", n == 0 ? 0 : enqueueNanos.get() / n / 1000.0);
+        if (log != null) m.put("log", log.stats());
+        return m;
+    }
+
+    // ===== 레코드 인코딩: [attempts int][notBefore long][typeLen short][type][payload] =====
+
+    private static byte[] encode(Job j) {
+        byte[] t = j.type.getBytes(StandardCharsets.UTF_8);
+        byte[] p = j.payload.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + 8 + 2 + t.length + p.length)
+                .putInt(j.attempts).putLong(j.notBefore).putShort((short) t.length).put(t).put(p)
+                .array();
+    }
+
+    private static Job decode(long id, byte[] bytes) {
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        int attempts = b.getInt();
+        long notBefore = b.getLong();
+        byte[] t = new byte[b.getShort()];
+        b.get(t);
+        byte[] p = new byte[b.remaining()];
+        b.get(p);
+        return new Job(id, new String(t, StandardCharsets.UTF_8), new String(p, StandardCharsets.UTF_8),
+                attempts, notBefore);
+    }
+}
@@ -0,0 +1,204 @@
+package gcfv2.queue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * [ADDED] 메모리 매핑(mmap) 추가 전용 세그먼트 로그
+ * - 디렉터리 안에 {prefix}-{번호 20자리}.log 파일, 각 파일은 segmentBytes 크기로 미리 잡고 매핑
+ * - 레코드: [길이 int][CRC32 int][type byte][id long][payload] (길이 = 헤더 13 + payload)
+ *   본문을 먼저 쓰고 길이를 마지막에 기록 → 중간에 끊긴 레코드는 길이 0 또는 CRC 불일치로 재생 시 끝으로 간주
+ * - append는 매핑된 버퍼에 복사만 하므로 마이크로초 단위, 디스크 반영(force)은 fsyncMs마다 백그라운드
+ *   (프로세스가 죽어도 페이지 캐시에 남음, 머신 장애 시 최대 fsyncMs 분량 유실)
+ * - 오래된 세그먼트 삭제(dropThrough)는 호출측이 살아 있는 레코드가 없음을 확인한 뒤 앞에서부터만
+ * - [MODIFIED] 세그먼트 교체 시 이전 세그먼트의 force는 락 밖(flush 스레드)에서 → append가 디스크 동기화를 기다리지 않음
+ */
+public final class SegmentLog implements Closeable {
+
+    /** 재생 콜백 */
+    public interface Visitor {
+        void accept(long segment, byte type, long id, byte[] payload);
+    }
+
+    public static final int HEADER = 4 + 4 + 1 + 8;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "segment-log-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path dir;
+    private final String prefix;
+    private final int segmentBytes;
+    private final Pattern namePattern;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+
+    private long active = -1;
+    private MappedByteBuffer buf;
+    private boolean dirty;
+    private long appended, bytes, torn;
+
+    public SegmentLog(Path dir, String prefix, int segmentBytes, long fsyncMs) throws IOException {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+        this.namePattern = Pattern.compile(Pattern.quote(prefix) + "-(\\d{20})\\.log");
+        Files.createDirectories(dir);
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Matcher m = namePattern.matcher(p.getFileName().toString());
+                if (m.matches()) segments.put(Long.parseLong(m.group(1)), map(p));
+            }
+        }
+        if (fsyncMs > 0) FLUSHER.scheduleWithFixedDelay(this::force, fsyncMs, fsyncMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 기존 세그먼트를 순서대로 읽어 visitor에 전달, 마지막 세그먼트의 끝에서 이어 쓰도록 위치 설정
+     * 생성 직후 append 전에 한 번만 호출
+     */
+    public synchronized void replay(Visitor v) {
+        if (segments.isEmpty()) return;
+        long last = segments.lastKey();
+        for (Map.Entry<Long, MappedByteBuffer> e : segments.entrySet()) {
+            long seg = e.getKey();
+            MappedByteBuffer b = e.getValue();
+            int end = scan(seg, b, v);
+            if (seg == last) {
+                active = seg;
+                buf = b;
+                buf.position(end);
+            }
+        }
+    }
+
+    private int scan(long segment, MappedByteBuffer b, Visitor v) {
+        int pos = 0, limit = b.capacity();
+        while (pos + HEADER <= limit) {
+            int len = b.getInt(pos);
+            if (len == 0) break;
+            if (len < HEADER || pos + len > limit) { torn++; break; }
+            int sum = b.getInt(pos + 4);
+            byte type = b.get(pos + 8);
+            long id = b.getLong(pos + 9);
+            byte[] payload = new byte[len - HEADER];
+            b.get(pos + HEADER, payload);
+            if (checksum(type, id, payload) != sum) { torn++; break; }
+            v.accept(segment, type, id, payload);
+            pos += len;
+        }
+        return pos;
+    }
+
+    /** 레코드 추가 → 기록된 세그먼트 번호 */
+    public synchronized long append(byte type, long id, byte[] payload) throws IOException {
+        int len = HEADER + payload.length;
+        if (len + 4 > segmentBytes) throw new IllegalArgumentException("레코드가 세그먼트보다 큼: " + len);
+        if (buf == null || buf.position() + len + 4 > segmentBytes) roll();
+        int pos = buf.position();
+        buf.putInt(pos + 4, checksum(type, id, payload));
+        buf.put(pos + 8, type);
+        buf.putLong(pos + 9, id);
+        buf.put(pos + HEADER, payload);
+        buf.putInt(pos + len, 0); // 다음 자리 종료 표시 (재생 시 이전 실행의 잔여 바이트 무시)
+        buf.putInt(pos, len); // 길이를 마지막에 기록 (완성된 레코드만 보이도록)
+        buf.position(pos + len);
+        dirty = true;
+        appended++;
+        bytes += len;
+        return active;
+    }
+
+    private void roll() throws IOException {
+        MappedByteBuffer prev = buf;
+        if (prev != null && dirty) FLUSHER.execute(prev::force); // 이전 세그먼트 마무리 반영은 락 밖에서
+        dirty = false;
+        active = segments.isEmpty() ? 0 : Math.max(active, segments.lastKey()) + 1;
+        buf = map(dir.resolve(fileName(active)));
+        segments.put(active, buf);
+    }
+
+    /** 번호가 segment 이하인 세그먼트 삭제 (활성 세그먼트 제외) → 삭제한 수 */
+    public synchronized int dropThrough(long segment) {
+        int n = 0;
+        while (!segments.isEmpty() && segments.firstKey() <= segment && segments.firstKey() != active) {
+            long s = segments.pollFirstEntry().getKey();
+            try {
+                Files.deleteIfExists(dir.resolve(fileName(s)));
+            } catch (IOException e) {
+                System.err.println("[LOG] segment delete failed: " + fileName(s) + " / " + e.getMessage());
+            }
+            n++;
+        }
+        return n;
+    }
+
+    public synchronized long activeSegment() { return active; }
+
+    public synchronized List<Long> segmentNumbers() { return new ArrayList<>(segments.keySet()); }
+
+    /** 변경분 디스크 반영 (주기 실행) */
+    public void force() {
+        MappedByteBuffer b;
+        synchronized (this) {
+            if (!dirty || buf == null) return;
+            dirty = false;
+            b = buf;
+        }
+        b.force();
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("dir", dir.toString());
+        m.put("segments", segments.size());
+        m.put("activeSegment", active);
+        m.put("activeBytes", buf == null ? 0 : buf.position());
+        m.put("appended", appended);
+        m.put("appendedBytes", bytes);
+        m.put("tornRecords", torn);
+        return m;
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+
+    private MappedByteBuffer map(Path p) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private String fileName(long segment) {
+        return prefix + "-" + String.format("%020d", segment) + ".log";
+    }
+
+    private int checksum(byte type, long id, byte[] payload) {
+        crc.reset();
+        crc.update(type);
+        for (int i = 56; i >= 0; i -= 8) crc.update((int) (id >>> i));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,25 @@
+package gcfv2.ai;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * 답변 캐시 키: 정규화한 질문 + 대화 요약 (최근 발화는 키에 넣지 않음)
+ */
+class AnswerCacheTest {
+
+    @Test
+    void sameQuestionAndSummaryShareKey() {
+        assertEquals(AnswerCache.key("앞에 뭐가 있어?", "배수로 진입 중"),
+                AnswerCache.key("  앞에  뭐가 있어 ", "배수로 진입 중"));
+        assertEquals(AnswerCache.key("앞에 뭐가 있어?", null), AnswerCache.key("앞에 뭐가 있어", ""));
+    }
+
+    @Test
+    void differentSummaryChangesKey() {
+        assertNotEquals(AnswerCache.key("앞에 뭐가 있어?", "배수로 진입 중"),
+                AnswerCache.key("앞에 뭐가 있어?", "맨홀 아래 정지"));
+    }
+}
@@ -0,0 +1,89 @@
+package gcfv2.ai;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonObject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 엔드포인트 서킷 브레이커: 5xx가 몰리면 OPEN(즉시 거절) → 대기 후 HALF_OPEN 시험 호출 → 성공이면 CLOSED
+ * (vision 엔드포인트: 최근 4회 중 50% 실패면 OPEN, 300ms 후 시험 호출 1회, 재시도/헤지 없음)
+ */
+class OpenAIClientBreakerTest {
+
+    private static StubInferenceServer stub;
+
+    @BeforeAll
+    static void start() throws Exception {
+        stub = StubInferenceServer.start(0);
+        OpenAIClient.configure(stub.baseUrl(), "test");
+        OpenAIClient.Tuning t = new OpenAIClient.Tuning();
+        t.maxRetries = 0;
+        t.hedge = false;
+        t.cbWindow = 4;
+        t.cbMinCalls = 4;
+        t.cbFailureRate = 0.5;
+        t.cbOpenMs = 300;
+        t.cbProbes = 1;
+        OpenAIClient.tune(new OpenAIClient.Tuning(), t);
+    }
+
+    @AfterAll
+    static void stop() {
+        stub.stop();
+        OpenAIClient.tune(new OpenAIClient.Tuning(), new OpenAIClient.Tuning());
+    }
+
+    @Test
+    void opensOnErrorsThenHalfOpensAndCloses() throws Exception {
+        stub.inject(null, "fixed:10", 1.0);
+        for (int i = 0; i < 4; i++) {
+            assertThrows(ExecutionException.class, () -> call().get(5, TimeUnit.SECONDS));
+        }
+        assertEquals("OPEN", state());
+
+        // OPEN: 업스트림에 보내지 않고 즉시 거절
+        long requests = stub.requests();
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> call().get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, rejected.getCause());
+        assertEquals(requests, stub.requests());
+
+        // 시험 호출 실패 → 다시 OPEN
+        Thread.sleep(400);
+        assertThrows(ExecutionException.class, () -> call().get(5, TimeUnit.SECONDS));
+        assertEquals("OPEN", state());
+
+        // 시험 호출 진행 중 HALF_OPEN, 성공하면 CLOSED
+        Thread.sleep(400);
+        stub.inject(null, "fixed:300", 0);
+        CompletableFuture<JsonObject> probe = call();
+        Thread.sleep(100);
+        assertEquals("HALF_OPEN", state());
+        probe.get(5, TimeUnit.SECONDS);
+        assertEquals("CLOSED", state());
+    }
+
+    private static CompletableFuture<JsonObject> call() {
+        Object image = List.of(Map.of("type", "image_url", "image_url", Map.of("url", "data:image/jpeg;base64,AA==")));
+        String body = OpenAIClient.chatBody("stub", 0.2, List.of(OpenAIClient.message("user", image)));
+        return OpenAIClient.chat(body);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String state() {
+        Map<String, Object> vision = (Map<String, Object>) OpenAIClient.stats().get("vision");
+        return (String) ((Map<String, Object>) vision.get("breaker")).get("state");
+    }
+}
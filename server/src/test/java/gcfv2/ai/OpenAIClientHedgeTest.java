@@ -0,0 +1,86 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 헤지 요청: 최근 p95 지연이 지나도 응답이 없으면 두 번째 요청을 보내고, 먼저 온 응답을 쓰고 나머지는 취소
+ * (헤지 on, 표본 20개 이상, 최소 지연 50ms, 헤지 예산 100%, 재시도 없음)
+ */
+class OpenAIClientHedgeTest {
+
+    private static StubInferenceServer stub;
+
+    @BeforeAll
+    static void start() throws Exception {
+        stub = StubInferenceServer.start(0);
+        OpenAIClient.configure(stub.baseUrl(), "test");
+        OpenAIClient.Tuning t = new OpenAIClient.Tuning();
+        t.maxRetries = 0;
+        t.hedge = true;
+        t.hedgeDelayMs = 0;
+        t.hedgeMinSamples = 20;
+        t.hedgeMinMs = 50;
+        t.hedgeMaxRatio = 1.0;
+        OpenAIClient.tune(t, new OpenAIClient.Tuning());
+        // p95 표본 채우기 (성공 응답 지연만 기록)
+        stub.inject("fixed:100", null, 0);
+        for (int i = 0; i < 30; i++) call();
+    }
+
+    @AfterAll
+    static void stop() {
+        stub.stop();
+        OpenAIClient.tune(new OpenAIClient.Tuning(), new OpenAIClient.Tuning());
+    }
+
+    @Test
+    void fastResponseIsNotHedged() throws Exception {
+        stub.inject("fixed:10", null, 0);
+        long hedges = chat("hedges");
+        call();
+        assertEquals(hedges, chat("hedges"));
+    }
+
+    @Test
+    void slowPrimaryIsHedgedAfterP95AndLoserCancelled() throws Exception {
+        long delay = chat("hedgeDelayMs");
+        assertTrue(delay >= 100, "hedge delay should follow p95 of ~100ms samples: " + delay);
+        long hedges = chat("hedges"), wins = chat("hedgeWins"), cancels = chat("hedgeLoserCancels");
+        long requests = stub.requests();
+
+        stub.inject("cycle:3000:10", null, 0); // 원 요청 3초, 헤지 10ms
+        long t0 = System.nanoTime();
+        JsonObject root = call();
+        long elapsedMs = (System.nanoTime() - t0) / 1_000_000;
+
+        assertFalse(OpenAIClient.contentOf(root).isEmpty());
+        assertTrue(elapsedMs >= delay, "hedge must not fire before p95 delay: " + elapsedMs + " < " + delay);
+        assertTrue(elapsedMs < 2000, "hedge response should win over 3s primary: " + elapsedMs);
+        assertEquals(requests + 2, stub.requests());
+        assertEquals(hedges + 1, chat("hedges"));
+        assertEquals(wins + 1, chat("hedgeWins"));
+        assertEquals(cancels + 1, chat("hedgeLoserCancels"));
+    }
+
+    private static JsonObject call() throws Exception {
+        String body = OpenAIClient.chatBody("stub", 0.2, List.of(OpenAIClient.message("user", "앞에 뭐가 있어?")));
+        return OpenAIClient.chat(body).get(10, TimeUnit.SECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long chat(String key) {
+        Map<String, Object> chat = (Map<String, Object>) OpenAIClient.stats().get("chat");
+        return ((Number) chat.get(key)).longValue();
+    }
+}
@@ -0,0 +1,90 @@
+package gcfv2.ai;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 스트리밍 호출 재시도: 델타를 넘기기 전 끊김은 재시도, 델타를 넘긴 뒤 끊김은 재시도 없이 실패 (중복 델타 방지)
+ * [ADDED] 마감은 헤더뿐 아니라 본문 수신까지 적용
+ */
+class OpenAIClientStreamTest {
+
+    private static StubInferenceServer stub;
+
+    @BeforeAll
+    static void start() throws Exception {
+        stub = StubInferenceServer.start(0);
+        OpenAIClient.configure(stub.baseUrl(), "test");
+        OpenAIClient.Tuning t = new OpenAIClient.Tuning();
+        t.maxRetries = 2;
+        t.hedge = false;
+        OpenAIClient.tune(t, new OpenAIClient.Tuning());
+        stub.inject("fixed:10", null, 0);
+    }
+
+    @AfterAll
+    static void stop() {
+        stub.stop();
+        OpenAIClient.tune(new OpenAIClient.Tuning(), new OpenAIClient.Tuning());
+    }
+
+    @Test
+    void dropAfterDeltasIsNotRetried() {
+        List<String> deltas = new CopyOnWriteArrayList<>();
+        long requests = stub.requests();
+        stub.dropStreams(1, 2);
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> OpenAIClient.chatStream(body("끊김 테스트"), deltas::add).get(10, TimeUnit.SECONDS));
+
+        assertInstanceOf(IOException.class, e.getCause());
+        assertEquals(2, deltas.size(), "deltas must not be replayed: " + deltas);
+        assertEquals(requests + 1, stub.requests());
+    }
+
+    @Test
+    void dropBeforeFirstDeltaIsRetried() throws Exception {
+        List<String> deltas = new CopyOnWriteArrayList<>();
+        long requests = stub.requests();
+        stub.dropStreams(1, 0);
+
+        JsonObject root = OpenAIClient.chatStream(body("재시도 테스트"), deltas::add).get(10, TimeUnit.SECONDS);
+
+        assertEquals(requests + 2, stub.requests());
+        assertEquals(OpenAIClient.contentOf(root), String.join("", deltas));
+    }
+
+    @Test
+    void deadlineBoundsStreamingBody() {
+        List<String> deltas = new CopyOnWriteArrayList<>();
+        long requests = stub.requests();
+        long t0 = System.nanoTime();
+
+        // 헤더는 ~10ms에 오지만 본문(델타마다 15ms)은 마감(100ms)보다 길게 이어짐
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> OpenAIClient.chatStream(body("마감 테스트"), deltas::add, t0 + TimeUnit.MILLISECONDS.toNanos(100))
+                        .get(10, TimeUnit.SECONDS));
+
+        assertInstanceOf(HttpTimeoutException.class, e.getCause());
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(1), "must fail at the deadline");
+        assertEquals(requests + 1, stub.requests());
+    }
+
+    private static String body(String question) {
+        return OpenAIClient.chatBody("stub", 0.2, List.of(OpenAIClient.message("user", question)), true);
+    }
+}
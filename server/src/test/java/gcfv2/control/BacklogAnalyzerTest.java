@@ -0,0 +1,43 @@
+package gcfv2.control;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 묶음 분석 응답 파싱: 번호별 결과만 추리고, 형식이 다르면 빈 맵 (→ 호출측이 1장씩 재시도)
+ */
+class BacklogAnalyzerTest {
+
+    @Test
+    void parsesIndexedResults() {
+        Map<Integer, String> m = BacklogAnalyzer.parseResults(
+                "[{\"index\":1,\"result\":\"낙엽\"},{\"index\":2,\"result\":\"비닐\"}]");
+        assertEquals(Map.of(1, "낙엽", 2, "비닐"), m);
+    }
+
+    @Test
+    void acceptsCodeFenceAndSurroundingText() {
+        Map<Integer, String> m = BacklogAnalyzer.parseResults(
+                "결과입니다.\n```json\n[{\"index\":2,\"result\":\"물 고임\"}]\n```");
+        assertEquals(Map.of(2, "물 고임"), m);
+    }
+
+    @Test
+    void skipsMissingFieldsAndBlankResults() {
+        Map<Integer, String> m = BacklogAnalyzer.parseResults(
+                "[{\"index\":1},{\"result\":\"번호 없음\"},{\"index\":3,\"result\":\"  \"},{\"index\":4,\"result\":\"전선\"}]");
+        assertEquals(Map.of(4, "전선"), m);
+    }
+
+    @Test
+    void malformedContentYieldsEmpty() {
+        assertTrue(BacklogAnalyzer.parseResults(null).isEmpty());
+        assertTrue(BacklogAnalyzer.parseResults("사진 1: 낙엽, 사진 2: 비닐").isEmpty());
+        assertTrue(BacklogAnalyzer.parseResults("[{\"index\":1,\"result\":\"잘림\"").isEmpty());
+        assertTrue(BacklogAnalyzer.parseResults("[1, 2]").isEmpty());
+    }
+}
@@ -0,0 +1,199 @@
+package gcfv2.pubsub;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 토픽 트라이 매칭('+', '#'), 구독 해제, 보관 메시지 없음, 클라이언트 구독 범위
+ */
+class TopicBrokerTest {
+
+    @Test
+    void plusMatchesExactlyOneLevel() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+        b.subscribe(s.session, "robot/+/ai");
+
+        assertEquals(1, b.publish("robot/r1/ai", "{\"n\":1}"));
+        assertEquals(1, b.publish("robot/r2/ai", "{\"n\":2}"));
+        assertEquals(0, b.publish("robot/r1/ai/x", "{\"n\":3}"));
+        assertEquals(0, b.publish("robot/r1/stt", "{\"n\":4}"));
+        assertEquals(List.of("{\"Topic\":\"robot/r1/ai\",\"n\":1}", "{\"Topic\":\"robot/r2/ai\",\"n\":2}"), s.frames);
+    }
+
+    @Test
+    void hashMatchesParentAndWholeSubtree() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+        b.subscribe(s.session, "robot/r1/#");
+
+        assertEquals(1, b.publish("robot/r1", "{}"));
+        assertEquals(1, b.publish("robot/r1/ai", "{}"));
+        assertEquals(1, b.publish("robot/r1/cap/new", "{}"));
+        assertEquals(0, b.publish("robot/r2/ai", "{}"));
+        assertEquals(0, b.publish("robot", "{}"));
+    }
+
+    @Test
+    void overlappingFiltersDeliverOnce() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+        b.subscribe(s.session, "robot/r1/#");
+        b.subscribe(s.session, "robot/+/ai");
+        b.subscribe(s.session, "robot/r1/ai");
+
+        assertEquals(1, b.publish("robot/r1/ai", "{}"));
+        assertEquals(1, s.frames.size());
+    }
+
+    @Test
+    void unsubscribeKeepsOtherFiltersAndUnsubscribeAllStopsDelivery() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+        b.subscribe(s.session, "robot/r1/ai");
+        b.subscribe(s.session, "robot/r1/stt");
+
+        b.unsubscribe(s.session, "robot/r1/ai");
+        assertEquals(0, b.publish("robot/r1/ai", "{}"));
+        assertEquals(1, b.publish("robot/r1/stt", "{}"));
+        assertTrue(b.hasSubscribers("robot/r1/stt"));
+
+        b.unsubscribeAll(s.session);
+        assertEquals(0, b.publish("robot/r1/stt", "{}"));
+        assertFalse(b.hasSubscribers("robot/r1/stt"));
+        assertEquals(0, b.stats().get("sessions"));
+    }
+
+    @Test
+    void lateSubscriberGetsNoRetainedMessage() {
+        TopicBroker b = new TopicBroker();
+        assertEquals(0, b.publish("robot/r1/ai", "{\"n\":1}"));
+        Fake s = new Fake("r1");
+        b.subscribe(s.session, "robot/r1/ai");
+        assertTrue(s.frames.isEmpty());
+        assertEquals(1, b.publish("robot/r1/ai", "{\"n\":2}"));
+        assertEquals(List.of("{\"Topic\":\"robot/r1/ai\",\"n\":2}"), s.frames);
+    }
+
+    @Test
+    void hasSubscribersMatchingWalksWildcards() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+        b.subscribe(s.session, "robot/r1/cap/new");
+
+        assertTrue(b.hasSubscribersMatching("robot/+/cap/new"));
+        assertFalse(b.hasSubscribersMatching("robot/+/ai/new"));
+        assertTrue(b.hasSubscribersMatching("robot/#"));
+
+        Fake op = new Fake(null);
+        b.subscribe(op.session, "robot/+/ai/new");
+        assertTrue(b.hasSubscribersMatching("robot/+/ai/new"));
+    }
+
+    @Test
+    void rejectsMalformedFilters() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+        assertThrows(IllegalArgumentException.class, () -> b.subscribe(s.session, "robot/#/ai"));
+        assertThrows(IllegalArgumentException.class, () -> b.subscribe(s.session, "robot/r+/ai"));
+        assertThrows(IllegalArgumentException.class, () -> b.subscribe(s.session, "robot//ai"));
+        assertThrows(IllegalArgumentException.class, () -> b.publish("robot/+/ai", "{}"));
+    }
+
+    @Test
+    void clientSubscribeIsScopedToOwnRobot() {
+        TopicBroker b = new TopicBroker();
+        Fake s = new Fake("r1");
+
+        for (String f : List.of("robot/+/ai", "robot/#", "#", "robot/r2/ai", "robot/r1x/ai", "cap/new")) {
+            assertThrows(IllegalArgumentException.class, () -> b.handle(s.session, subscribe(f)), f);
+        }
+        // 하나라도 범위 밖이면 나머지도 구독하지 않음
+        JsonObject mixed = subscribe("robot/r1/ai");
+        mixed.getAsJsonArray("Topics").add("robot/+/ai");
+        assertThrows(IllegalArgumentException.class, () -> b.handle(s.session, mixed));
+        assertFalse(b.hasSubscribers("robot/r1/ai"));
+
+        assertDoesNotThrow(() -> b.handle(s.session, subscribe("robot/r1/#")));
+        assertEquals(0, b.publish("robot/r2/ai", "{}"));
+        assertEquals(1, b.publish("robot/r1/ai", "{}"));
+
+        Fake anonymous = new Fake(null);
+        assertThrows(IllegalArgumentException.class, () -> b.handle(anonymous.session, subscribe("robot/r1/ai")));
+    }
+
+    @Test
+    void operatorMayUseCrossRobotWildcards() {
+        assertDoesNotThrow(() -> TopicBroker.checkSubscribe("robot/+/ai", null, true));
+        assertDoesNotThrow(() -> TopicBroker.checkSubscribe("#", "r1", true));
+        assertThrows(IllegalArgumentException.class, () -> TopicBroker.checkSubscribe("robot/+/ai", "r1", false));
+    }
+
+    private static JsonObject subscribe(String filter) {
+        JsonObject m = new JsonObject();
+        m.addProperty("Type", "Subscribe");
+        JsonArray arr = new JsonArray();
+        arr.add(filter);
+        m.add("Topics", arr);
+        return m;
+    }
+
+    /** 열린 세션 흉내 (id 파라미터, 보낸 프레임 기록, 전송은 즉시 성공) */
+    private static final class Fake {
+        final List<String> frames = new CopyOnWriteArrayList<>();
+        final Session session;
+
+        Fake(String id) {
+            Map<String, List<String>> params = id == null ? Map.of() : Map.of("id", List.of(id));
+            UpgradeRequest req = proxy(UpgradeRequest.class, (m, a) -> switch (m) {
+                case "getParameterMap" -> params;
+                default -> null;
+            });
+            RemoteEndpoint remote = proxy(RemoteEndpoint.class, (m, a) -> {
+                if (m.equals("sendString") && a.length == 2) {
+                    frames.add((String) a[0]);
+                    ((WriteCallback) a[1]).writeSuccess();
+                }
+                return null;
+            });
+            session = proxy(Session.class, (m, a) -> switch (m) {
+                case "isOpen" -> true;
+                case "getUpgradeRequest" -> req;
+                case "getRemote" -> remote;
+                default -> null;
+            });
+        }
+    }
+
+    private interface Handler {
+        Object call(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler h) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{ type }, (p, m, a) -> {
+            switch (m.getName()) {
+                case "hashCode": return System.identityHashCode(p);
+                case "equals": return p == a[0];
+                case "toString": return type.getSimpleName() + "@" + System.identityHashCode(p);
+                default: return h.call(m.getName(), a == null ? new Object[0] : a);
+            }
+        });
+    }
+}
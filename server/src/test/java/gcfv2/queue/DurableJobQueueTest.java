@@ -0,0 +1,90 @@
+package gcfv2.queue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 작업 큐 복구: ack 안 된 작업만 재시작 후 다시 실행, 압축 후에도 살아 있는 작업 유지
+ */
+class DurableJobQueueTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysOnlyUnackedJobsAfterRestart() throws Exception {
+        SegmentLog l1 = open(4096);
+        DurableJobQueue q1 = new DurableJobQueue(l1);
+        q1.enqueueClaimed("t", "A");
+        long b = q1.enqueueClaimed("t", "B");
+        long c = q1.enqueueClaimed("t", "C");
+        q1.ack(b);
+        q1.fail(c, new RuntimeException("boom")); // 시도 횟수 1로 다시 기록
+        l1.close();
+
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        DurableJobQueue q2 = new DurableJobQueue(open(4096));
+        q2.register("t", job -> {
+            seen.add(job.payload + "#" + job.attempts());
+            return CompletableFuture.completedFuture(null);
+        });
+        q2.start();
+        assertEquals(2L, q2.stats().get("replayed"));
+        await(() -> seen.size() == 2 && (Integer) q2.stats().get("pending") == 0);
+        assertEquals(Set.of("A#0", "C#1"), seen);
+
+        // 재실행 후 ack까지 기록됐으므로 다시 시작하면 남은 작업 없음
+        DurableJobQueue q3 = new DurableJobQueue(open(4096));
+        q3.start();
+        assertEquals(0L, q3.stats().get("replayed"));
+    }
+
+    @Test
+    void compactionDropsDeadSegmentsAndKeepsLiveJobs() throws Exception {
+        SegmentLog log = open(128); // 작업 레코드 2개씩 세그먼트
+        DurableJobQueue q1 = new DurableJobQueue(log);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) ids.add(q1.enqueueClaimed("t", "job-" + i + "-" + "p".repeat(16)));
+        for (int i = 1; i < 9; i++) q1.ack(ids.get(i)); // job-1, job-10만 남김
+        assertTrue(log.segmentNumbers().size() > 4);
+
+        q1.compact(); // 가장 오래된 세그먼트의 job-1을 옮기고 살아 있는 작업 없는 앞쪽 세그먼트 삭제
+        assertEquals(4L, log.segmentNumbers().get(0)); // job-10이 있는 세그먼트부터 남음
+        assertEquals(4L, q1.stats().get("compactedSegments"));
+        log.close();
+
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        DurableJobQueue q2 = new DurableJobQueue(open(128));
+        q2.register("t", job -> {
+            seen.add(job.payload.substring(0, job.payload.indexOf('-', 4)));
+            return CompletableFuture.completedFuture(null);
+        });
+        q2.start();
+        await(() -> seen.size() == 2);
+        assertEquals(Set.of("job-1", "job-10"), seen);
+    }
+
+    private SegmentLog open(int segmentBytes) throws Exception {
+        return new SegmentLog(dir, "jobs", segmentBytes, 0);
+    }
+
+    private static void await(BooleanSupplier cond) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!cond.getAsBoolean()) {
+            if (System.nanoTime() > end) throw new AssertionError("timed out");
+            Thread.sleep(20);
+        }
+    }
+}
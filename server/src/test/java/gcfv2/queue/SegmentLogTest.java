@@ -0,0 +1,123 @@
+package gcfv2.queue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 세그먼트 로그: 재시작 후 재생, 끊긴/손상된 끝 레코드 무시 후 이어 쓰기, 세그먼트 교체와 앞쪽 삭제
+ */
+class SegmentLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysRecordsAfterReopenAndAppendsAtTheEnd() throws Exception {
+        SegmentLog a = open(4096);
+        a.replay((s, t, id, p) -> {});
+        a.append((byte) 1, 1, bytes("a"));
+        a.append((byte) 1, 2, bytes("b"));
+        a.append((byte) 2, 1, new byte[0]);
+        a.close();
+
+        SegmentLog b = open(4096);
+        assertEquals(List.of("0/1/1/a", "0/1/2/b", "0/2/1/"), replay(b));
+        b.append((byte) 1, 3, bytes("c"));
+        b.close();
+
+        assertEquals(List.of("0/1/1/a", "0/1/2/b", "0/2/1/", "0/1/3/c"), replay(open(4096)));
+    }
+
+    @Test
+    void corruptTailIsSkippedAndOverwritten() throws Exception {
+        SegmentLog a = open(4096);
+        a.replay((s, t, id, p) -> {});
+        a.append((byte) 1, 1, bytes("first"));
+        a.append((byte) 1, 2, bytes("second"));
+        a.close();
+
+        // 두 번째 레코드 본문 1바이트 손상 → CRC 불일치
+        int second = SegmentLog.HEADER + 5;
+        write(segmentFile(0), second + SegmentLog.HEADER, new byte[]{'X'});
+
+        SegmentLog b = open(4096);
+        assertEquals(List.of("0/1/1/first"), replay(b));
+        assertEquals(1L, b.stats().get("tornRecords"));
+        b.append((byte) 1, 3, bytes("third"));
+        b.close();
+
+        assertEquals(List.of("0/1/1/first", "0/1/3/third"), replay(open(4096)));
+    }
+
+    @Test
+    void partialRecordWithoutLengthEndsReplay() throws Exception {
+        SegmentLog a = open(4096);
+        a.replay((s, t, id, p) -> {});
+        a.append((byte) 1, 1, bytes("done"));
+        a.close();
+
+        // 본문까지만 쓰고 길이를 기록하기 전에 죽은 경우 (길이 자리는 0)
+        int next = SegmentLog.HEADER + 4;
+        write(segmentFile(0), next + 4, bytes("half-written body"));
+
+        SegmentLog b = open(4096);
+        assertEquals(List.of("0/1/1/done"), replay(b));
+        assertEquals(0L, b.stats().get("tornRecords"));
+    }
+
+    @Test
+    void rollsSegmentsAndDropsOnlyInactiveHead() throws Exception {
+        SegmentLog a = open(128); // 40바이트 본문 레코드 2개씩
+        a.replay((s, t, id, p) -> {});
+        for (int i = 1; i <= 5; i++) a.append((byte) 1, i, bytes("x".repeat(40)));
+        assertEquals(List.of(0L, 1L, 2L), a.segmentNumbers());
+        assertEquals(2L, a.activeSegment());
+
+        assertEquals(2, a.dropThrough(1));
+        assertEquals(0, a.dropThrough(2)); // 활성 세그먼트는 남김
+        assertFalse(Files.exists(segmentFile(0)));
+        assertTrue(Files.exists(segmentFile(2)));
+        a.close();
+
+        List<String> rest = replay(open(128));
+        assertEquals(1, rest.size());
+        assertTrue(rest.get(0).startsWith("2/1/5/"));
+    }
+
+    private SegmentLog open(int segmentBytes) throws Exception {
+        return new SegmentLog(dir, "t", segmentBytes, 0);
+    }
+
+    private Path segmentFile(long segment) {
+        return dir.resolve("t-" + String.format("%020d", segment) + ".log");
+    }
+
+    private static List<String> replay(SegmentLog log) {
+        List<String> out = new ArrayList<>();
+        log.replay((s, t, id, p) -> out.add(s + "/" + t + "/" + id + "/" + new String(p, StandardCharsets.UTF_8)));
+        return out;
+    }
+
+    private static void write(Path file, long pos, byte[] data) throws Exception {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(data), pos);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}